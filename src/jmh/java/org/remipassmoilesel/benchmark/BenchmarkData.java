@@ -0,0 +1,88 @@
+package org.remipassmoilesel.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.remipassmoilesel.cachedpanel.CachedRenderLab;
+import org.remipassmoilesel.cachedpanel.RenderedPartialFactory;
+import org.remipassmoilesel.cachedpanel.StreamingRendererPool;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Data shared by benchmarks. Only files bundled in data/ are used, so benchmarks can run offline.
+ * <p>
+ * Benchmarks must be launched from project directory.
+ */
+public class BenchmarkData {
+
+    public static final Path ADMIN_SHAPE_PATH = Paths.get("data/ne_50m_admin/ne_50m_admin_0_countries.shp");
+
+    public static final int PARTIAL_SIDE_PX = RenderedPartialFactory.DEFAULT_PARTIAL_SIDE_PX;
+
+    /**
+     * Longitude and latitude of lower left corner of rendered areas, in western Europe
+     */
+    public static final double ORIGIN_X = -6.4d;
+    public static final double ORIGIN_Y = 38.4d;
+
+    /**
+     * Return a map content with countries of admin shape file
+     *
+     * @return
+     * @throws IOException
+     */
+    public static MapContent createAdminContent() throws IOException {
+        if (Files.exists(ADMIN_SHAPE_PATH) == false) {
+            throw new IOException("Shape file not found, benchmarks must be launched from project directory: " + ADMIN_SHAPE_PATH.toAbsolutePath());
+        }
+
+        MapContent content = new MapContent();
+        content.addLayer(CachedRenderLab.createShapeLayer(ADMIN_SHAPE_PATH));
+        return content;
+    }
+
+    /**
+     * Return area of a partial of specified zoom level, at origin
+     *
+     * @param zoomLevel
+     * @return
+     */
+    public static ReferencedEnvelope getArea(int zoomLevel) {
+        double side = RenderedPartialFactory.getSideForZoomLevel(zoomLevel);
+        return new ReferencedEnvelope(ORIGIN_X, ORIGIN_X + side, ORIGIN_Y, ORIGIN_Y + side, DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * Render one partial of admin shape file
+     *
+     * @param zoomLevel
+     * @return
+     * @throws Exception
+     */
+    public static BufferedImage renderSampleTile(int zoomLevel) throws Exception {
+        MapContent content = createAdminContent();
+        try {
+            return new StreamingRendererPool(content, 1).render(getArea(zoomLevel), PARTIAL_SIDE_PX, PARTIAL_SIDE_PX);
+        } finally {
+            content.dispose();
+        }
+    }
+
+    public static Path createTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    public static void deleteDirectory(Path directory) {
+        try {
+            FileUtils.deleteDirectory(directory.toFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
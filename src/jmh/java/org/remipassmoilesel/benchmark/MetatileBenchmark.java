@@ -0,0 +1,82 @@
+package org.remipassmoilesel.benchmark;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.RenderedPartialFactory;
+import org.remipassmoilesel.cachedpanel.StreamingRendererPool;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of a grid of partials with metatiles of N x N partials, on one thread. Score is time per partial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MetatileBenchmark {
+
+    private static final int ZOOM_LEVEL = 6;
+
+    /**
+     * Side of rendered grid in partials, multiple of all metatile sizes
+     */
+    private static final int GRID_SIZE = 12;
+
+    @Param({"1", "2", "3", "4", "6"})
+    public int metatileSize;
+
+    private MapContent content;
+    private StreamingRendererPool pool;
+    private double side;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        content = BenchmarkData.createAdminContent();
+        pool = new StreamingRendererPool(content, 1);
+        side = RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        content.dispose();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID_SIZE * GRID_SIZE)
+    public int renderGrid() throws Exception {
+
+        int partials = 0;
+        for (int col = 0; col < GRID_SIZE; col += metatileSize) {
+            for (int row = 0; row < GRID_SIZE; row += metatileSize) {
+                double x = BenchmarkData.ORIGIN_X + col * side;
+                double y = BenchmarkData.ORIGIN_Y + row * side;
+                ReferencedEnvelope bounds = new ReferencedEnvelope(x, x + metatileSize * side, y, y + metatileSize * side,
+                        DefaultGeographicCRS.WGS84);
+                BufferedImage[][] tiles = pool.renderTiles(bounds, metatileSize, metatileSize,
+                        BenchmarkData.PARTIAL_SIDE_PX, BenchmarkData.PARTIAL_SIDE_PX);
+                partials += tiles.length * tiles[0].length;
+            }
+        }
+
+        return partials;
+    }
+}
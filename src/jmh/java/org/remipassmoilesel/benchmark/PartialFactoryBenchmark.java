@@ -0,0 +1,91 @@
+package org.remipassmoilesel.benchmark;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.PartialStore;
+import org.remipassmoilesel.cachedpanel.RenderedPartialFactory;
+import org.remipassmoilesel.cachedpanel.RenderedPartialQueryResult;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RenderedPartialFactory.intersect() on a viewport whose partials are already in memory, as when map is repainted
+ * or panned a little.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartialFactoryBenchmark {
+
+    private static final long WARM_UP_TIMEOUT_MS = 120000;
+
+    /**
+     * Viewport size in partials
+     */
+    private static final int VIEWPORT_PARTIALS = 4;
+
+    @Param({"3", "5"})
+    public int zoomLevel;
+
+    private Path directory;
+    private MapContent content;
+    private RenderedPartialFactory factory;
+    private ReferencedEnvelope viewport;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        directory = BenchmarkData.createTempDirectory("partial-factory-benchmark");
+        content = BenchmarkData.createAdminContent();
+
+        factory = new RenderedPartialFactory(content, PartialStore.Backend.PACK_FILE, directory);
+        factory.setZoomLevel(zoomLevel);
+        factory.getPrefetcher().setEnabled(false);
+
+        // viewport not aligned on grid
+        double side = factory.getPartialSideDg();
+        double x = BenchmarkData.ORIGIN_X + side / 3;
+        double y = BenchmarkData.ORIGIN_Y + side / 3;
+        viewport = new ReferencedEnvelope(x, x + side * VIEWPORT_PARTIALS, y, y + side * VIEWPORT_PARTIALS, DefaultGeographicCRS.WGS84);
+
+        // render all partials of viewport once
+        factory.intersect(viewport, null);
+        long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT_MS;
+        while (factory.getInFlightRegistry().size() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Partials not rendered after " + WARM_UP_TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.dispose();
+        content.dispose();
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public RenderedPartialQueryResult intersect() {
+        return factory.intersect(viewport, null);
+    }
+}
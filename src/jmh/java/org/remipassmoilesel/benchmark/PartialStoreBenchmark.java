@@ -0,0 +1,146 @@
+package org.remipassmoilesel.benchmark;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.BufferedImagePersister;
+import org.remipassmoilesel.cachedpanel.CacheMetrics;
+import org.remipassmoilesel.cachedpanel.EncodedPartial;
+import org.remipassmoilesel.cachedpanel.PartialKey;
+import org.remipassmoilesel.cachedpanel.PartialStore;
+import org.remipassmoilesel.cachedpanel.RenderedPartial;
+import org.remipassmoilesel.cachedpanel.RenderedPartialFactory;
+import org.remipassmoilesel.cachedpanel.RenderedPartialStore;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and lookups of partials in RenderedPartialStore and in its persistent backends
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartialStoreBenchmark {
+
+    private static final int GRID_SIDE = 16;
+    private static final int ZOOM_LEVEL = 6;
+
+    @Param({"H2", "PACK_FILE"})
+    public String backendName;
+
+    private Path directory;
+    private PartialStore backend;
+    private RenderedPartialStore store;
+
+    private ArrayList<RenderedPartial> partials;
+    private PartialKey missingKey;
+    private int cursor;
+
+    private byte[] encoded;
+    private int writeCursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        directory = BenchmarkData.createTempDirectory("partial-store-benchmark");
+        backend = PartialStore.Backend.valueOf(backendName).open(directory);
+
+        BufferedImage image = BenchmarkData.renderSampleTile(ZOOM_LEVEL);
+        encoded = BufferedImagePersister.imageToByte(image);
+
+        // same image in each cell of a grid
+        double side = RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL);
+        partials = new ArrayList<>();
+        ArrayList<EncodedPartial> toWrite = new ArrayList<>();
+        for (int col = 0; col < GRID_SIDE; col++) {
+            for (int row = 0; row < GRID_SIDE; row++) {
+                ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(col, row, side);
+                RenderedPartial part = new RenderedPartial(null, area, 0, BenchmarkData.PARTIAL_SIDE_PX, BenchmarkData.PARTIAL_SIDE_PX);
+                partials.add(part);
+                toWrite.add(new EncodedPartial(part.getKey(), area, encoded));
+            }
+        }
+        backend.putAll(toWrite);
+
+        missingKey = PartialKey.fromEnvelope(RenderedPartialFactory.getPartialArea(-1, -1, side), 0);
+
+        // no memory cache and no off heap cache, each lookup reads backend
+        store = new RenderedPartialStore(backend, 0, 0, new CacheMetrics());
+        for (RenderedPartial part : partials) {
+            store.addInLoadedList(part);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        BenchmarkData.deleteDirectory(directory);
+    }
+
+    private RenderedPartial next() {
+        cursor = (cursor + 1) % partials.size();
+        return partials.get(cursor);
+    }
+
+    @Benchmark
+    public ByteBuffer backendGet() throws Exception {
+        return backend.get(next().getKey());
+    }
+
+    @Benchmark
+    public ByteBuffer backendGetMissing() throws Exception {
+        return backend.get(missingKey);
+    }
+
+    /**
+     * Write a partial not stored yet, each time in a new row above the grid
+     */
+    @Benchmark
+    public boolean backendPut() throws Exception {
+        writeCursor++;
+        ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(writeCursor % GRID_SIDE, GRID_SIDE + writeCursor / GRID_SIDE,
+                RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL));
+        return backend.put(PartialKey.fromEnvelope(area, 0), area, encoded);
+    }
+
+    @Benchmark
+    public BufferedImage backendGetAndDecode() throws Exception {
+        return BufferedImagePersister.bytesToImage(backend.get(next().getKey()));
+    }
+
+    @Benchmark
+    public boolean backendContains() throws Exception {
+        return backend.contains(next().getKey());
+    }
+
+    @Benchmark
+    public RenderedPartial searchInLoadedList() {
+        return store.searchInLoadedList(next().getKey());
+    }
+
+    /**
+     * Read and decode a partial
+     */
+    @Benchmark
+    public boolean updatePartialFromDatabase() throws Exception {
+        return store.updatePartialFromDatabase(next());
+    }
+}
@@ -0,0 +1,88 @@
+package org.remipassmoilesel.benchmark;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.CachedRenderLab;
+import org.remipassmoilesel.draw.RendererBuilder;
+import org.remipassmoilesel.draw.optimized.MapLayersManager;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of admin shape file: one partial painted with a StreamingRenderer, and one layer rendered by MapLayersManager
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+    private static final Dimension LAYER_DIMENSION = new Dimension(1200, 800);
+
+    @Param({"0", "3", "6"})
+    public int zoomLevel;
+
+    private MapContent content;
+    private StreamingRenderer renderer;
+    private ReferencedEnvelope area;
+
+    private MapLayersManager layersManager;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        content = BenchmarkData.createAdminContent();
+        renderer = RendererBuilder.getRenderer();
+        renderer.setMapContent(content);
+        area = BenchmarkData.getArea(zoomLevel);
+
+        layersManager = new MapLayersManager();
+        layersManager.addLayer(CachedRenderLab.createShapeLayer(BenchmarkData.ADMIN_SHAPE_PATH));
+        layersManager.setMapBoundsToRender(area);
+        layersManager.setRenderedDimensions(LAYER_DIMENSION);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        content.dispose();
+        layersManager.getMapContent().dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paintPartial() {
+
+        BufferedImage img = new BufferedImage(BenchmarkData.PARTIAL_SIDE_PX, BenchmarkData.PARTIAL_SIDE_PX, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = img.createGraphics();
+        try {
+            renderer.paint(g2d, new Rectangle(BenchmarkData.PARTIAL_SIDE_PX, BenchmarkData.PARTIAL_SIDE_PX), area);
+        } finally {
+            g2d.dispose();
+        }
+
+        return img;
+    }
+
+    @Benchmark
+    public BufferedImage renderLayer() {
+        layersManager.renderLayer(0);
+        return layersManager.getRenderedImages()[0];
+    }
+}
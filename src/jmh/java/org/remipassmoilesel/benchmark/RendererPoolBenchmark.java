@@ -0,0 +1,91 @@
+package org.remipassmoilesel.benchmark;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.RenderedPartialFactory;
+import org.remipassmoilesel.cachedpanel.StreamingRendererPool;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of a grid of partials with a StreamingRendererPool shared by several threads. Score is time per partial,
+ * compare it between thread counts to get speedup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RendererPoolBenchmark {
+
+    private static final int ZOOM_LEVEL = 5;
+    private static final int GRID_WIDTH = 8;
+    private static final int GRID_HEIGHT = 6;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private MapContent content;
+    private StreamingRendererPool pool;
+    private ExecutorService executor;
+    private ArrayList<ReferencedEnvelope> areas;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        content = BenchmarkData.createAdminContent();
+        pool = new StreamingRendererPool(content, threads);
+        executor = Executors.newFixedThreadPool(threads);
+
+        double side = RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL);
+        areas = new ArrayList<>();
+        for (int col = 0; col < GRID_WIDTH; col++) {
+            for (int row = 0; row < GRID_HEIGHT; row++) {
+                double x = BenchmarkData.ORIGIN_X + col * side;
+                double y = BenchmarkData.ORIGIN_Y + row * side;
+                areas.add(new ReferencedEnvelope(x, x + side, y, y + side, DefaultGeographicCRS.WGS84));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        content.dispose();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID_WIDTH * GRID_HEIGHT)
+    public int renderGrid() throws Exception {
+
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (ReferencedEnvelope area : areas) {
+            futures.add(executor.submit(() -> pool.render(area, BenchmarkData.PARTIAL_SIDE_PX, BenchmarkData.PARTIAL_SIDE_PX)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        return futures.size();
+    }
+}
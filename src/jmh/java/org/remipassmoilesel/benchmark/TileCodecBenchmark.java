@@ -0,0 +1,86 @@
+package org.remipassmoilesel.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.remipassmoilesel.cachedpanel.BufferedImagePersister;
+import org.remipassmoilesel.cachedpanel.DeflateTileCodec;
+import org.remipassmoilesel.cachedpanel.JpegTileCodec;
+import org.remipassmoilesel.cachedpanel.PngTileCodec;
+import org.remipassmoilesel.cachedpanel.TileCodec;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a partial with BufferedImagePersister, for each codec. Encoded size is printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileCodecBenchmark {
+
+    @Param({"png-9", "png-6", "png-1", "deflate-1", "deflate-6", "jpeg"})
+    public String codecName;
+
+    @Param({"2", "5"})
+    public int zoomLevel;
+
+    private TileCodec codec;
+    private BufferedImage image;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        switch (codecName) {
+            case "png-9":
+                codec = new PngTileCodec(9);
+                break;
+            case "png-6":
+                codec = new PngTileCodec(6);
+                break;
+            case "png-1":
+                codec = new PngTileCodec(1);
+                break;
+            case "deflate-1":
+                codec = new DeflateTileCodec(1);
+                break;
+            case "deflate-6":
+                codec = new DeflateTileCodec(6);
+                break;
+            case "jpeg":
+                codec = new JpegTileCodec();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + codecName);
+        }
+
+        image = BenchmarkData.renderSampleTile(zoomLevel);
+        encoded = BufferedImagePersister.imageToByte(image, codec);
+        System.out.println(codecName + ", zoom level " + zoomLevel + ": " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return BufferedImagePersister.imageToByte(image, codec);
+    }
+
+    @Benchmark
+    public BufferedImage decode() {
+        return BufferedImagePersister.bytesToImage(ByteBuffer.wrap(encoded));
+    }
+}
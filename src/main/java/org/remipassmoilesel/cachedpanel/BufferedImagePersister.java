@@ -4,20 +4,51 @@ import com.j256.ormlite.field.FieldType;
 import com.j256.ormlite.field.SqlType;
 import com.j256.ormlite.field.types.ByteArrayType;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Allow to persist image in database. Used to improve render computing time, and to keep distant resources in database.
+ * <p>
+ * Images are encoded with a pluggable TileCodec, id of codec is stored in first byte of encoded data.
  */
 public class BufferedImagePersister extends ByteArrayType {
 
     private static final BufferedImagePersister singleTon = new BufferedImagePersister();
 
+    /**
+     * First byte of PNG files. Images stored without codec id start with it.
+     */
+    private static final byte PNG_SIGNATURE_FIRST_BYTE = (byte) 0x89;
+
+    private static final TileCodec LEGACY_PNG_CODEC = new PngTileCodec();
+
+    private static final TileCodec UNIFORM_CODEC = new UniformTileCodec();
+
+    /**
+     * Codecs used to decode images, by id
+     */
+    private static final ConcurrentHashMap<Byte, TileCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Codec used to encode new images when no codec is specified, e.g: by a write queue, see
+     * PartialWriteBehindQueue.setCodec()
+     */
+    private static volatile TileCodec defaultCodec;
+
+    static {
+        registerCodec(new PngTileCodec());
+        registerCodec(new DeflateTileCodec());
+        registerCodec(new JpegTileCodec());
+        registerCodec(UNIFORM_CODEC);
+        setDefaultCodec(new PngTileCodec());
+    }
+
     private BufferedImagePersister() {
         super(SqlType.BYTE_ARRAY, new Class<?>[]{BufferedImage.class});
     }
@@ -42,18 +73,43 @@ public class BufferedImagePersister extends ByteArrayType {
     }
 
     /**
-     * Return a byte array or null if an error occur
+     * Return a byte array or null if an error occur. Image is encoded with default codec, or only its colour is stored
+     * if all pixels are the same (see UniformTileCodec).
      *
      * @param img
      * @return
      */
     public static byte[] imageToByte(BufferedImage img) {
+        return encode(img, defaultCodec);
+    }
+
+    /**
+     * Return a byte array or null if an error occur. Image is encoded with specified codec, or only its colour is stored
+     * if all pixels are the same (see UniformTileCodec).
+     *
+     * @param img
+     * @param codec
+     * @return
+     */
+    public static byte[] encode(BufferedImage img, TileCodec codec) {
+        return imageToByte(img, UniformTileCodec.isUniform(img) ? UNIFORM_CODEC : codec);
+    }
+
+    /**
+     * Return a byte array or null if an error occur. Id of codec is written in first byte.
+     *
+     * @param img
+     * @param codec
+     * @return
+     */
+    public static byte[] imageToByte(BufferedImage img, TileCodec codec) {
 
         try {
-            try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                ImageIO.write(img, "png", out);
-                return out.toByteArray();
-            }
+            byte[] data = codec.encode(img);
+            byte[] result = new byte[data.length + 1];
+            result[0] = codec.getId();
+            System.arraycopy(data, 0, result, 1, data.length);
+            return result;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -68,11 +124,41 @@ public class BufferedImagePersister extends ByteArrayType {
      * @return
      */
     public static BufferedImage bytesToImage(byte[] bytes) {
+        return bytesToImage(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Return a buffered image generated from byte buffer or null if an error occur
+     * <p>
+     * Buffer is read from its position to its limit, without copy. Position of buffer is not modified.
+     * <p>
+     * Images stored before codecs were introduced are plain PNG, they are recognized with PNG signature.
+     *
+     * @param buffer
+     * @return
+     */
+    public static BufferedImage bytesToImage(ByteBuffer buffer) {
+
+        ByteBuffer data = buffer.duplicate();
+        if (data.hasRemaining() == false) {
+            return null;
+        }
 
         try {
-            try (ByteArrayInputStream in = new ByteArrayInputStream(bytes)) {
-                return ImageIO.read(in);
+
+            byte id = data.get(data.position());
+            if (id == PNG_SIGNATURE_FIRST_BYTE) {
+                return LEGACY_PNG_CODEC.decode(data);
+            }
+
+            TileCodec codec = codecs.get(id);
+            if (codec == null) {
+                throw new IOException("Unknown codec: " + id);
             }
+
+            data.get();
+            return codec.decode(data.slice());
+
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -80,4 +166,90 @@ public class BufferedImagePersister extends ByteArrayType {
 
     }
 
+    /**
+     * Return id of codec used to encode data, or -1 if data was not encoded with a codec
+     *
+     * @param buffer
+     * @return
+     */
+    public static byte getCodecId(ByteBuffer buffer) {
+        if (buffer.hasRemaining() == false || buffer.get(buffer.position()) == PNG_SIGNATURE_FIRST_BYTE) {
+            return -1;
+        }
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * Register a codec used to decode images. Codec replace previous codec with the same id.
+     *
+     * @param codec
+     */
+    public static void registerCodec(TileCodec codec) {
+        if (codec.getId() == PNG_SIGNATURE_FIRST_BYTE) {
+            throw new IllegalArgumentException("Reserved codec id: " + codec.getId());
+        }
+        codecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * Set codec used to encode new images when no codec is specified. Codec is registered for decoding.
+     * <p>
+     * This setting is global, codec of partials of a store should be set with RenderedPartialStore.setCodec().
+     *
+     * @param codec
+     */
+    public static void setDefaultCodec(TileCodec codec) {
+        registerCodec(codec);
+        defaultCodec = codec;
+    }
+
+    public static TileCodec getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    /**
+     * Return an input stream reading buffer from its position to its limit
+     *
+     * @param buffer
+     * @return
+     */
+    static InputStream toInputStream(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * Input stream reading a byte buffer, e.g: a slice of mapped file
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (buffer.hasRemaining() == false) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
 }
@@ -0,0 +1,238 @@
+package org.remipassmoilesel.cachedpanel;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a partial cache: counters, gauges and latency histograms.
+ * <p>
+ * Metrics are updated from rendering, encoding and writing threads without locks. They can be read with snapshot(), or
+ * with JMX after registerMBean() was called, under name "org.remipassmoilesel.cachedpanel:type=CacheMetrics,name=..."
+ */
+public class CacheMetrics implements CacheMetricsMXBean {
+
+    public static final String JMX_DOMAIN = "org.remipassmoilesel.cachedpanel";
+
+    /**
+     * Counters
+     */
+    public static final String RENDERED = "partials.rendered";
+    public static final String LOADED_FROM_DATABASE = "partials.loadedFromDatabase";
+    public static final String ADDED_IN_DATABASE = "partials.addedInDatabase";
+    public static final String REUSED_FROM_MEMORY = "partials.reusedFromMemory";
+    public static final String WRITE_DROPPED = "partials.writeDropped";
+    public static final String WRITE_FAILED = "partials.writeFailed";
+    public static final String INVALIDATION_FAILED = "partials.invalidationFailed";
+    public static final String EVICTED = "partials.evicted";
+    public static final String UNIFORM = "partials.uniform";
+    public static final String OFF_HEAP_HITS = "offHeap.hits";
+    public static final String WRITE_BEHIND_HITS = "writeBehind.hits";
+    public static final String STORE_HITS = "store.hits";
+    public static final String HTTP_NOT_MODIFIED = "http.notModified";
+    public static final String HTTP_FAILED = "http.failed";
+
+    /**
+     * Gauges
+     */
+    public static final String SCHEDULER_QUEUE_DEPTH = "scheduler.queueDepth";
+    public static final String IN_FLIGHT = "partials.inFlight";
+    public static final String WRITE_QUEUE_DEPTH = "writeBehind.queueDepth";
+    public static final String MEMORY_CACHE_BYTES = "memoryCache.bytes";
+    public static final String MEMORY_CACHE_SIZE = "memoryCache.size";
+    public static final String OFF_HEAP_BYTES = "offHeap.bytes";
+    public static final String OFF_HEAP_SIZE = "offHeap.size";
+    public static final String STORE_BYTES = "store.bytes";
+    public static final String STORE_LOGICAL_BYTES = "store.logicalBytes";
+    public static final String STORE_FILE_BYTES = "store.fileBytes";
+    public static final String STORE_UNIFORM_SAVED_BYTES = "store.uniformSavedBytes";
+
+    /**
+     * Latency histograms
+     */
+    public static final String RENDER = "render";
+    public static final String ENCODE = "encode";
+    public static final String DB_READ = "db.read";
+    public static final String DB_WRITE = "db.write";
+    public static final String EVICTION = "eviction";
+    public static final String HTTP_REQUEST = "http.request";
+
+    private final ConcurrentHashMap<String, LongAdder> counters;
+    private final ConcurrentHashMap<String, LongSupplier> gauges;
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms;
+
+    /**
+     * Name under which this object is registered in JMX, or null
+     */
+    private ObjectName objectName;
+
+    public CacheMetrics() {
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+
+        for (String name : new String[]{RENDER, ENCODE, DB_READ, DB_WRITE}) {
+            histogram(name);
+        }
+    }
+
+    /**
+     * Return a counter, created if needed
+     *
+     * @param name
+     * @return
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, (n) -> new LongAdder());
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    public void add(String name, long value) {
+        counter(name).add(value);
+    }
+
+    /**
+     * Return a latency histogram, created if needed
+     *
+     * @param name
+     * @return
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, (n) -> new LatencyHistogram());
+    }
+
+    /**
+     * Record time elapsed since specified start in a histogram
+     *
+     * @param name
+     * @param startNs value of System.nanoTime() at start of operation
+     */
+    public void recordSince(String name, long startNs) {
+        histogram(name).recordSince(startNs);
+    }
+
+    /**
+     * Register a gauge, read each time a snapshot is taken
+     *
+     * @param name
+     * @param gauge
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Return a copy of all metrics
+     *
+     * @return
+     */
+    public MetricsSnapshot snapshot() {
+
+        HashMap<String, Long> counterValues = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        HashMap<String, Long> gaugeValues = new HashMap<>();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            try {
+                gaugeValues.put(entry.getKey(), entry.getValue().getAsLong());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        HashMap<String, MetricsSnapshot.Latency> latencies = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            latencies.put(entry.getKey(), new MetricsSnapshot.Latency(entry.getValue()));
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), counterValues, gaugeValues, latencies);
+    }
+
+    /**
+     * Register this object in platform MBean server. If it was already registered under another name, previous name
+     * is unregistered.
+     *
+     * @param name
+     */
+    public synchronized void registerMBean(String name) {
+
+        unregisterMBean();
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName newName = new ObjectName(JMX_DOMAIN + ":type=CacheMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(newName)) {
+                server.unregisterMBean(newName);
+            }
+            server.registerMBean(this, newName);
+            this.objectName = newName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Remove this object from platform MBean server, if it was registered
+     */
+    public synchronized void unregisterMBean() {
+
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return snapshot().getCounters();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return snapshot().getGauges();
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+
+        TreeMap<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, MetricsSnapshot.Latency> entry : snapshot().getLatencies().entrySet()) {
+            MetricsSnapshot.Latency latency = entry.getValue();
+            result.put(entry.getKey() + ".count", (double) latency.getCount());
+            result.put(entry.getKey() + ".mean", latency.getMeanMs());
+            result.put(entry.getKey() + ".p50", latency.getP50Ms());
+            result.put(entry.getKey() + ".p95", latency.getP95Ms());
+            result.put(entry.getKey() + ".p99", latency.getP99Ms());
+            result.put(entry.getKey() + ".max", latency.getMaxMs());
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        return snapshot().toString();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,37 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.util.Map;
+
+/**
+ * JMX view of metrics of a partial cache, registered by CacheMetrics
+ */
+public interface CacheMetricsMXBean {
+
+    /**
+     * Return counters by name
+     *
+     * @return
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Return current value of gauges by name
+     *
+     * @return
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * Return latencies in milliseconds, by name of histogram and statistic, e.g: "render.p95"
+     *
+     * @return
+     */
+    Map<String, Double> getLatencies();
+
+    /**
+     * Return all metrics as text
+     *
+     * @return
+     */
+    String getSummary();
+}
@@ -9,29 +9,49 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
-import java.util.concurrent.locks.ReentrantLock;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Display a map by using a partial cache system
  * <p>
  * Cache is managed by a RenderedPartialFactory. This partial factory produce portions of map and store it in database.
+ * <p>
+ * Partials can also be cached per layer, with one factory per layer. Then partials of each layer are painted in z-order.
  */
 public class CachedMapPane extends JPanel {
 
     /**
-     * Lock to prevent too much thread rendering
+     * Newest viewport requested and not processed yet, or null
      */
-    private final ReentrantLock lock;
+    private final AtomicReference<ViewportRequest> pendingRequest;
 
     /**
-     * Last time of rendering in ms
+     * Process viewport requests one at a time, off EDT
      */
-    private long lastRender = -1;
+    private final ExecutorService refreshExecutor;
 
     /**
-     * Minimum interval between rendering in ms
+     * True if a refresh task is submitted or running
      */
-    private long renderMinIntervalMs = 50;
+    private final AtomicBoolean refreshScheduled;
+
+    /**
+     * Time between a request and start of its processing
+     */
+    private final LatencyHistogram queueLatency;
+
+    /**
+     * Requests replaced by a newer one before being processed
+     */
+    private final AtomicLong coalescedRequests;
 
     /**
      * ULC point to start render map from
@@ -49,22 +69,56 @@ public class CachedMapPane extends JPanel {
     private boolean showGrid = true;
 
     /**
-     * Manage and create partials of a map
+     * Manage and create partials of a map, if partials are not cached per layer
      */
     private RenderedPartialFactory partialFactory;
 
     /**
-     * Current set of partials that have to be painted
+     * Manage and create partials of each layer, if partials are cached per layer
      */
-    private RenderedPartialQueryResult currentPartials;
+    private LayerPartialFactories layerFactories;
+
+    /**
+     * Current sets of partials that have to be painted, one per factory, in z-order
+     */
+    private volatile ArrayList<LayerPartials> currentPartials;
+
+    /**
+     * Repaint areas of partials when they arrive, at most once per frame
+     */
+    private final PartialRepaintCoalescer repaintCoalescer;
 
     public CachedMapPane(MapContent map) {
+        this(map, false);
+    }
+
+    /**
+     * @param map
+     * @param cachePerLayer if true, partials are rendered and cached per layer, then painted in z-order
+     */
+    public CachedMapPane(MapContent map, boolean cachePerLayer) {
 
         setBorder(BorderFactory.createLineBorder(Color.DARK_GRAY));
 
         this.map = map;
-        this.partialFactory = new RenderedPartialFactory(map);
-        this.lock = new ReentrantLock();
+        this.pendingRequest = new AtomicReference<>();
+        this.refreshScheduled = new AtomicBoolean(false);
+        this.queueLatency = new LatencyHistogram();
+        this.coalescedRequests = new AtomicLong(0);
+        this.refreshExecutor = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "map-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        this.repaintCoalescer = new PartialRepaintCoalescer(this, this::getWorldToScreenTransform, PartialRepaintCoalescer.DEFAULT_INTERVAL_MS);
+
+        if (cachePerLayer) {
+            this.layerFactories = new LayerPartialFactories(map, PartialStore.Backend.H2, CachedRenderLab.CACHE_DATABASE_DIR.resolve("layers"));
+            this.layerFactories.setChangeListener(() -> SwingUtilities.invokeLater(this::refreshMap));
+        } else {
+            this.partialFactory = new RenderedPartialFactory(map);
+            this.partialFactory.setInvalidationListener(() -> SwingUtilities.invokeLater(this::refreshMap));
+        }
 
         this.addComponentListener(new RefreshMapComponentListener());
 
@@ -75,34 +129,73 @@ public class CachedMapPane extends JPanel {
         super.paintComponent(g);
 
         // nothing to display
-        if (currentPartials == null) {
+        ArrayList<LayerPartials> currentPartials = this.currentPartials;
+        if (currentPartials == null || currentPartials.isEmpty()) {
             return;
         }
 
         Graphics2D g2d = (Graphics2D) g;
 
-        // get affine transform to set position of partials
-        AffineTransform worldToScreen = currentPartials.getWorldToScreenTransform();
+        // paint layers from bottom to top
+        for (LayerPartials layer : currentPartials) {
+            paintPartials(g2d, layer);
+        }
+
+        // draw maximums bounds asked if necessary
+        if (showGrid) {
+            AffineTransform worldToScreen = currentPartials.get(0).partials.getWorldToScreenTransform();
+            Point2D wp = worldToScreen.transform(worldPosition, null);
+            g2d.setStroke(new BasicStroke(2));
+            g2d.setColor(Color.red);
+            g2d.drawRect((int) wp.getX(), (int) wp.getY(), 3, 3);
+        }
+
+    }
+
+    /**
+     * Paint partials of one factory
+     * <p>
+     * Positions of partials are computed once per query result, and images are already in screen format (see
+     * CompatibleImages), so nothing is allocated or converted here for loaded partials.
+     *
+     * @param g2d
+     * @param layer
+     */
+    private void paintPartials(Graphics2D g2d, LayerPartials layer) {
+
+        ArrayList<RenderedPartial> partials = layer.partials.getPartials();
 
         if (showGrid) {
             g2d.setColor(Color.darkGray);
         }
 
-        // iterate current partials
-        for (RenderedPartial part : currentPartials.getPartials()) {
+        // only a part of component is repaint when partials arrive
+        Rectangle clip = g2d.getClipBounds();
 
-            // compute position of tile on map
-            ReferencedEnvelope ev = part.getEnvelope();
-            Point2D.Double worldPos = new Point2D.Double(ev.getMinX(), ev.getMaxY());
-            Point2D screenPos = worldToScreen.transform(worldPos, null);
+        // iterate current partials
+        for (int i = 0; i < partials.size(); i++) {
 
-            int x = (int) Math.round(screenPos.getX());
-            int y = (int) Math.round(screenPos.getY());
+            RenderedPartial part = partials.get(i);
+            int x = layer.screenX[i];
+            int y = layer.screenY[i];
             int w = part.getRenderedWidth();
             int h = part.getRenderedHeight();
 
-            // draw partial
-            g2d.drawImage(part.getImage(), x, y, w, h, null);
+            if (clip != null && (x >= clip.x + clip.width || y >= clip.y + clip.height || x + w <= clip.x || y + h <= clip.y)) {
+                continue;
+            }
+
+            // draw partial, unscaled if possible, or scaled partials of other zoom levels while it is loading
+            BufferedImage img = part.getImage();
+            if (img != null) {
+                if (img.getWidth() == w && img.getHeight() == h) {
+                    g2d.drawImage(img, x, y, null);
+                } else {
+                    g2d.drawImage(img, x, y, w, h, null);
+                }
+            } else {
+                drawPlaceholders(g2d, layer.factory, part, layer.partials.getWorldToScreenTransform(), new Rectangle(x, y, w, h));
+            }
 
             if (showGrid) {
                 g2d.drawRect(x, y, w, h);
@@ -110,72 +203,150 @@ public class CachedMapPane extends JPanel {
 
         }
 
-        // draw maximums bounds asked if necessary
-        if (showGrid) {
-            Point2D wp = worldToScreen.transform(worldPosition, null);
-            g2d.setStroke(new BasicStroke(2));
-            g2d.setColor(Color.red);
-            g2d.drawRect((int) wp.getX(), (int) wp.getY(), 3, 3);
+    }
+
+    /**
+     * Draw scaled partials of parent or child zoom levels in area of a partial not loaded yet
+     *
+     * @param g2d
+     * @param factory
+     * @param part
+     * @param worldToScreen
+     * @param bounds        screen area of partial
+     */
+    private void drawPlaceholders(Graphics2D g2d, RenderedPartialFactory factory, RenderedPartial part, AffineTransform worldToScreen, Rectangle bounds) {
+
+        Shape clip = g2d.getClip();
+        g2d.clipRect(bounds.x, bounds.y, bounds.width, bounds.height);
+
+        for (RenderedPartial placeholder : factory.getPlaceholders(part)) {
+
+            Image img = placeholder.getImage();
+            if (img == null) {
+                continue;
+            }
+
+            ReferencedEnvelope ev = placeholder.getEnvelope();
+            Point2D ulc = worldToScreen.transform(new Point2D.Double(ev.getMinX(), ev.getMaxY()), null);
+            Point2D brc = worldToScreen.transform(new Point2D.Double(ev.getMaxX(), ev.getMinY()), null);
+
+            int x = (int) Math.round(ulc.getX());
+            int y = (int) Math.round(ulc.getY());
+            g2d.drawImage(img, x, y, (int) Math.round(brc.getX()) - x, (int) Math.round(brc.getY()) - y, null);
         }
 
+        g2d.setClip(clip);
     }
 
     /**
      * Refresh list of partials to display in component
+     * <p>
+     * Current position and size of component are recorded, then partials are searched on a worker thread. If several
+     * refreshes are requested while worker is busy, only the newest one is processed, so the last position is always
+     * displayed.
      */
     public void refreshMap() {
 
-        // check if this method have not been called few milliseconds before
-        if (checkMinimumRenderInterval() == false) {
+        // nothing to display before component is laid out and positioned
+        Dimension dim = getSize();
+        if (dim.width < 1 || dim.height < 1 || worldPosition == null) {
             return;
         }
 
-        // on thread at a time render map for now
-        if (lock.tryLock() == false) {
-            System.err.println("Already rendering !");
-            return;
+        ViewportRequest request = new ViewportRequest(getWorldPosition(), dim);
+        if (pendingRequest.getAndSet(request) != null) {
+            coalescedRequests.incrementAndGet();
         }
 
-        try {
-
-            //System.out.println("Render task launched");
+        if (refreshScheduled.compareAndSet(false, true)) {
+            refreshExecutor.execute(this::processRequests);
+        }
+    }
 
-            // get component size
-            Dimension dim = CachedMapPane.this.getSize();
+    /**
+     * Process pending requests until there is no more
+     */
+    private void processRequests() {
+        while (true) {
+
+            ViewportRequest request;
+            while ((request = pendingRequest.getAndSet(null)) != null) {
+                queueLatency.recordSince(request.requestNs);
+                try {
+                    processRequest(request);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
 
-            if (dim.width < 1 || dim.height < 1) {
-                System.out.println("Screen bounds too small");
+            // a request can be added after last getAndSet(), before flag is reset
+            refreshScheduled.set(false);
+            if (pendingRequest.get() == null || refreshScheduled.compareAndSet(false, true) == false) {
                 return;
             }
+        }
+    }
 
-            // search which partials are necessary to display
-            currentPartials = partialFactory.intersect(worldPosition, dim, map.getCoordinateReferenceSystem(),
-                    () -> {
-                        // each time a partial come, map will be repaint
-                        CachedMapPane.this.repaint();
-                    });
+    /**
+     * Search which partials are necessary to display a viewport, for each factory, then repaint component
+     *
+     * @param request
+     */
+    private void processRequest(ViewportRequest request) {
+
+        ArrayList<LayerPartials> newPartials = new ArrayList<>();
+        for (RenderedPartialFactory factory : getPartialFactories()) {
+            // each time a partial come, its area will be repaint
+            RenderedPartialQueryResult result = factory.intersect(request.worldPosition, request.dimension, map.getCoordinateReferenceSystem(),
+                    repaintCoalescer::partialArrived);
+            if (result != null) {
+                newPartials.add(new LayerPartials(factory, result));
+            }
+        }
+        currentPartials = newPartials;
 
-            // repaint component
-            repaint();
+        // repaint component
+        repaint();
+    }
 
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * Return time between refresh requests and start of their processing
+     *
+     * @return
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
 
+    /**
+     * Return number of refresh requests replaced by a newer one before being processed
+     *
+     * @return
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
     }
 
     /**
-     * Check if a minimum interval of time is respected between rendering operations, to avoid too many calls
+     * Return transform of currently displayed partials, or null
      *
      * @return
      */
-    private boolean checkMinimumRenderInterval() {
-        boolean render = System.currentTimeMillis() - lastRender > renderMinIntervalMs;
-        if (render) {
-            lastRender = System.currentTimeMillis();
+    private AffineTransform getWorldToScreenTransform() {
+        ArrayList<LayerPartials> currentPartials = this.currentPartials;
+        if (currentPartials == null || currentPartials.isEmpty()) {
+            return null;
         }
+        return currentPartials.get(0).partials.getWorldToScreenTransform();
+    }
 
-        return render;
+    /**
+     * Return object that coalesces repaints of arriving partials, to read statistics
+     *
+     * @return
+     */
+    public PartialRepaintCoalescer getRepaintCoalescer() {
+        return repaintCoalescer;
     }
 
     public void initializeMap() {
@@ -206,7 +377,7 @@ public class CachedMapPane extends JPanel {
      * It can be used as a "zoom" value
      */
     public int getPartialSidePx() {
-        return partialFactory.getPartialSidePx();
+        return layerFactories != null ? RenderedPartialFactory.DEFAULT_PARTIAL_SIDE_PX : partialFactory.getPartialSidePx();
     }
 
     /**
@@ -217,7 +388,29 @@ public class CachedMapPane extends JPanel {
      * @param partialSideDg
      */
     public void setPartialSideDg(double partialSideDg) {
-        partialFactory.setPartialSideDg(partialSideDg);
+        if (layerFactories != null) {
+            layerFactories.setZoomLevel((int) Math.round(Math.log(RenderedPartialFactory.ROOT_PARTIAL_SIDE_DG / partialSideDg) / Math.log(2)));
+        } else {
+            partialFactory.setPartialSideDg(partialSideDg);
+        }
+    }
+
+    /**
+     * Set zoom level of map, see RenderedPartialFactory.setZoomLevel()
+     *
+     * @param zoomLevel
+     */
+    public void setZoomLevel(int zoomLevel) {
+        zoomLevel = Math.max(0, Math.min(RenderedPartialFactory.MAX_ZOOM_LEVEL, zoomLevel));
+        if (layerFactories != null) {
+            layerFactories.setZoomLevel(zoomLevel);
+        } else {
+            partialFactory.setZoomLevel(zoomLevel);
+        }
+    }
+
+    public int getZoomLevel() {
+        return layerFactories != null ? layerFactories.getZoomLevel() : partialFactory.getZoomLevel();
     }
 
     /**
@@ -226,7 +419,43 @@ public class CachedMapPane extends JPanel {
      * It can be used as a "zoom" value
      */
     public double getPartialSideDg() {
-        return partialFactory.getPartialSideDg();
+        return RenderedPartialFactory.getSideForZoomLevel(getZoomLevel());
+    }
+
+    /**
+     * Return the factory which produce partials of this component. If partials are cached per layer, return factory of
+     * bottom layer, or null if there is no layer.
+     *
+     * @return
+     */
+    public RenderedPartialFactory getPartialFactory() {
+        if (layerFactories != null) {
+            List<RenderedPartialFactory> factories = layerFactories.getFactories();
+            return factories.isEmpty() ? null : factories.get(0);
+        }
+        return partialFactory;
+    }
+
+    /**
+     * Return all factories which produce partials of this component, in z-order
+     *
+     * @return
+     */
+    public List<RenderedPartialFactory> getPartialFactories() {
+        if (layerFactories != null) {
+            return layerFactories.getFactories();
+        }
+        return Collections.singletonList(partialFactory);
+    }
+
+    /**
+     * Return factories of layers, to configure them (e.g: codec of each layer), or null if partials are not cached per
+     * layer
+     *
+     * @return
+     */
+    public LayerPartialFactories getLayerFactories() {
+        return layerFactories;
     }
 
     /**
@@ -238,6 +467,58 @@ public class CachedMapPane extends JPanel {
         this.showGrid = showGrid;
     }
 
+    /**
+     * Position and size of component when a refresh was requested
+     */
+    private static class ViewportRequest {
+
+        private final Point2D worldPosition;
+        private final Dimension dimension;
+        private final long requestNs;
+
+        ViewportRequest(Point2D worldPosition, Dimension dimension) {
+            this.worldPosition = worldPosition;
+            this.dimension = dimension;
+            this.requestNs = System.nanoTime();
+        }
+    }
+
+    /**
+     * Partials of one factory to paint, with their screen positions
+     */
+    private static class LayerPartials {
+
+        private final RenderedPartialFactory factory;
+        private final RenderedPartialQueryResult partials;
+
+        /**
+         * Screen position of upper left corner of each partial
+         */
+        private final int[] screenX;
+        private final int[] screenY;
+
+        LayerPartials(RenderedPartialFactory factory, RenderedPartialQueryResult partials) {
+            this.factory = factory;
+            this.partials = partials;
+
+            ArrayList<RenderedPartial> list = partials.getPartials();
+            double[] corners = new double[list.size() * 2];
+            for (int i = 0; i < list.size(); i++) {
+                ReferencedEnvelope ev = list.get(i).getEnvelope();
+                corners[i * 2] = ev.getMinX();
+                corners[i * 2 + 1] = ev.getMaxY();
+            }
+            partials.getWorldToScreenTransform().transform(corners, 0, corners, 0, list.size());
+
+            this.screenX = new int[list.size()];
+            this.screenY = new int[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                screenX[i] = (int) Math.round(corners[i * 2]);
+                screenY[i] = (int) Math.round(corners[i * 2 + 1]);
+            }
+        }
+    }
+
     /**
      * Observe this component and refresh map when needed
      */
@@ -43,6 +43,11 @@ public class CachedMapPaneMouseController extends MouseAdapter {
         Point2D p = pane.getWorldPosition();
         pane.setWorldPosition(new Point2D.Double(p.getX() + mx, p.getY() - my));
 
+        // keep pan direction to prefetch partials
+        for (RenderedPartialFactory factory : pane.getPartialFactories()) {
+            factory.getPrefetcher().recordPan(mx, -my);
+        }
+
         pane.refreshMap();
 
         lastPosition = m;
@@ -59,13 +64,10 @@ public class CachedMapPaneMouseController extends MouseAdapter {
     public void mouseWheelMoved(MouseWheelEvent e) {
         super.mouseWheelMoved(e);
 
-        double zoomUnit = 0.3;
-
-        if (e.getWheelRotation() < 0) {
-            zoomUnit = -zoomUnit;
-        }
+        // one zoom level per notch, wheel up zoom in
+        int zoomUnit = e.getWheelRotation() < 0 ? 1 : -1;
 
-        pane.setPartialSideDg(pane.getPartialSideDg() + zoomUnit);
+        pane.setZoomLevel(pane.getZoomLevel() + zoomUnit);
         pane.refreshMap();
     }
 }
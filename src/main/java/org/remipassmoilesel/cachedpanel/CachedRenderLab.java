@@ -8,7 +8,6 @@ import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
 import com.j256.ormlite.stmt.SelectArg;
 import com.j256.ormlite.stmt.Where;
 import com.j256.ormlite.table.TableUtils;
-import org.apache.commons.io.FileUtils;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.ows.Layer;
@@ -45,19 +44,20 @@ import java.util.Timer;
 public class CachedRenderLab {
 
     public static final Path CACHE_DATABASE_DIR = Paths.get("data/renderedPartialsStore/");
+    public static final Path SHAPE_PATH = Paths.get("data/france-communes/communes-20160119.shp");
     private static boolean setupWms = false;
     private static boolean setupShape = true;
     private static boolean showStats = true;
+    private static boolean cachePerLayer = false;
+    private static long DISK_QUOTA_BYTES = 512 * 1024 * 1024;
+    private static long FEATURE_SNAPSHOT_BYTES = FeatureSnapshotSource.DEFAULT_MAX_BYTES;
 
     public static void main(String[] args) throws IOException, ServiceException, FactoryException, SQLException {
 
         //sqlLab();
 
-        FileUtils.deleteDirectory(CACHE_DATABASE_DIR.toFile());
-
         DataPersisterManager.registerDataPersisters(BufferedImagePersister.getSingleton());
 
-        String shapePath = "data/france-communes/communes-20160119.shp";
         String wmsUrl = "http://ows.terrestris.de/osm/service?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetCapabilities";
         int wmsLayerIndex = 0;
 
@@ -79,16 +79,8 @@ public class CachedRenderLab {
 
         if (setupShape == true) {
 
-            // retrieve a shape file and add it to a mapcontent
-            Path shape = Paths.get(shapePath);
-
-            FileDataStore dataStore = FileDataStoreFinder.getDataStore(shape.toFile());
-            SimpleFeatureSource shapeFileSource = dataStore
-                    .getFeatureSource();
-
-            FeatureLayer shapeLayer = new FeatureLayer(shapeFileSource, SLD.createLineStyle(Color.blue, 0.2f));
-
-            mapContent.addLayer(shapeLayer);
+            // retrieve a shape file and add it to a mapcontent, features are rendered from an in memory snapshot
+            mapContent.addLayer(createShapeLayer(SHAPE_PATH, FEATURE_SNAPSHOT_BYTES));
         }
 
         //ReferencedEnvelope start = new ReferencedEnvelope(-2.38d, 0.44d, 48.45d, 49.98d, DefaultGeographicCRS.WGS84);
@@ -100,11 +92,16 @@ public class CachedRenderLab {
 
         SwingUtilities.invokeLater(() -> {
 
-            CachedMapPane pane = new CachedMapPane(mapContent);
+            CachedMapPane pane = new CachedMapPane(mapContent, cachePerLayer);
 
             //pane.setWorldBounds(start);
             pane.setWorldPosition(start);
 
+            // limit size of rendered partials on disk
+            for (RenderedPartialFactory factory : pane.getPartialFactories()) {
+                factory.getStore().setDiskQuota(DISK_QUOTA_BYTES);
+            }
+
             JFrame frame = new JFrame();
             frame.setContentPane(pane);
             frame.setSize(new Dimension(800, 600));
@@ -122,25 +119,114 @@ public class CachedRenderLab {
 
             pane.initializeMap();
 
+            // write pending partials before exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (RenderedPartialFactory factory : pane.getPartialFactories()) {
+                    try {
+                        factory.getStore().close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+
+            if (showStats) {
+                showStats(pane, mapContent);
+            }
+
         });
 
-        if (showStats) {
-
-            Timer timer = new Timer();
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    System.out.println("Rendered / added in db / loaded from db / loaded from memory / waiting for processing: "
-                            + PartialRenderingQueue.getRenderedPartials()
-                            + " / " + RenderedPartialStore.getAddedInDatabase()
-                            + " / " + PartialRenderingQueue.getLoadedFromDatabase()
-                            + " / " + RenderedPartialFactory.getLoadedPartialsReused()
-                            + " / " + PartialRenderingQueue.getWaitingPartialsNumber()
-                    );
-                }
-            }, 1000, 1000);
+    }
 
-        }
+    /**
+     * Retrieve a shape file and create a layer with a simple line style
+     *
+     * @param shape
+     * @return
+     * @throws IOException
+     */
+    public static FeatureLayer createShapeLayer(Path shape) throws IOException {
+
+        FileDataStore dataStore = FileDataStoreFinder.getDataStore(shape.toFile());
+        SimpleFeatureSource shapeFileSource = dataStore
+                .getFeatureSource();
+
+        return new FeatureLayer(shapeFileSource, SLD.createLineStyle(Color.blue, 0.2f));
+    }
+
+    /**
+     * Retrieve a shape file and create a layer with a simple line style, rendered from an in memory snapshot of features
+     *
+     * @param shape
+     * @param snapshotMaxBytes memory budget of snapshot, see FeatureSnapshotSource
+     * @return
+     * @throws IOException
+     */
+    public static FeatureLayer createShapeLayer(Path shape, long snapshotMaxBytes) throws IOException {
+
+        FileDataStore dataStore = FileDataStoreFinder.getDataStore(shape.toFile());
+        FeatureSnapshotSource snapshotSource = new FeatureSnapshotSource(dataStore.getFeatureSource(), snapshotMaxBytes);
+
+        return new FeatureLayer(snapshotSource, SLD.createLineStyle(Color.blue, 0.2f));
+    }
+
+    /**
+     * Print statistics about partial processing every second. If partials are cached per layer, statistics of bottom
+     * layer are printed.
+     *
+     * @param pane
+     * @param mapContent
+     */
+    private static void showStats(CachedMapPane pane, MapContent mapContent) {
+
+        CacheMetrics metrics = pane.getPartialFactory().getMetrics();
+        RenderedPartialMemoryCache memoryCache = pane.getPartialFactory().getStore().getMemoryCache();
+        PartialRenderScheduler scheduler = pane.getPartialFactory().getScheduler();
+        PartialPrefetcher prefetcher = pane.getPartialFactory().getPrefetcher();
+        PartialWriteBehindQueue writeBehind = pane.getPartialFactory().getStore().getWriteBehind();
+        PartialStoreQuota quota = pane.getPartialFactory().getStore().getQuota();
+
+        Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                MetricsSnapshot snapshot = metrics.snapshot();
+                System.out.println("Rendered / added in db / loaded from db / loaded from memory / waiting for processing: "
+                        + snapshot.getCounter(CacheMetrics.RENDERED)
+                        + " / " + snapshot.getCounter(CacheMetrics.ADDED_IN_DATABASE)
+                        + " / " + snapshot.getCounter(CacheMetrics.LOADED_FROM_DATABASE)
+                        + " / " + snapshot.getCounter(CacheMetrics.REUSED_FROM_MEMORY)
+                        + " / " + snapshot.getGauge(CacheMetrics.IN_FLIGHT)
+                );
+                for (String name : new String[]{CacheMetrics.RENDER, CacheMetrics.ENCODE, CacheMetrics.DB_READ, CacheMetrics.DB_WRITE}) {
+                    System.out.println("Latency " + name + ": " + snapshot.getLatency(name));
+                }
+                System.out.println("Scheduler: " + scheduler);
+                System.out.println("Prefetch: " + prefetcher);
+                System.out.println("Write behind: " + writeBehind);
+                System.out.println("Disk quota: " + quota + ", uniform partials: " + snapshot.getCounter(CacheMetrics.UNIFORM));
+                System.out.println("Repaints: " + pane.getRepaintCoalescer());
+                System.out.println("Refresh queue latency: " + new MetricsSnapshot.Latency(pane.getQueueLatency())
+                        + ", coalesced requests: " + pane.getCoalescedRequests());
+                System.out.println("Off heap cache: " + pane.getPartialFactory().getStore().getOffHeapCache());
+                System.out.println("Hit ratios L1 / L2 / L3: "
+                        + String.format("%.2f", snapshot.getHitRatio(CacheMetrics.REUSED_FROM_MEMORY))
+                        + " / " + String.format("%.2f", snapshot.getHitRatio(CacheMetrics.OFF_HEAP_HITS))
+                        + " / " + String.format("%.2f", snapshot.getHitRatio(CacheMetrics.STORE_HITS))
+                        + ", write behind: " + String.format("%.2f", snapshot.getHitRatio(CacheMetrics.WRITE_BEHIND_HITS)));
+                for (org.geotools.map.Layer layer : mapContent.layers()) {
+                    if (layer.getFeatureSource() instanceof FeatureSnapshotSource) {
+                        System.out.println("Features: " + layer.getFeatureSource());
+                    }
+                }
+                System.out.println("Memory cache: " + memoryCache.size() + " images, "
+                        + memoryCache.getCurrentBytes() / 1024 / 1024 + " / " + memoryCache.getMaxBytes() / 1024 / 1024 + " Mb, "
+                        + "hits / misses / evictions: "
+                        + memoryCache.getHits() + " / " + memoryCache.getMisses() + " / " + memoryCache.getEvictions()
+                        + ", loaded partials: " + pane.getPartialFactory().getStore().getLoadedListSize()
+                );
+            }
+        }, 1000, 1000);
 
     }
 
@@ -0,0 +1,64 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Convert images to the format of the default screen, so they can be drawn without conversion at each paint, and
+ * accelerated by Java2D pipeline when possible.
+ * <p>
+ * Translucent compatible images are premultiplied on usual pipelines (X11, D3D, OpenGL). In headless mode, images are
+ * not converted.
+ */
+public class CompatibleImages {
+
+    private static volatile GraphicsConfiguration configuration;
+
+    /**
+     * Return default configuration of screen, or null if headless
+     *
+     * @return
+     */
+    private static GraphicsConfiguration getConfiguration() {
+        if (configuration == null && GraphicsEnvironment.isHeadless() == false) {
+            configuration = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        return configuration;
+    }
+
+    /**
+     * Return true if image can be drawn on screen without conversion
+     *
+     * @param img
+     * @return
+     */
+    public static boolean isCompatible(BufferedImage img) {
+        GraphicsConfiguration gc = getConfiguration();
+        return gc == null || img.getColorModel().equals(gc.getColorModel(Transparency.TRANSLUCENT));
+    }
+
+    /**
+     * Return a translucent copy of image in screen format, or image itself if it is already compatible or if no screen
+     * is available
+     *
+     * @param img
+     * @return
+     */
+    public static BufferedImage toCompatible(BufferedImage img) {
+
+        if (img == null || isCompatible(img)) {
+            return img;
+        }
+
+        BufferedImage result = getConfiguration().createCompatibleImage(img.getWidth(), img.getHeight(), Transparency.TRANSLUCENT);
+        Graphics2D g2d = result.createGraphics();
+        try {
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.drawImage(img, 0, 0, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        return result;
+    }
+}
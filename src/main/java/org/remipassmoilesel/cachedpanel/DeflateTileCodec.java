@@ -0,0 +1,157 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless codec storing raw ARGB pixels compressed with a fast deflate level.
+ * <p>
+ * Encoded data are bigger than PNG, but encoding and decoding are much faster: there is no filtering and no ImageIO
+ * plumbing, pixels are copied directly from and to image raster.
+ * <p>
+ * Format: width (int), height (int), then deflated ARGB pixels, one int per pixel, row by row.
+ */
+public class DeflateTileCodec implements TileCodec {
+
+    public static final byte ID = 2;
+
+    private final int level;
+
+    public DeflateTileCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level deflate level, from 0 (no compression) to 9 (best compression)
+     */
+    public DeflateTileCodec(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "argb-deflate-" + level;
+    }
+
+    @Override
+    public byte[] encode(BufferedImage img) throws IOException {
+
+        int w = img.getWidth();
+        int h = img.getHeight();
+
+        ByteBuffer raw = ByteBuffer.allocate(8 + w * h * 4);
+        raw.putInt(w);
+        raw.putInt(h);
+        raw.asIntBuffer().put(getPixels(img));
+
+        Deflater deflater = new Deflater(level);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream(w * h / 4)) {
+
+            // header is not compressed
+            out.write(raw.array(), 0, 8);
+
+            deflater.setInput(raw.array(), 8, w * h * 4);
+            deflater.finish();
+
+            byte[] buf = new byte[64 * 1024];
+            while (deflater.finished() == false) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public BufferedImage decode(ByteBuffer data) throws IOException {
+
+        int w = data.getInt();
+        int h = data.getInt();
+        if (w < 1 || h < 1) {
+            throw new IOException("Invalid image size: " + w + "x" + h);
+        }
+
+        // inflater needs an array
+        byte[] input;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[length];
+            data.get(input);
+            offset = 0;
+        }
+
+        byte[] raw = new byte[w * h * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, length);
+            int read = 0;
+            while (read < raw.length && inflater.finished() == false) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read < raw.length) {
+                throw new IOException("Truncated image data: " + read + " / " + raw.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+
+        return img;
+    }
+
+    /**
+     * Return ARGB pixels of image. Pixels of TYPE_INT_ARGB images are read directly from raster,
+     * returned array must not be modified.
+     *
+     * @param img
+     * @return
+     */
+    static int[] getPixels(BufferedImage img) {
+
+        int w = img.getWidth();
+        int h = img.getHeight();
+
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB && img.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            if (data.length == w * h) {
+                return data;
+            }
+        }
+
+        return img.getRGB(0, 0, w, h, null, 0, w);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+}
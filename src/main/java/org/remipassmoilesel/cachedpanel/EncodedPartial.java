@@ -0,0 +1,72 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Encoded image of a partial, waiting to be written in a PartialStore
+ * <p>
+ * Stores can share one copy of identical images between partials, by content hash. Small images, such as uniform
+ * images, are cheaper to store directly with their partial.
+ */
+public class EncodedPartial {
+
+    /**
+     * Images smaller than this size are not deduplicated
+     */
+    public static final int DEDUP_MIN_BYTES = 64;
+
+    private final PartialKey key;
+    private final ReferencedEnvelope area;
+    private final byte[] encodedImage;
+
+    public EncodedPartial(PartialKey key, ReferencedEnvelope area, byte[] encodedImage) {
+        this.key = key;
+        this.area = area;
+        this.encodedImage = encodedImage;
+    }
+
+    public PartialKey getKey() {
+        return key;
+    }
+
+    public ReferencedEnvelope getArea() {
+        return area;
+    }
+
+    public byte[] getEncodedImage() {
+        return encodedImage;
+    }
+
+    /**
+     * Return true if stores should share this image with identical images of other partials
+     *
+     * @param encodedImage
+     * @return
+     */
+    public static boolean isShareable(byte[] encodedImage) {
+        return encodedImage.length >= DEDUP_MIN_BYTES;
+    }
+
+    /**
+     * Return SHA-1 of an encoded image, in hexadecimal
+     *
+     * @param encodedImage
+     * @return
+     */
+    public static String contentHash(byte[] encodedImage) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(encodedImage);
+            StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required on all Java platforms
+            throw new IllegalStateException(e);
+        }
+    }
+}
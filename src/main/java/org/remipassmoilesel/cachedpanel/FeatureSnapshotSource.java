@@ -0,0 +1,469 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureListener;
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.data.ResourceInfo;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+
+import java.awt.RenderingHints;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read only, in memory snapshot of a feature source, e.g: a shape file. Features are loaded once and indexed in an
+ * STRtree, then bbox queries of renderers are answered from memory instead of reading and decoding shapes again for
+ * each partial.
+ * <p>
+ * Snapshot is loaded in a background thread on first query, queries are answered by wrapped source until it is ready.
+ * If estimated size of features exceeds memory budget, loading is abandoned and all queries go to wrapped source.
+ * Queries that snapshot cannot answer exactly (reprojection, sort, offset, unknown attributes) also go to wrapped source.
+ * <p>
+ * Snapshot is immutable once published, so it can be queried by several renderers at once. Features returned are shared
+ * between queries and must not be modified. They keep all attributes of schema, even if query requests only some of
+ * them: renderers read attributes by name. Snapshot is dropped when wrapped source notifies a change.
+ */
+public class FeatureSnapshotSource implements SimpleFeatureSource {
+
+    /**
+     * Default memory budget of snapshots, in bytes: half of cache budget, the other half is for decoded images. Several
+     * snapshots should share it.
+     */
+    public static final long DEFAULT_MAX_BYTES = RenderedPartialStore.DEFAULT_CACHE_BUDGET_BYTES / 2;
+
+    /**
+     * Estimated heap size of a feature without its attributes: feature, values array, id, index entry
+     */
+    private static final int FEATURE_OVERHEAD_BYTES = 200;
+
+    /**
+     * Estimated heap size of a coordinate and its reference in geometry
+     */
+    private static final int COORDINATE_BYTES = 48;
+
+    /**
+     * Estimated heap size of a non geometric attribute, strings are counted apart
+     */
+    private static final int ATTRIBUTE_BYTES = 24;
+
+    private final SimpleFeatureSource source;
+    private final long maxBytes;
+
+    /**
+     * Loaded snapshot, or null if not loaded
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * True if snapshot is loading or loaded, or if budget was exceeded
+     */
+    private final AtomicBoolean loadStarted;
+
+    private volatile boolean budgetExceeded;
+
+    /**
+     * Incremented when wrapped source change, a snapshot loaded before a change is not published
+     */
+    private volatile int generation;
+
+    private final FeatureListener changeListener;
+
+    /**
+     * Listeners registered on wrapped source, by listener of this source
+     */
+    private final ConcurrentHashMap<FeatureListener, FeatureListener> listeners;
+
+    private final LongAdder memoryQueries;
+    private final LongAdder sourceQueries;
+
+    public FeatureSnapshotSource(SimpleFeatureSource source) {
+        this(source, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param source
+     * @param maxBytes memory budget of snapshot, in bytes
+     */
+    public FeatureSnapshotSource(SimpleFeatureSource source, long maxBytes) {
+        this.source = source;
+        this.maxBytes = maxBytes;
+        this.snapshot = null;
+        this.loadStarted = new AtomicBoolean(false);
+        this.budgetExceeded = false;
+        this.generation = 0;
+        this.memoryQueries = new LongAdder();
+        this.sourceQueries = new LongAdder();
+        this.listeners = new ConcurrentHashMap<>();
+
+        this.changeListener = (event) -> invalidate();
+        source.addFeatureListener(changeListener);
+    }
+
+    /**
+     * Load snapshot in current thread, if not already loaded. Return true if snapshot is loaded.
+     *
+     * @return
+     */
+    public boolean load() {
+
+        if (snapshot != null) {
+            return true;
+        }
+
+        loadStarted.set(true);
+        int loadedGeneration = generation;
+        long start = System.currentTimeMillis();
+
+        STRtree index = new STRtree();
+        ArrayList<SimpleFeature> features = new ArrayList<>();
+        long bytes = 0;
+
+        try (SimpleFeatureIterator iterator = source.getFeatures().features()) {
+            while (iterator.hasNext()) {
+                SimpleFeature feature = iterator.next();
+
+                bytes += estimateBytes(feature);
+                if (bytes > maxBytes) {
+                    System.err.println("Feature snapshot of " + source.getName() + " exceeds " + maxBytes
+                            + " bytes, features will be read from source");
+                    synchronized (this) {
+                        budgetExceeded = loadedGeneration == generation;
+                    }
+                    return false;
+                }
+
+                features.add(feature);
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (geometry != null) {
+                    index.insert(geometry.getEnvelopeInternal(), feature);
+                }
+            }
+        } catch (IOException e) {
+            // not retried until source changes, queries go to source
+            e.printStackTrace();
+            return false;
+        }
+
+        // build tree before publishing, then it is only read by queries
+        index.build();
+        Snapshot loaded = new Snapshot(index, Collections.unmodifiableList(features), bytes,
+                System.currentTimeMillis() - start);
+
+        synchronized (this) {
+            if (loadedGeneration != generation) {
+                return false;
+            }
+            snapshot = loaded;
+        }
+        return true;
+    }
+
+    /**
+     * Start loading snapshot in a background thread, if not already started
+     */
+    private void loadLater() {
+        if (loadStarted.compareAndSet(false, true)) {
+            Thread t = new Thread(this::load, "feature-snapshot");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Drop snapshot, it will be loaded again on next query
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+            snapshot = null;
+            budgetExceeded = false;
+            loadStarted.set(false);
+        }
+    }
+
+    /**
+     * Return an approximation of heap size of a feature
+     *
+     * @param feature
+     * @return
+     */
+    private static long estimateBytes(SimpleFeature feature) {
+        long result = FEATURE_OVERHEAD_BYTES;
+        for (Object value : feature.getAttributes()) {
+            if (value instanceof Geometry) {
+                result += (long) ((Geometry) value).getNumPoints() * COORDINATE_BYTES;
+            } else if (value instanceof String) {
+                result += 40 + 2 * ((String) value).length();
+            } else {
+                result += ATTRIBUTE_BYTES;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+
+        Snapshot current = snapshot;
+        if (current == null) {
+            if (budgetExceeded == false) {
+                loadLater();
+            }
+            sourceQueries.increment();
+            return source.getFeatures(query);
+        }
+
+        SimpleFeatureType schema = getSchema();
+        if (hasProperties(schema, query) == false || isAnsweredInMemory(query) == false) {
+            sourceQueries.increment();
+            return source.getFeatures(query);
+        }
+
+        Filter filter = query.getFilter() != null ? query.getFilter() : Filter.INCLUDE;
+        int maxFeatures = query.getMaxFeatures();
+
+        // candidates are features intersecting bounds of filter, filter is then evaluated completely
+        List<?> candidates;
+        Envelope bounds = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+        if (bounds == null || Double.isInfinite(bounds.getWidth()) || Double.isInfinite(bounds.getHeight())) {
+            candidates = current.features;
+        } else if (bounds.isNull()) {
+            candidates = Collections.emptyList();
+        } else {
+            candidates = current.index.query(bounds);
+        }
+
+        ArrayList<SimpleFeature> result = new ArrayList<>();
+        for (Object candidate : candidates) {
+            if (result.size() >= maxFeatures) {
+                break;
+            }
+            SimpleFeature feature = (SimpleFeature) candidate;
+            if (filter.evaluate(feature)) {
+                result.add(feature);
+            }
+        }
+
+        memoryQueries.increment();
+        return new ListFeatureCollection(schema, result);
+    }
+
+    /**
+     * Return true if snapshot can answer this query exactly as wrapped source would
+     *
+     * @param query
+     * @return
+     */
+    private static boolean isAnsweredInMemory(Query query) {
+        return query.getCoordinateSystem() == null
+                && query.getCoordinateSystemReproject() == null
+                && (query.getSortBy() == null || query.getSortBy().length == 0)
+                && query.getStartIndex() == null;
+    }
+
+    /**
+     * Return false if query requests an attribute unknown by schema. Features are not retyped for a query requesting less
+     * attributes, shared features are returned.
+     *
+     * @param schema
+     * @param query
+     * @return
+     */
+    private static boolean hasProperties(SimpleFeatureType schema, Query query) {
+
+        if (query.retrieveAllProperties()) {
+            return true;
+        }
+
+        for (String name : query.getPropertyNames()) {
+            if (schema.getDescriptor(name) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Filter filter) throws IOException {
+        return getFeatures(new Query(getSchema().getTypeName(), filter));
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures() throws IOException {
+        return getFeatures(Filter.INCLUDE);
+    }
+
+    /**
+     * Hints of wrapped source are not applied by snapshot, so renderers must apply them themselves
+     *
+     * @return
+     */
+    @Override
+    public Set<RenderingHints.Key> getSupportedHints() {
+        return snapshot != null ? Collections.emptySet() : source.getSupportedHints();
+    }
+
+    @Override
+    public Name getName() {
+        return source.getName();
+    }
+
+    @Override
+    public ResourceInfo getInfo() {
+        return source.getInfo();
+    }
+
+    @Override
+    public DataAccess<SimpleFeatureType, SimpleFeature> getDataStore() {
+        return source.getDataStore();
+    }
+
+    @Override
+    public QueryCapabilities getQueryCapabilities() {
+        return source.getQueryCapabilities();
+    }
+
+    /**
+     * Snapshot is dropped before listener is notified, so features queried by listener are up to date
+     *
+     * @param listener
+     */
+    @Override
+    public void addFeatureListener(FeatureListener listener) {
+        FeatureListener wrapper = (event) -> {
+            invalidate();
+            listener.changed(event);
+        };
+        if (listeners.putIfAbsent(listener, wrapper) == null) {
+            source.addFeatureListener(wrapper);
+        }
+    }
+
+    @Override
+    public void removeFeatureListener(FeatureListener listener) {
+        FeatureListener wrapper = listeners.remove(listener);
+        if (wrapper != null) {
+            source.removeFeatureListener(wrapper);
+        }
+    }
+
+    @Override
+    public SimpleFeatureType getSchema() {
+        return source.getSchema();
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() throws IOException {
+        return source.getBounds();
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds(Query query) throws IOException {
+        return source.getBounds(query);
+    }
+
+    @Override
+    public int getCount(Query query) throws IOException {
+        return source.getCount(query);
+    }
+
+    /**
+     * Stop listening wrapped source and drop snapshot
+     */
+    public void dispose() {
+        source.removeFeatureListener(changeListener);
+        invalidate();
+    }
+
+    public SimpleFeatureSource getSource() {
+        return source;
+    }
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public boolean isBudgetExceeded() {
+        return budgetExceeded;
+    }
+
+    public int getFeatureCount() {
+        Snapshot current = snapshot;
+        return current != null ? current.features.size() : 0;
+    }
+
+    /**
+     * Return estimated heap size of snapshot
+     *
+     * @return
+     */
+    public long getEstimatedBytes() {
+        Snapshot current = snapshot;
+        return current != null ? current.bytes : 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMemoryQueries() {
+        return memoryQueries.sum();
+    }
+
+    public long getSourceQueries() {
+        return sourceQueries.sum();
+    }
+
+    @Override
+    public String toString() {
+        Snapshot current = snapshot;
+        return "FeatureSnapshotSource{" +
+                "name=" + getName() +
+                ", loaded=" + (current != null) +
+                ", budgetExceeded=" + budgetExceeded +
+                ", features=" + (current != null ? current.features.size() : 0) +
+                ", estimatedBytes=" + (current != null ? current.bytes : 0) +
+                ", maxBytes=" + maxBytes +
+                ", loadTimeMs=" + (current != null ? current.loadTimeMs : 0) +
+                ", memoryQueries=" + memoryQueries +
+                ", sourceQueries=" + sourceQueries +
+                '}';
+    }
+
+    /**
+     * Loaded features and their index, never modified after publication
+     */
+    private static class Snapshot {
+
+        private final STRtree index;
+        private final List<SimpleFeature> features;
+        private final long bytes;
+        private final long loadTimeMs;
+
+        Snapshot(STRtree index, List<SimpleFeature> features, long bytes, long loadTimeMs) {
+            this.index = index;
+            this.features = features;
+            this.bytes = bytes;
+            this.loadTimeMs = loadTimeMs;
+        }
+    }
+}
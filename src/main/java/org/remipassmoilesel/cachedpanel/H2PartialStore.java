@@ -0,0 +1,523 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.table.TableUtils;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store partials in a H2 database, one row per partial
+ * <p>
+ * Identical images are stored once in an image table, and referenced by content hash from partial rows. Images without
+ * partials are deleted after partials are deleted or evicted. Small images (e.g: uniform images) stay in partial rows.
+ * <p>
+ * Last access time of each partial is recorded in memory when it is read, or when recordAccess() is called by caches in
+ * front of store, then written in batches with flushAccessTimes(), so reads do not write in database. Least recently
+ * used partials can be deleted with evictLeastRecentlyUsed(). Space of deleted rows is reused by database, but file only
+ * shrinks when store is closed: see getFileBytes().
+ */
+public class H2PartialStore implements PartialStore {
+
+    private final Dao<SerializableRenderedPartial, ?> dao;
+    private final Dao<SerializablePartialImage, String> imageDao;
+    private final Path databasePath;
+    private final JdbcPooledConnectionSource connectionSource;
+
+    /**
+     * Lookup queries by grid address, prepared once per thread because arguments are mutable
+     */
+    private final ThreadLocal<KeyQuery> imageQueries;
+    private final ThreadLocal<KeyQuery> idQueries;
+
+    /**
+     * Access times not written yet
+     */
+    private final ConcurrentHashMap<PartialKey, Long> pendingAccesses;
+
+    /**
+     * Number of partials deleted since store was opened. If not 0, database is compacted on close.
+     */
+    private final AtomicLong evictedPartials;
+
+    /**
+     * Held for reading while partials referencing shared images are written, and for writing while unused images are
+     * deleted, so a shared image cannot be deleted between its lookup and the creation of a partial referencing it.
+     */
+    private final ReentrantReadWriteLock imageLock;
+
+    /**
+     * Number of rows read at once when searching partials to evict
+     */
+    private static final long EVICTION_BATCH_SIZE = 500;
+
+    public H2PartialStore(Path databasePath) throws SQLException {
+
+        this.databasePath = databasePath;
+
+        this.connectionSource = new JdbcPooledConnectionSource("jdbc:h2:file:" + databasePath.toAbsolutePath() + ";DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=TRUE", "", "");
+        connectionSource.setMaxConnectionAgeMillis(5 * 60 * 1000);
+        connectionSource.setTestBeforeGet(true);
+        connectionSource.initialize();
+
+        // create dao object
+        this.dao = DaoManager.createDao(connectionSource, SerializableRenderedPartial.class);
+        this.imageDao = DaoManager.createDao(connectionSource, SerializablePartialImage.class);
+
+        // create tables
+        dropOutdatedTable();
+        TableUtils.createTableIfNotExists(connectionSource, SerializableRenderedPartial.class);
+        TableUtils.createTableIfNotExists(connectionSource, SerializablePartialImage.class);
+
+        this.imageQueries = ThreadLocal.withInitial(() -> new KeyQuery(false));
+        this.idQueries = ThreadLocal.withInitial(() -> new KeyQuery(true));
+        this.pendingAccesses = new ConcurrentHashMap<>();
+        this.evictedPartials = new AtomicLong(0);
+        this.imageLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Partials table created before grid addresses, access tracking, shared images or codec ids have no key, access,
+     * hash or codec columns. Rendered partials are only a cache, so such a table is dropped and created again.
+     *
+     * @throws SQLException
+     */
+    private void dropOutdatedTable() throws SQLException {
+
+        if (dao.isTableExists() == false) {
+            return;
+        }
+
+        try {
+            dao.queryRaw("SELECT " + SerializableRenderedPartial.PARTIAL_FINGERPRINT_FIELD_NAME
+                    + ", " + SerializableRenderedPartial.PARTIAL_LAST_ACCESS_FIELD_NAME
+                    + ", " + SerializableRenderedPartial.PARTIAL_IMAGE_SIZE_FIELD_NAME
+                    + ", " + SerializableRenderedPartial.PARTIAL_IMAGE_HASH_FIELD_NAME
+                    + ", " + SerializableRenderedPartial.PARTIAL_CODEC_FIELD_NAME
+                    + " FROM " + SerializableRenderedPartial.TABLE_NAME + " LIMIT 1").getResults();
+        } catch (SQLException e) {
+            System.err.println("Outdated partial table, dropping it: " + e.getMessage());
+            TableUtils.dropTable(connectionSource, SerializableRenderedPartial.class, true);
+        }
+    }
+
+    @Override
+    public ByteBuffer get(PartialKey key) throws IOException {
+        try {
+            SerializableRenderedPartial result = imageQueries.get().queryForFirst(key);
+            if (result == null) {
+                return null;
+            }
+            recordAccess(key);
+
+            if (result.getImageHash() == null) {
+                return ByteBuffer.wrap(result.getEncodedImage());
+            }
+
+            SerializablePartialImage image = imageDao.queryForId(result.getImageHash());
+            return image != null ? ByteBuffer.wrap(image.getEncodedImage()) : null;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public boolean put(PartialKey key, ReferencedEnvelope area, byte[] encodedImage) throws IOException {
+        try {
+            return putAll(Collections.singletonList(new EncodedPartial(key, area, encodedImage))) > 0;
+        } catch (IOException e) {
+            // unique index violation: partial was already stored by another thread
+            if (contains(key)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Store partials in one transaction, so there is one commit per batch instead of one per partial
+     *
+     * @param partials
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public int putAll(Collection<EncodedPartial> partials) throws IOException {
+        imageLock.readLock().lock();
+        try {
+            return TransactionManager.callInTransaction(connectionSource, () -> {
+
+                // images created in this batch
+                HashSet<String> created = new HashSet<>();
+
+                int stored = 0;
+                for (EncodedPartial part : partials) {
+
+                    // partial was already stored by another thread or another batch
+                    if (idQueries.get().queryForFirst(part.getKey()) != null) {
+                        continue;
+                    }
+
+                    byte[] encoded = part.getEncodedImage();
+                    if (EncodedPartial.isShareable(encoded) == false) {
+                        dao.create(new SerializableRenderedPartial(encoded, part.getArea(), part.getKey()));
+                        stored++;
+                        continue;
+                    }
+
+                    String hash = EncodedPartial.contentHash(encoded);
+                    if (created.contains(hash) == false && imageDao.idExists(hash) == false) {
+                        imageDao.create(new SerializablePartialImage(hash, encoded));
+                        created.add(hash);
+                    }
+
+                    dao.create(new SerializableRenderedPartial(hash, encoded.length, encoded[0], part.getArea(), part.getKey()));
+                    stored++;
+                }
+                return stored;
+            });
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            imageLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(PartialKey key) throws IOException {
+        try {
+            return idQueries.get().queryForFirst(key) != null;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int delete(PartialKeyRange range) throws IOException {
+        try {
+            DeleteBuilder<SerializableRenderedPartial, ?> builder = dao.deleteBuilder();
+            builder.where()
+                    .eq(SerializableRenderedPartial.PARTIAL_LEVEL_FIELD_NAME, range.getLevel())
+                    .and().eq(SerializableRenderedPartial.PARTIAL_CRS_FIELD_NAME, new SelectArg(range.getCrsId()))
+                    .and().eq(SerializableRenderedPartial.PARTIAL_FINGERPRINT_FIELD_NAME, range.getFingerprint())
+                    .and().between(SerializableRenderedPartial.PARTIAL_COL_FIELD_NAME, range.getMinCol(), range.getMaxCol())
+                    .and().between(SerializableRenderedPartial.PARTIAL_ROW_FIELD_NAME, range.getMinRow(), range.getMaxRow());
+            int deleted = builder.delete();
+
+            if (deleted > 0) {
+                deleteUnusedImages();
+            }
+            return deleted;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Delete shared images not referenced by any partial
+     *
+     * @return number of images deleted
+     * @throws SQLException
+     */
+    private int deleteUnusedImages() throws SQLException {
+        imageLock.writeLock().lock();
+        try {
+            return imageDao.executeRaw("DELETE FROM " + SerializablePartialImage.TABLE_NAME + " I WHERE NOT EXISTS (SELECT 1 FROM "
+                    + SerializableRenderedPartial.TABLE_NAME + " P WHERE P." + SerializableRenderedPartial.PARTIAL_IMAGE_HASH_FIELD_NAME
+                    + " = I." + SerializablePartialImage.HASH_FIELD_NAME + ")");
+        } finally {
+            imageLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return size of images stored in partial rows and of shared images
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long getStoredBytes() throws IOException {
+        try {
+            return dao.queryRawValue("SELECT COALESCE(SUM(" + SerializableRenderedPartial.PARTIAL_IMAGE_SIZE_FIELD_NAME + "), 0) FROM "
+                    + SerializableRenderedPartial.TABLE_NAME + " WHERE " + SerializableRenderedPartial.PARTIAL_IMAGE_HASH_FIELD_NAME + " IS NULL")
+                    + imageDao.queryRawValue("SELECT COALESCE(SUM(" + SerializablePartialImage.IMAGE_SIZE_FIELD_NAME + "), 0) FROM "
+                    + SerializablePartialImage.TABLE_NAME);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long getLogicalBytes() throws IOException {
+        try {
+            return dao.queryRawValue("SELECT COALESCE(SUM(" + SerializableRenderedPartial.PARTIAL_IMAGE_SIZE_FIELD_NAME + "), 0) FROM "
+                    + SerializableRenderedPartial.TABLE_NAME);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long getPartialCount() throws IOException {
+        try {
+            return dao.queryRawValue("SELECT COUNT(*) FROM " + SerializableRenderedPartial.TABLE_NAME);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Return number of partials with an image of uniform codec, from codec id recorded when partials are stored
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long getUniformPartialCount() throws IOException {
+        try {
+            return dao.queryRawValue("SELECT COUNT(*) FROM " + SerializableRenderedPartial.TABLE_NAME
+                    + " WHERE " + SerializableRenderedPartial.PARTIAL_CODEC_FIELD_NAME + " = " + UniformTileCodec.ID);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Record access time of a partial, written later with flushAccessTimes(). Partials not stored are ignored at write.
+     *
+     * @param key
+     */
+    @Override
+    public void recordAccess(PartialKey key) {
+        pendingAccesses.put(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Write recorded access times in one transaction
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flushAccessTimes() throws IOException {
+
+        if (pendingAccesses.isEmpty()) {
+            return;
+        }
+
+        HashMap<PartialKey, Long> batch = new HashMap<>(pendingAccesses);
+        try {
+            TransactionManager.callInTransaction(connectionSource, () -> {
+                for (Map.Entry<PartialKey, Long> entry : batch.entrySet()) {
+                    PartialKey key = entry.getKey();
+                    dao.updateRaw("UPDATE " + SerializableRenderedPartial.TABLE_NAME
+                                    + " SET " + SerializableRenderedPartial.PARTIAL_LAST_ACCESS_FIELD_NAME + " = ?"
+                                    + " WHERE " + SerializableRenderedPartial.PARTIAL_LEVEL_FIELD_NAME + " = ?"
+                                    + " AND " + SerializableRenderedPartial.PARTIAL_COL_FIELD_NAME + " = ?"
+                                    + " AND " + SerializableRenderedPartial.PARTIAL_ROW_FIELD_NAME + " = ?"
+                                    + " AND " + SerializableRenderedPartial.PARTIAL_CRS_FIELD_NAME + " = ?"
+                                    + " AND " + SerializableRenderedPartial.PARTIAL_FINGERPRINT_FIELD_NAME + " = ?",
+                            String.valueOf(entry.getValue()), String.valueOf(key.getLevel()), String.valueOf(key.getCol()),
+                            String.valueOf(key.getRow()), key.getCrsId(), String.valueOf(key.getFingerprint()));
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            // keep accesses recorded during write
+            for (Map.Entry<PartialKey, Long> entry : batch.entrySet()) {
+                pendingAccesses.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean isEvictionSupported() {
+        return true;
+    }
+
+    @Override
+    public int evictLeastRecentlyUsed(long maxBytes) throws IOException {
+
+        flushAccessTimes();
+
+        long storedBytes = getStoredBytes();
+        int deleted = 0;
+
+        try {
+            while (storedBytes > maxBytes) {
+
+                // oldest partials first, without images
+                List<SerializableRenderedPartial> oldest = dao.queryBuilder()
+                        .selectColumns(SerializableRenderedPartial.PARTIAL_ID_FIELD_NAME, SerializableRenderedPartial.PARTIAL_IMAGE_SIZE_FIELD_NAME)
+                        .orderBy(SerializableRenderedPartial.PARTIAL_LAST_ACCESS_FIELD_NAME, true)
+                        .limit(EVICTION_BATCH_SIZE)
+                        .query();
+
+                if (oldest.isEmpty()) {
+                    break;
+                }
+
+                // shared images are freed only with their last partial, so freed size is checked after each batch
+                ArrayList<Long> ids = new ArrayList<>();
+                long estimated = storedBytes;
+                for (SerializableRenderedPartial part : oldest) {
+                    ids.add(part.getId());
+                    estimated -= part.getImageSize();
+                    if (estimated <= maxBytes) {
+                        break;
+                    }
+                }
+
+                DeleteBuilder<SerializableRenderedPartial, ?> builder = dao.deleteBuilder();
+                builder.where().in(SerializableRenderedPartial.PARTIAL_ID_FIELD_NAME, ids);
+                deleted += builder.delete();
+
+                deleteUnusedImages();
+                storedBytes = getStoredBytes();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        evictedPartials.addAndGet(deleted);
+        return deleted;
+    }
+
+    /**
+     * Write pending access times, compact database if partials were evicted, then close connections
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+            flushAccessTimes();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // space of deleted rows is reused while database is open, but file only shrinks on compaction
+        if (evictedPartials.get() > 0) {
+            try {
+                dao.executeRaw("SHUTDOWN COMPACT");
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            connectionSource.close();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Return size in bytes of database files on disk. Space of evicted partials is reused by database but is only given
+     * back when store is closed, with a compaction.
+     *
+     * @return
+     */
+    @Override
+    public long getFileBytes() {
+
+        long size = 0;
+        Path directory = databasePath.toAbsolutePath().getParent();
+        String prefix = databasePath.getFileName().toString() + ".";
+        if (directory == null || Files.isDirectory(directory) == false) {
+            return 0;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return size;
+    }
+
+    /**
+     * Return number of partials deleted since store was opened
+     *
+     * @return
+     */
+    public long getEvictedPartials() {
+        return evictedPartials.get();
+    }
+
+    public Path getDatabasePath() {
+        return databasePath;
+    }
+
+    /**
+     * Query of a partial by grid address. Statement is built once and arguments are updated for each query.
+     * <p>
+     * Not thread safe, use one instance per thread.
+     */
+    private class KeyQuery {
+
+        private final SelectArg level = new SelectArg();
+        private final SelectArg col = new SelectArg();
+        private final SelectArg row = new SelectArg();
+        private final SelectArg crs = new SelectArg();
+        private final SelectArg fingerprint = new SelectArg();
+        private final PreparedQuery<SerializableRenderedPartial> query;
+
+        /**
+         * @param idOnly if true, image is not retrieved
+         */
+        KeyQuery(boolean idOnly) {
+            try {
+                QueryBuilder<SerializableRenderedPartial, ?> builder = dao.queryBuilder();
+                if (idOnly) {
+                    builder.selectColumns(SerializableRenderedPartial.PARTIAL_ID_FIELD_NAME);
+                }
+                builder.where()
+                        .eq(SerializableRenderedPartial.PARTIAL_LEVEL_FIELD_NAME, level)
+                        .and().eq(SerializableRenderedPartial.PARTIAL_COL_FIELD_NAME, col)
+                        .and().eq(SerializableRenderedPartial.PARTIAL_ROW_FIELD_NAME, row)
+                        .and().eq(SerializableRenderedPartial.PARTIAL_CRS_FIELD_NAME, crs)
+                        .and().eq(SerializableRenderedPartial.PARTIAL_FINGERPRINT_FIELD_NAME, fingerprint);
+                this.query = builder.prepare();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Unable to prepare partial query: " + e.getMessage(), e);
+            }
+        }
+
+        SerializableRenderedPartial queryForFirst(PartialKey key) throws SQLException {
+            level.setValue(key.getLevel());
+            col.setValue(key.getCol());
+            row.setValue(key.getRow());
+            crs.setValue(key.getCrsId());
+            fingerprint.setValue(key.getFingerprint());
+            return dao.queryForFirst(query);
+        }
+    }
+}
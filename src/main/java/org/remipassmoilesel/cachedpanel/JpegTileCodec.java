@@ -0,0 +1,98 @@
+package org.remipassmoilesel.cachedpanel;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Lossy JPEG codec, for opaque layers only (e.g: WMS base layers).
+ * <p>
+ * Alpha channel is lost: transparent pixels are painted with background color before encoding.
+ */
+public class JpegTileCodec implements TileCodec {
+
+    public static final byte ID = 3;
+
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    private final float quality;
+    private final Color background;
+
+    public JpegTileCodec() {
+        this(DEFAULT_QUALITY, Color.white);
+    }
+
+    /**
+     * @param quality    from 0 (smallest) to 1 (best quality)
+     * @param background color of transparent pixels
+     */
+    public JpegTileCodec(float quality, Color background) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Invalid quality: " + quality);
+        }
+        this.quality = quality;
+        this.background = background;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "jpeg-" + Math.round(quality * 100);
+    }
+
+    @Override
+    public byte[] encode(BufferedImage img) throws IOException {
+
+        // JPEG writer does not support alpha
+        BufferedImage rgb = img;
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+            rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = rgb.createGraphics();
+            g2d.setColor(background);
+            g2d.fillRect(0, 0, img.getWidth(), img.getHeight());
+            g2d.drawImage(img, 0, 0, null);
+            g2d.dispose();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+
+            try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(rgb, null, null), param);
+            }
+
+            return out.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    public BufferedImage decode(ByteBuffer data) throws IOException {
+        try (InputStream in = BufferedImagePersister.toInputStream(data)) {
+            return ImageIO.read(in);
+        }
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+}
@@ -0,0 +1,131 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations, used to compute percentiles.
+ * <p>
+ * Durations are recorded in microseconds, in buckets of logarithmic size: 16 buckets per power of two, so percentiles
+ * have a relative error below 1/16.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder totalUs;
+    private volatile long maxUs;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.totalUs = new LongAdder();
+        this.maxUs = 0;
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param durationNs
+     */
+    public void recordNanos(long durationNs) {
+
+        long us = Math.max(0, TimeUnit.NANOSECONDS.toMicros(durationNs));
+        counts.incrementAndGet(bucketIndex(us));
+        count.increment();
+        totalUs.add(us);
+
+        // maximum does not need to be exact under contention
+        if (us > maxUs) {
+            maxUs = us;
+        }
+    }
+
+    /**
+     * Record time elapsed since specified start
+     *
+     * @param startNs value of System.nanoTime() at start of operation
+     */
+    public void recordSince(long startNs) {
+        recordNanos(System.nanoTime() - startNs);
+    }
+
+    private static int bucketIndex(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Return lowest value in microseconds of a bucket
+     */
+    private static long bucketValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Return approximate percentile in milliseconds, or 0 if nothing was recorded
+     *
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public double getPercentileMs(double percentile) {
+
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100d * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return bucketValue(i) / 1000d;
+            }
+        }
+
+        return maxUs / 1000d;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMs() {
+        long c = count.sum();
+        return c > 0 ? totalUs.sum() / 1000d / c : 0;
+    }
+
+    public double getMaxMs() {
+        return maxUs / 1000d;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + ", p50=" + String.format("%.2f", getPercentileMs(50))
+                + ", p95=" + String.format("%.2f", getPercentileMs(95))
+                + ", p99=" + String.format("%.2f", getPercentileMs(99))
+                + ", max=" + String.format("%.2f", getMaxMs()) + " ms";
+    }
+}
@@ -0,0 +1,299 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.data.FeatureSource;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.map.event.MapLayerListEvent;
+import org.geotools.map.event.MapLayerListListener;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * One partial factory per layer of a map content, in z-order (bottom layer first).
+ * <p>
+ * Each layer is rendered in its own map content, and its partials are kept in their own store, with their own fingerprint
+ * and memory caches. Heap and off heap budgets of caches are shared between layers. Partial jobs of all layers share one scheduler, so layers do not use more threads than processors.
+ * A change of a layer does not invalidate partials of other layers, e.g: a draw layer
+ * can be rendered again without rendering a slow WMS layer.
+ * <p>
+ * Factories follow layers of map content: they are created, reordered and disposed when layers are added, moved or removed.
+ */
+public class LayerPartialFactories implements MapLayerListListener {
+
+    private final MapContent content;
+    private final Path directory;
+    private final PartialStore.Backend backend;
+
+    /**
+     * Sizes of caches, shared between layers
+     */
+    private final long memoryCacheBytes;
+    private final long offHeapCacheBytes;
+
+    /**
+     * Factories by layer
+     */
+    private final HashMap<Layer, RenderedPartialFactory> factories;
+
+    /**
+     * Directory and JMX names of layers, unique among factories
+     */
+    private final HashMap<Layer, String> layerIds;
+
+    /**
+     * Execute partial jobs of all layers
+     */
+    private final PartialRenderScheduler scheduler;
+
+    /**
+     * Factories in z-order, replaced on each change
+     */
+    private volatile List<RenderedPartialFactory> ordered;
+
+    /**
+     * Codecs of layers, layers without codec use default codec
+     */
+    private final HashMap<Layer, TileCodec> codecs;
+
+    /**
+     * Settings applied on new factories
+     */
+    private volatile int zoomLevel;
+    private volatile Runnable changeListener;
+
+    public LayerPartialFactories(MapContent content, PartialStore.Backend backend, Path directory) {
+        this(content, backend, directory, RenderedPartialStore.DEFAULT_MEMORY_CACHE_BYTES, RenderedPartialStore.DEFAULT_OFF_HEAP_CACHE_BYTES);
+    }
+
+    /**
+     * @param content
+     * @param backend
+     * @param directory
+     * @param memoryCacheBytes  size of decoded images caches of all layers
+     * @param offHeapCacheBytes size of encoded images caches of all layers
+     */
+    public LayerPartialFactories(MapContent content, PartialStore.Backend backend, Path directory, long memoryCacheBytes, long offHeapCacheBytes) {
+        this.content = content;
+        this.backend = backend;
+        this.directory = directory;
+        this.memoryCacheBytes = memoryCacheBytes;
+        this.offHeapCacheBytes = offHeapCacheBytes;
+        this.factories = new HashMap<>();
+        this.codecs = new HashMap<>();
+        this.layerIds = new HashMap<>();
+        this.scheduler = new PartialRenderScheduler();
+        this.ordered = Collections.emptyList();
+        this.zoomLevel = RenderedPartialFactory.DEFAULT_ZOOM_LEVEL;
+
+        update();
+        content.addMapLayerListListener(this);
+    }
+
+    /**
+     * Create factories of new layers, dispose factories of removed layers and sort factories in z-order
+     */
+    private synchronized void update() {
+
+        List<Layer> layers = content.layers();
+
+        ArrayList<RenderedPartialFactory> newOrder = new ArrayList<>(layers.size());
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            RenderedPartialFactory factory = factories.get(layer);
+            if (factory == null) {
+                factory = createFactory(layer, i);
+                factories.put(layer, factory);
+            }
+            newOrder.add(factory);
+        }
+
+        for (Layer layer : new ArrayList<>(factories.keySet())) {
+            if (layers.contains(layer) == false) {
+                factories.remove(layer).dispose();
+                codecs.remove(layer);
+                layerIds.remove(layer);
+            }
+        }
+
+        // share memory between layers
+        for (RenderedPartialFactory factory : newOrder) {
+            factory.getStore().getMemoryCache().setMaxBytes(memoryCacheBytes / newOrder.size());
+            factory.getStore().getOffHeapCache().setMaxBytes(offHeapCacheBytes / newOrder.size());
+        }
+
+        this.ordered = Collections.unmodifiableList(newOrder);
+
+        fireChange();
+    }
+
+    private void fireChange() {
+        Runnable listener = changeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private RenderedPartialFactory createFactory(Layer layer, int index) {
+
+        // layer is rendered alone
+        MapContent layerContent = new MapContent();
+        layerContent.addLayer(layer);
+
+        // two layers must not open the same store
+        String id = getLayerId(layer, index);
+        for (int i = 2; layerIds.containsValue(id); i++) {
+            id = getLayerId(layer, index) + "-" + i;
+        }
+        layerIds.put(layer, id);
+
+        // off heap cache can only shrink, it is created with whole budget and reduced with other caches in update()
+        RenderedPartialFactory factory = new RenderedPartialFactory(layerContent, backend, directory.resolve(id), scheduler,
+                memoryCacheBytes, offHeapCacheBytes);
+        factory.setZoomLevel(zoomLevel);
+        factory.getStore().setCodec(codecs.get(layer));
+        factory.setInvalidationListener(this::fireChange);
+        factory.getMetrics().registerMBean("layer-" + id);
+        return factory;
+    }
+
+    /**
+     * Return directory and JMX name of a layer, or null if layer is not part of map content. Layers with the same name
+     * get a suffix, e.g: "roads", "roads-2".
+     *
+     * @param layer
+     * @return
+     */
+    public synchronized String getUniqueLayerId(Layer layer) {
+        return layerIds.get(layer);
+    }
+
+    /**
+     * Return a name of layer usable as directory name, stable between executions. Several layers can have the same name,
+     * see getUniqueLayerId().
+     *
+     * @param layer
+     * @param index
+     * @return
+     */
+    public static String getLayerId(Layer layer, int index) {
+
+        String name = layer.getTitle();
+        if (name == null || name.isEmpty()) {
+            FeatureSource<?, ?> source = layer.getFeatureSource();
+            if (source != null && source.getName() != null) {
+                name = source.getName().getURI();
+            }
+        }
+        if (name == null || name.isEmpty()) {
+            name = "layer-" + index;
+        }
+
+        return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    /**
+     * Return factories in z-order, bottom layer first
+     *
+     * @return
+     */
+    public List<RenderedPartialFactory> getFactories() {
+        return ordered;
+    }
+
+    /**
+     * Set codec used to encode new partials of a layer, e.g: JPEG for an opaque base layer while transparent overlays keep
+     * PNG. Codec is kept if layer is not yet part of map content.
+     *
+     * @param layer
+     * @param codec codec, or null to use default codec
+     */
+    public synchronized void setCodec(Layer layer, TileCodec codec) {
+        if (codec != null) {
+            codecs.put(layer, codec);
+        } else {
+            codecs.remove(layer);
+        }
+
+        RenderedPartialFactory factory = factories.get(layer);
+        if (factory != null) {
+            factory.getStore().setCodec(codec);
+        }
+    }
+
+    /**
+     * Set zoom level of all factories
+     *
+     * @param zoomLevel
+     */
+    public void setZoomLevel(int zoomLevel) {
+        this.zoomLevel = zoomLevel;
+        for (RenderedPartialFactory factory : ordered) {
+            factory.setZoomLevel(zoomLevel);
+        }
+    }
+
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * Set an object called when list of factories change, or when partials of a layer are invalidated
+     *
+     * @param changeListener
+     */
+    public void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    @Override
+    public void layerAdded(MapLayerListEvent event) {
+        update();
+    }
+
+    @Override
+    public void layerRemoved(MapLayerListEvent event) {
+        update();
+    }
+
+    @Override
+    public void layerChanged(MapLayerListEvent event) {
+        // handled by watcher of each factory
+    }
+
+    @Override
+    public void layerMoved(MapLayerListEvent event) {
+        update();
+    }
+
+    @Override
+    public void layerPreDispose(MapLayerListEvent event) {
+
+    }
+
+    /**
+     * Stop following map content and dispose all factories
+     */
+    public synchronized void dispose() {
+        content.removeMapLayerListListener(this);
+        for (RenderedPartialFactory factory : factories.values()) {
+            factory.dispose();
+        }
+        factories.clear();
+        layerIds.clear();
+        ordered = Collections.emptyList();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Return scheduler shared by factories of all layers
+     *
+     * @return
+     */
+    public PartialRenderScheduler getScheduler() {
+        return scheduler;
+    }
+}
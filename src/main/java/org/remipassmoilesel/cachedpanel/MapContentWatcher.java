@@ -0,0 +1,191 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.data.FeatureEvent;
+import org.geotools.data.FeatureListener;
+import org.geotools.data.FeatureSource;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.map.StyleLayer;
+import org.geotools.map.event.MapLayerEvent;
+import org.geotools.map.event.MapLayerListEvent;
+import org.geotools.map.event.MapLayerListListener;
+import org.geotools.styling.SLDTransformer;
+import org.geotools.styling.Style;
+
+import javax.xml.transform.TransformerException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watch a map content and keep partials of a factory up to date.
+ * <p>
+ * When layers are added, removed, moved, or when their style or visibility change, a new content fingerprint is computed
+ * and set on factory: partials rendered before are no longer used.
+ * <p>
+ * When features of a layer are edited, only partials intersecting bounds of changes are invalidated.
+ * <p>
+ * Fingerprint depends only on layers and styles (not on object identities), so partials stay valid between two
+ * executions of application.
+ */
+public class MapContentWatcher implements MapLayerListListener {
+
+    private final MapContent content;
+    private final RenderedPartialFactory factory;
+
+    /**
+     * Listeners registered on feature sources, by layer
+     */
+    private final ConcurrentHashMap<Layer, FeatureListener> featureListeners;
+
+    public MapContentWatcher(MapContent content, RenderedPartialFactory factory) {
+        this.content = content;
+        this.factory = factory;
+        this.featureListeners = new ConcurrentHashMap<>();
+
+        for (Layer layer : content.layers()) {
+            watchFeatures(layer);
+        }
+        updateFingerprint();
+
+        content.addMapLayerListListener(this);
+    }
+
+    /**
+     * Compute a fingerprint of layers and styles of a map content
+     *
+     * @param content
+     * @return
+     */
+    public static int computeFingerprint(MapContent content) {
+
+        int result = 1;
+        for (Layer layer : content.layers()) {
+
+            result = 31 * result + layer.getClass().getName().hashCode();
+            result = 31 * result + (layer.getTitle() != null ? layer.getTitle().hashCode() : 0);
+            result = 31 * result + (layer.isVisible() ? 1 : 0);
+
+            FeatureSource<?, ?> source = layer.getFeatureSource();
+            if (source != null && source.getName() != null) {
+                result = 31 * result + source.getName().getURI().hashCode();
+            }
+
+            result = 31 * result + styleFingerprint(layer instanceof StyleLayer ? ((StyleLayer) layer).getStyle() : null);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return a hash of SLD representation of style, stable between executions
+     *
+     * @param style
+     * @return
+     */
+    private static int styleFingerprint(Style style) {
+
+        if (style == null) {
+            return 0;
+        }
+
+        try {
+            return new SLDTransformer().transform(style).hashCode();
+        } catch (TransformerException e) {
+            e.printStackTrace();
+            return style.hashCode();
+        }
+    }
+
+    private void updateFingerprint() {
+        factory.setContentFingerprint(computeFingerprint(content));
+    }
+
+    /**
+     * Listen feature changes of a layer, if layer has features
+     *
+     * @param layer
+     */
+    private void watchFeatures(Layer layer) {
+
+        FeatureSource<?, ?> source = layer.getFeatureSource();
+        if (source == null) {
+            return;
+        }
+
+        FeatureListener listener = (event) -> featuresChanged(layer, event);
+        if (featureListeners.putIfAbsent(layer, listener) == null) {
+            source.addFeatureListener(listener);
+        }
+    }
+
+    private void unwatchFeatures(Layer layer) {
+        FeatureListener listener = featureListeners.remove(layer);
+        if (listener != null && layer.getFeatureSource() != null) {
+            layer.getFeatureSource().removeFeatureListener(listener);
+        }
+    }
+
+    private void featuresChanged(Layer layer, FeatureEvent event) {
+
+        ReferencedEnvelope bounds = event.getBounds();
+
+        // bounds of changes are unknown, invalidate whole layer
+        if (bounds == null || bounds.isEmpty()) {
+            bounds = layer.getBounds();
+        }
+
+        if (bounds == null || bounds.isEmpty()) {
+            updateFingerprint();
+            return;
+        }
+
+        factory.invalidate(layer, bounds);
+    }
+
+    @Override
+    public void layerAdded(MapLayerListEvent event) {
+        watchFeatures(event.getElement());
+        updateFingerprint();
+    }
+
+    @Override
+    public void layerRemoved(MapLayerListEvent event) {
+        unwatchFeatures(event.getElement());
+        updateFingerprint();
+    }
+
+    @Override
+    public void layerChanged(MapLayerListEvent event) {
+
+        // data changes are handled by feature listeners, with bounds of changes
+        MapLayerEvent layerEvent = event.getMapLayerEvent();
+        if (layerEvent != null
+                && layerEvent.getReason() != MapLayerEvent.STYLE_CHANGED
+                && layerEvent.getReason() != MapLayerEvent.VISIBILITY_CHANGED) {
+            return;
+        }
+
+        updateFingerprint();
+    }
+
+    @Override
+    public void layerMoved(MapLayerListEvent event) {
+        updateFingerprint();
+    }
+
+    @Override
+    public void layerPreDispose(MapLayerListEvent event) {
+        unwatchFeatures(event.getElement());
+    }
+
+    /**
+     * Stop watching map content
+     */
+    public void dispose() {
+        content.removeMapLayerListListener(this);
+        for (Layer layer : new ArrayList<>(featureListeners.keySet())) {
+            unwatchFeatures(layer);
+        }
+    }
+}
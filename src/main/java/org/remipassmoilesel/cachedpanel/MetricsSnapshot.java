@@ -0,0 +1,158 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable copy of metrics of a partial cache, taken at a given time
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+    private final Map<String, Latency> latencies;
+
+    public MetricsSnapshot(long timestamp, Map<String, Long> counters, Map<String, Long> gauges, Map<String, Latency> latencies) {
+        this.timestamp = timestamp;
+        this.counters = Collections.unmodifiableMap(new TreeMap<>(counters));
+        this.gauges = Collections.unmodifiableMap(new TreeMap<>(gauges));
+        this.latencies = Collections.unmodifiableMap(new TreeMap<>(latencies));
+    }
+
+    /**
+     * Return time of snapshot, in ms since epoch
+     *
+     * @return
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Return value of a counter, or 0 if counter was never incremented
+     *
+     * @param name
+     * @return
+     */
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Return value of a gauge, or 0 if gauge does not exist
+     *
+     * @param name
+     * @return
+     */
+    public long getGauge(String name) {
+        Long value = gauges.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Return part of partial lookups served by a cache level: REUSED_FROM_MEMORY (L1), OFF_HEAP_HITS (L2) or
+     * STORE_HITS (L3), or by images waiting to be written: WRITE_BEHIND_HITS. Other lookups were rendered. Return 0 if
+     * nothing was looked up.
+     *
+     * @param hitCounter
+     * @return
+     */
+    public double getHitRatio(String hitCounter) {
+        long lookups = getCounter(CacheMetrics.REUSED_FROM_MEMORY) + getCounter(CacheMetrics.OFF_HEAP_HITS)
+                + getCounter(CacheMetrics.WRITE_BEHIND_HITS) + getCounter(CacheMetrics.STORE_HITS)
+                + getCounter(CacheMetrics.RENDERED);
+        return lookups > 0 ? (double) getCounter(hitCounter) / lookups : 0;
+    }
+
+    /**
+     * Return latency statistics of a histogram, or null if histogram does not exist
+     *
+     * @param name
+     * @return
+     */
+    public Latency getLatency(String name) {
+        return latencies.get(name);
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, Latency> getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Counters: ").append(counters).append("\n");
+        builder.append("Gauges: ").append(gauges);
+        for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+            builder.append("\n").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Latency statistics of an operation, in milliseconds
+     */
+    public static class Latency {
+
+        private final long count;
+        private final double meanMs;
+        private final double p50Ms;
+        private final double p95Ms;
+        private final double p99Ms;
+        private final double maxMs;
+
+        public Latency(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.meanMs = histogram.getMeanMs();
+            this.p50Ms = histogram.getPercentileMs(50);
+            this.p95Ms = histogram.getPercentileMs(95);
+            this.p99Ms = histogram.getPercentileMs(99);
+            this.maxMs = histogram.getMaxMs();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMs() {
+            return meanMs;
+        }
+
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        public double getP95Ms() {
+            return p95Ms;
+        }
+
+        public double getP99Ms() {
+            return p99Ms;
+        }
+
+        public double getMaxMs() {
+            return maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + ", mean=" + String.format("%.2f", meanMs)
+                    + ", p50=" + String.format("%.2f", p50Ms)
+                    + ", p95=" + String.format("%.2f", p95Ms)
+                    + ", p99=" + String.format("%.2f", p99Ms)
+                    + ", max=" + String.format("%.2f", maxMs) + " ms";
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off heap cache of encoded images, limited by a size in bytes.
+ * <p>
+ * Images are appended in direct byte buffers of fixed size (slabs), used as a ring. When last slab is full, the oldest
+ * slab is reused and all its images are evicted at once (FIFO by slab), so there is no fragmentation and no per image
+ * allocation. Only the index is in heap, encoded images do not add pressure on garbage collector.
+ * <p>
+ * Slabs are allocated when they are first used. If direct memory is exhausted, the ring is limited to slabs already
+ * allocated. Images are copied in heap when they are read.
+ * <p>
+ * Number of slabs is fixed at construction: size can be reduced later with setMaxBytes(), e.g: to share a budget between
+ * several caches, but never above size given at construction.
+ */
+public class OffHeapPartialCache {
+
+    /**
+     * Default size of slabs in bytes
+     */
+    public static final int DEFAULT_SLAB_SIZE = 8 * 1024 * 1024;
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+
+    /**
+     * Keys of images written in each slab since it was last reused
+     */
+    private final ArrayList<PartialKey>[] slabKeys;
+
+    /**
+     * Location of cached images
+     */
+    private final HashMap<PartialKey, Entry> entries;
+
+    /**
+     * Protect slabs and index: images are read under read lock and written under write lock
+     */
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Number of slabs allowed by current size, at most number of slabs
+     */
+    private int maxRingSize;
+
+    /**
+     * Number of slabs used in ring, less than allowed slabs if direct memory was exhausted
+     */
+    private int ringSize;
+
+    private int currentSlab;
+    private int position;
+    private long currentBytes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * @param maxBytes maximum size of slabs, at least two slabs are used. If 0 or less, nothing is cached.
+     */
+    public OffHeapPartialCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public OffHeapPartialCache(long maxBytes, int slabSize) {
+        int slabCount = maxBytes > 0 ? (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / slabSize)) : 0;
+
+        this.slabSize = slabSize;
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabKeys = new ArrayList[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            slabKeys[i] = new ArrayList<>();
+        }
+        this.entries = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.maxRingSize = slabCount;
+        this.ringSize = slabCount;
+        this.currentSlab = 0;
+        this.position = 0;
+        this.currentBytes = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+    }
+
+    /**
+     * Return a heap copy of encoded image associated with this key, or null
+     *
+     * @param key
+     * @return
+     */
+    public ByteBuffer get(PartialKey key) {
+        lock.readLock().lock();
+        try {
+
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            byte[] data = new byte[entry.length];
+            ByteBuffer slab = slabs[entry.slab].duplicate();
+            slab.position(entry.offset);
+            slab.get(data);
+
+            hits.incrementAndGet();
+            return ByteBuffer.wrap(data);
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return true if an image is associated with this key, without counting a hit or a miss
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(PartialKey key) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy an encoded image in cache. Images larger than a slab and images already cached are ignored.
+     *
+     * @param key
+     * @param encoded read from position to limit, position is not modified
+     */
+    public void put(PartialKey key, ByteBuffer encoded) {
+
+        int length = encoded.remaining();
+        if (length < 1 || length > slabSize) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+
+            if (ringSize < 1 || entries.containsKey(key)) {
+                return;
+            }
+
+            // current slab is full, reuse next one
+            if (position + length > slabSize) {
+                currentSlab = (currentSlab + 1) % ringSize;
+                position = 0;
+                evictSlab(currentSlab);
+            }
+
+            if (slabs[currentSlab] == null) {
+                try {
+                    slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+                } catch (OutOfMemoryError e) {
+                    // direct memory is limited by -XX:MaxDirectMemorySize and shared with other caches, slabs are
+                    // allocated in order, so ring is limited to slabs before this one
+                    System.err.println("Direct memory exhausted, off heap cache limited to " + currentSlab + " slabs");
+                    ringSize = currentSlab;
+                    currentSlab = 0;
+                    if (ringSize < 1) {
+                        return;
+                    }
+                    evictSlab(currentSlab);
+                }
+            }
+
+            ByteBuffer slab = slabs[currentSlab].duplicate();
+            slab.position(position);
+            slab.put(encoded.duplicate());
+
+            entries.put(key, new Entry(currentSlab, position, length));
+            slabKeys[currentSlab].add(key);
+            position += length;
+            currentBytes += length;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void put(PartialKey key, byte[] encoded) {
+        put(key, ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Remove all images of a slab from index. Must be called under write lock.
+     *
+     * @param slab
+     */
+    private void evictSlab(int slab) {
+        for (PartialKey key : slabKeys[slab]) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.slab == slab) {
+                entries.remove(key);
+                currentBytes -= entry.length;
+                evictions.incrementAndGet();
+            }
+        }
+        slabKeys[slab].clear();
+    }
+
+    /**
+     * Remove a range of images. Their space is reused with their slab.
+     *
+     * @param range
+     */
+    public void invalidate(PartialKeyRange range) {
+        lock.writeLock().lock();
+        try {
+            entries.entrySet().removeIf((e) -> {
+                if (range.contains(e.getKey())) {
+                    currentBytes -= e.getValue().length;
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all images and release slabs
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            for (int i = 0; i < slabs.length; i++) {
+                slabs[i] = null;
+                slabKeys[i].clear();
+            }
+            ringSize = maxRingSize;
+            currentSlab = 0;
+            position = 0;
+            currentBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return size of cached images
+     *
+     * @return
+     */
+    public long getCurrentBytes() {
+        lock.readLock().lock();
+        try {
+            return currentBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return size of allocated slabs
+     *
+     * @return
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (ByteBuffer slab : slabs) {
+                if (slab != null) {
+                    size += slab.capacity();
+                }
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Set maximum size of slabs, at least two slabs are used. If 0 or less, nothing is cached. Size cannot exceed size
+     * given at construction.
+     * <p>
+     * Slabs above new size are released with their images.
+     *
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        int slabCount = maxBytes > 0 ? (int) Math.min(slabs.length, Math.max(2, maxBytes / slabSize)) : 0;
+
+        lock.writeLock().lock();
+        try {
+
+            for (int i = slabCount; i < slabs.length; i++) {
+                evictSlab(i);
+                slabs[i] = null;
+            }
+
+            // next image is written in first slab
+            if (currentSlab >= slabCount) {
+                currentSlab = Math.max(0, slabCount - 1);
+                position = slabSize;
+            }
+
+            // a ring limited by direct memory is not extended
+            ringSize = ringSize < maxRingSize ? Math.min(ringSize, slabCount) : slabCount;
+            maxRingSize = slabCount;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) maxRingSize * slabSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapPartialCache{" +
+                "size=" + size() +
+                ", currentBytes=" + getCurrentBytes() +
+                ", allocatedBytes=" + getAllocatedBytes() +
+                ", maxBytes=" + getMaxBytes() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+
+    /**
+     * Location of an image in slabs
+     */
+    private static class Entry {
+
+        private final int slab;
+        private final int offset;
+        private final int length;
+
+        Entry(int slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,905 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Store partials in append only segment files.
+ * <p>
+ * Encoded images are appended in segments of fixed capacity, each segment is mapped in memory. An index file records
+ * the location of each partial and is replayed at startup. Reading a partial is a slice of mapped memory, without copy.
+ * <p>
+ * Partials are never overwritten: a key can be stored only once. Deleted partials are recorded in index with a tombstone
+ * record, their space in segments is not reused.
+ * <p>
+ * Partials with identical images share the same location in segments. This is safe because segment space is never
+ * reused. Content hash of images is written in index records, so identical images are still shared after store is
+ * opened again. Only the most recently used hashes are kept in memory, see MAX_CONTENT_INDEX_SIZE.
+ * <p>
+ * Accesses are ordered with a logical clock kept in memory. When store is opened, partials are ordered by position of
+ * their last record in index. evictLeastRecentlyUsed() deletes least recently used partials, then compacts segments:
+ * live images of segments mostly deleted are copied at end of last segment, and their files are deleted. Index file is
+ * written again when it contains too many outdated records.
+ * <p>
+ * Segments are unmapped on close: buffers returned by get() must not be used after store is closed. Segments deleted by
+ * compaction are unmapped by garbage collector, so buffers read before compaction stay valid.
+ */
+public class PackFilePartialStore implements PartialStore {
+
+    /**
+     * Default capacity of segments in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Maximum number of content hashes kept in memory to share identical images
+     */
+    public static final int MAX_CONTENT_INDEX_SIZE = 100000;
+
+    /**
+     * Segments with less live images than this part of their size are compacted
+     */
+    public static final double COMPACTION_THRESHOLD = 0.5d;
+
+    /**
+     * Index is written again when it has more records than this number, plus two records per live partial
+     */
+    private static final int MIN_INDEX_RECORDS = 1000;
+
+    private static final String INDEX_FILE_NAME = "partials.idx";
+    private static final String INDEX_TMP_FILE_NAME = "partials.idx.tmp";
+    private static final String SEGMENT_FILE_PREFIX = "partials-";
+    private static final String SEGMENT_FILE_SUFFIX = ".pack";
+
+    /**
+     * Segment number of tombstone records
+     */
+    private static final int DELETED_SEGMENT = -1;
+
+    /**
+     * First int of index files with content hashes. Index files without this header have no hash in records.
+     */
+    private static final int INDEX_MAGIC = 0x50494458;
+    private static final int INDEX_VERSION = 2;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    /**
+     * Location of each stored partial
+     */
+    private final ConcurrentHashMap<PartialKey, Location> index;
+
+    /**
+     * Location of most recently used images, by content hash. Used only under lock of this object.
+     */
+    private final LinkedHashMap<String, Location> contentIndex;
+
+    /**
+     * Last access of each stored partial, as a value of clock
+     */
+    private final ConcurrentHashMap<PartialKey, Long> accessTimes;
+    private final AtomicLong clock;
+
+    /**
+     * Mapped segments, in creation order. Segment numbers increase, but they are not contiguous after a compaction.
+     * Written only under lock of this object.
+     */
+    private volatile Segment[] segments;
+
+    /**
+     * Output of index records. Written only under lock of this object.
+     */
+    private DataOutputStream indexOutput;
+
+    /**
+     * Number of records in index file, including outdated ones. Used only under lock of this object.
+     */
+    private long indexRecords;
+
+    public PackFilePartialStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public PackFilePartialStore(Path directory, int segmentSize) throws IOException {
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<>();
+        this.accessTimes = new ConcurrentHashMap<>();
+        this.clock = new AtomicLong(0);
+        this.contentIndex = new LinkedHashMap<String, Location>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+                return size() > MAX_CONTENT_INDEX_SIZE;
+            }
+        };
+
+        Files.createDirectories(directory);
+
+        // open existing segments
+        HashMap<Integer, Segment> existing = new HashMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                int number = getSegmentNumber(path);
+                if (number >= 0) {
+                    existing.put(number, new Segment(path, number, segmentSize));
+                }
+            }
+        }
+
+        // replay index, index without hashes is written again with hashes
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        boolean withHashes = Files.exists(indexPath) && Files.size(indexPath) > 0 && readIndex(indexPath, existing);
+
+        // segments without live images were emptied by a compaction not completed, they are deleted
+        HashSet<Segment> used = new HashSet<>();
+        for (Location loc : index.values()) {
+            used.add(loc.segment);
+        }
+        ArrayList<Segment> live = new ArrayList<>();
+        for (Segment seg : existing.values()) {
+            if (used.contains(seg)) {
+                live.add(seg);
+            } else {
+                seg.close();
+                Files.deleteIfExists(seg.path);
+            }
+        }
+        live.sort(Comparator.comparingInt((Segment seg) -> seg.number));
+        this.segments = live.toArray(new Segment[live.size()]);
+        contentIndex.values().removeIf((loc) -> used.contains(loc.segment) == false);
+
+        // numbers of deleted segments can be used again, their outdated records must be dropped first
+        if (withHashes && live.size() == existing.size()) {
+            openIndexOutput();
+        } else {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Read all index records. Incomplete records at the end of file (e.g: after a crash) are ignored.
+     *
+     * @param indexPath
+     * @param segments  existing segments, by number
+     * @return false if index was written without content hashes
+     * @throws IOException
+     */
+    private boolean readIndex(Path indexPath, Map<Integer, Segment> segments) throws IOException {
+
+        boolean withHashes;
+        try (DataInputStream data = new DataInputStream(Files.newInputStream(indexPath))) {
+            withHashes = data.readInt() == INDEX_MAGIC && data.readInt() == INDEX_VERSION;
+        } catch (EOFException e) {
+            withHashes = false;
+        }
+
+        try (InputStream in = Files.newInputStream(indexPath);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+
+            if (withHashes) {
+                data.readInt();
+                data.readInt();
+            }
+
+            while (true) {
+                PartialKey key;
+                int segment;
+                int offset;
+                int length;
+                String hash;
+                try {
+                    int level = data.readInt();
+                    int col = data.readInt();
+                    int row = data.readInt();
+                    int fingerprint = data.readInt();
+                    String crsId = data.readUTF();
+                    segment = data.readInt();
+                    offset = data.readInt();
+                    length = data.readInt();
+                    hash = withHashes ? data.readUTF() : "";
+                    key = new PartialKey(level, col, row, crsId, fingerprint);
+                } catch (EOFException e) {
+                    break;
+                }
+                indexRecords++;
+
+                // partial was deleted
+                if (segment == DELETED_SEGMENT) {
+                    index.remove(key);
+                    accessTimes.remove(key);
+                    continue;
+                }
+
+                // segment was lost, ignore record
+                Segment seg = segments.get(segment);
+                if (seg == null) {
+                    continue;
+                }
+
+                Location loc = new Location(seg, offset, length);
+                index.put(key, loc);
+                accessTimes.put(key, clock.incrementAndGet());
+                if (hash.isEmpty() == false) {
+                    contentIndex.put(hash, loc);
+                }
+
+                seg.position = Math.max(seg.position, loc.offset + loc.length);
+            }
+        }
+
+        return withHashes;
+    }
+
+    /**
+     * Write a new index file with live partials only, least recently used first, then replace current index file with it.
+     * Content hashes of images are computed again from segments.
+     *
+     * @throws IOException
+     */
+    private void writeIndex() throws IOException {
+
+        if (indexOutput != null) {
+            indexOutput.close();
+        }
+
+        // records are replayed in this order when store is opened
+        HashMap<PartialKey, Long> times = new HashMap<>(accessTimes);
+        ArrayList<Map.Entry<PartialKey, Location>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<PartialKey, Location> entry) -> times.getOrDefault(entry.getKey(), 0L)));
+
+        Path tmpPath = directory.resolve(INDEX_TMP_FILE_NAME);
+        HashMap<Location, String> hashes = new HashMap<>();
+        indexRecords = 0;
+        try (OutputStream out = Files.newOutputStream(tmpPath)) {
+            this.indexOutput = new DataOutputStream(new BufferedOutputStream(out));
+            indexOutput.writeInt(INDEX_MAGIC);
+            indexOutput.writeInt(INDEX_VERSION);
+            for (Map.Entry<PartialKey, Location> entry : entries) {
+                Location loc = entry.getValue();
+                String hash = hashes.get(loc);
+                if (hash == null) {
+                    hash = computeHash(loc);
+                    hashes.put(loc, hash);
+                    if (hash.isEmpty() == false) {
+                        contentIndex.put(hash, loc);
+                    }
+                }
+                writeIndexRecord(entry.getKey(), loc, hash);
+            }
+            indexOutput.flush();
+        }
+        Files.move(tmpPath, directory.resolve(INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        openIndexOutput();
+    }
+
+    private void openIndexOutput() throws IOException {
+        OutputStream out = Files.newOutputStream(directory.resolve(INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.indexOutput = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Return content hash of a stored image, or an empty string if image is not shareable
+     *
+     * @param loc
+     * @return
+     */
+    private static String computeHash(Location loc) {
+        return computeHash(read(loc));
+    }
+
+    private static String computeHash(byte[] data) {
+        return EncodedPartial.isShareable(data) ? EncodedPartial.contentHash(data) : "";
+    }
+
+    /**
+     * Return a copy of a stored image
+     *
+     * @param loc
+     * @return
+     */
+    private static byte[] read(Location loc) {
+        ByteBuffer buffer = loc.segment.slice(loc.offset, loc.length);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    @Override
+    public ByteBuffer get(PartialKey key) throws IOException {
+        Location loc = index.get(key);
+        if (loc == null) {
+            return null;
+        }
+        accessTimes.put(key, clock.incrementAndGet());
+        return loc.segment.slice(loc.offset, loc.length);
+    }
+
+    @Override
+    public void recordAccess(PartialKey key) {
+        if (index.containsKey(key)) {
+            accessTimes.put(key, clock.incrementAndGet());
+        }
+    }
+
+    @Override
+    public synchronized boolean put(PartialKey key, ReferencedEnvelope area, byte[] encodedImage) throws IOException {
+
+        if (index.containsKey(key)) {
+            return false;
+        }
+
+        append(key, encodedImage);
+        indexOutput.flush();
+
+        return true;
+    }
+
+    /**
+     * Store partials under one lock, index records are flushed once
+     *
+     * @param partials
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public synchronized int putAll(Collection<EncodedPartial> partials) throws IOException {
+
+        int stored = 0;
+        for (EncodedPartial part : partials) {
+            if (index.containsKey(part.getKey()) == false) {
+                append(part.getKey(), part.getEncodedImage());
+                stored++;
+            }
+        }
+        indexOutput.flush();
+
+        return stored;
+    }
+
+    /**
+     * Write an encoded image in last segment, create a segment if needed, then write index record. If an identical
+     * image was written before, its location is reused. Index output is not flushed.
+     * <p>
+     * Must be called under lock of this object.
+     *
+     * @param key
+     * @param encodedImage
+     * @throws IOException
+     */
+    private void append(PartialKey key, byte[] encodedImage) throws IOException {
+
+        if (encodedImage.length > segmentSize) {
+            throw new IOException("Partial too large for segment: " + encodedImage.length + " bytes");
+        }
+
+        String hash = EncodedPartial.isShareable(encodedImage) ? EncodedPartial.contentHash(encodedImage) : null;
+        Location shared = hash != null ? contentIndex.get(hash) : null;
+        if (shared != null) {
+            writeIndexRecord(key, shared, hash);
+            index.put(key, shared);
+            accessTimes.put(key, clock.incrementAndGet());
+            return;
+        }
+
+        // write data first, then index record
+        Location loc = write(encodedImage);
+        writeIndexRecord(key, loc, hash != null ? hash : "");
+
+        index.put(key, loc);
+        accessTimes.put(key, clock.incrementAndGet());
+        if (hash != null) {
+            contentIndex.put(hash, loc);
+        }
+    }
+
+    /**
+     * Write data at end of last segment, create a segment if needed, and return its location.
+     * <p>
+     * Must be called under lock of this object.
+     *
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    private Location write(byte[] data) throws IOException {
+
+        Segment[] segs = this.segments;
+        if (segs.length < 1 || segs[segs.length - 1].remaining() < data.length) {
+            int number = segs.length > 0 ? segs[segs.length - 1].number + 1 : 0;
+            Segment[] newSegs = new Segment[segs.length + 1];
+            System.arraycopy(segs, 0, newSegs, 0, segs.length);
+            newSegs[segs.length] = new Segment(getSegmentPath(number), number, segmentSize);
+            this.segments = newSegs;
+            segs = newSegs;
+        }
+
+        Segment last = segs[segs.length - 1];
+        int offset = last.append(data);
+        return new Location(last, offset, data.length);
+    }
+
+    /**
+     * Write a record in index. Index output is not flushed.
+     *
+     * @param key
+     * @param loc  location of image, or null for a tombstone record
+     * @param hash content hash of image, or an empty string
+     * @throws IOException
+     */
+    private void writeIndexRecord(PartialKey key, Location loc, String hash) throws IOException {
+        indexOutput.writeInt(key.getLevel());
+        indexOutput.writeInt(key.getCol());
+        indexOutput.writeInt(key.getRow());
+        indexOutput.writeInt(key.getFingerprint());
+        indexOutput.writeUTF(key.getCrsId());
+        indexOutput.writeInt(loc != null ? loc.segment.number : DELETED_SEGMENT);
+        indexOutput.writeInt(loc != null ? loc.offset : 0);
+        indexOutput.writeInt(loc != null ? loc.length : 0);
+        indexOutput.writeUTF(hash);
+        indexRecords++;
+    }
+
+    @Override
+    public synchronized int delete(PartialKeyRange range) throws IOException {
+
+        ArrayList<PartialKey> deleted = new ArrayList<>();
+        for (PartialKey key : index.keySet()) {
+            if (range.contains(key)) {
+                deleted.add(key);
+            }
+        }
+
+        remove(deleted);
+        return deleted.size();
+    }
+
+    /**
+     * Write tombstone records of partials, then forget them
+     * <p>
+     * Must be called under lock of this object.
+     *
+     * @param keys
+     * @throws IOException
+     */
+    private void remove(Collection<PartialKey> keys) throws IOException {
+        for (PartialKey key : keys) {
+            writeIndexRecord(key, null, "");
+            index.remove(key);
+            accessTimes.remove(key);
+        }
+        indexOutput.flush();
+    }
+
+    /**
+     * Delete least recently used partials until size of live images is under specified size, then compact segments.
+     * Shared images are freed with their last partial.
+     *
+     * @param maxBytes
+     * @return number of partials deleted
+     * @throws IOException
+     */
+    @Override
+    public synchronized int evictLeastRecentlyUsed(long maxBytes) throws IOException {
+
+        long storedBytes = getStoredBytes();
+        if (storedBytes <= maxBytes) {
+            return 0;
+        }
+
+        // number of partials using each location
+        HashMap<Location, Integer> users = new HashMap<>();
+        for (Location loc : index.values()) {
+            users.merge(loc, 1, Integer::sum);
+        }
+
+        // oldest first, access times may change while sorting
+        HashMap<PartialKey, Long> times = new HashMap<>(accessTimes);
+        ArrayList<PartialKey> keys = new ArrayList<>(index.keySet());
+        keys.sort(Comparator.comparingLong((PartialKey key) -> times.getOrDefault(key, 0L)));
+
+        ArrayList<PartialKey> evicted = new ArrayList<>();
+        for (PartialKey key : keys) {
+            if (storedBytes <= maxBytes) {
+                break;
+            }
+            Location loc = index.get(key);
+            evicted.add(key);
+            if (users.merge(loc, -1, Integer::sum) == 0) {
+                storedBytes -= loc.length;
+            }
+        }
+
+        remove(evicted);
+        compact();
+
+        return evicted.size();
+    }
+
+    /**
+     * Copy live images of segments mostly deleted at end of last segment, then delete these segments. Index file is
+     * written again if it has too many outdated records.
+     * <p>
+     * Last segment is never compacted, images are appended to it.
+     *
+     * @return number of deleted segments
+     * @throws IOException
+     */
+    public synchronized int compact() throws IOException {
+
+        Segment[] segs = this.segments;
+        if (segs.length < 2) {
+            return 0;
+        }
+
+        // size of live images of each segment, shared images are counted once
+        HashMap<Segment, Long> liveBytes = new HashMap<>();
+        for (Location loc : new HashSet<>(index.values())) {
+            liveBytes.merge(loc.segment, (long) loc.length, Long::sum);
+        }
+
+        HashSet<Segment> compacted = new HashSet<>();
+        for (int i = 0; i < segs.length - 1; i++) {
+            if (liveBytes.getOrDefault(segs[i], 0L) < segs[i].position * COMPACTION_THRESHOLD) {
+                compacted.add(segs[i]);
+            }
+        }
+        if (compacted.isEmpty()) {
+            return 0;
+        }
+
+        // copy live images, shared images are copied once. Readers use old or new location until old segments are
+        // collected.
+        HashMap<Location, Location> moved = new HashMap<>();
+        HashMap<Location, String> hashes = new HashMap<>();
+        for (Map.Entry<PartialKey, Location> entry : index.entrySet()) {
+            Location loc = entry.getValue();
+            if (compacted.contains(loc.segment) == false) {
+                continue;
+            }
+
+            Location newLoc = moved.get(loc);
+            if (newLoc == null) {
+                byte[] data = read(loc);
+                newLoc = write(data);
+                moved.put(loc, newLoc);
+                hashes.put(newLoc, computeHash(data));
+            }
+
+            writeIndexRecord(entry.getKey(), newLoc, hashes.get(newLoc));
+            index.put(entry.getKey(), newLoc);
+        }
+
+        // copies must be persisted before old images are deleted
+        ArrayList<Segment> remaining = new ArrayList<>();
+        for (Segment seg : this.segments) {
+            if (compacted.contains(seg) == false) {
+                seg.buffer.force();
+                remaining.add(seg);
+            }
+        }
+        indexOutput.flush();
+        this.segments = remaining.toArray(new Segment[remaining.size()]);
+
+        Iterator<Map.Entry<String, Location>> it = contentIndex.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Location> entry = it.next();
+            if (compacted.contains(entry.getValue().segment)) {
+                Location newLoc = moved.get(entry.getValue());
+                if (newLoc != null) {
+                    entry.setValue(newLoc);
+                } else {
+                    it.remove();
+                }
+            }
+        }
+
+        // a segment not deleted now is deleted when store is opened again, it has no live image
+        for (Segment seg : compacted) {
+            seg.release();
+            try {
+                Files.deleteIfExists(seg.path);
+            } catch (IOException e) {
+                System.err.println("Unable to delete segment " + seg.path + ": " + e.getMessage());
+            }
+        }
+
+        if (indexRecords > MIN_INDEX_RECORDS + 2L * index.size()) {
+            writeIndex();
+        }
+
+        return compacted.size();
+    }
+
+    @Override
+    public boolean isEvictionSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean contains(PartialKey key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Close index and segments. Segments are unmapped, buffers returned by get() must not be used anymore.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        indexOutput.close();
+
+        Segment[] segs = this.segments;
+        this.segments = new Segment[0];
+        index.clear();
+        accessTimes.clear();
+        contentIndex.clear();
+
+        for (Segment seg : segs) {
+            seg.close();
+        }
+    }
+
+    /**
+     * Return size of live images, shared images are counted once. Space of deleted images is not counted, it is never
+     * reused in segments.
+     *
+     * @return
+     */
+    @Override
+    public long getStoredBytes() {
+        long size = 0;
+        for (Location loc : new HashSet<>(index.values())) {
+            size += loc.length;
+        }
+        return size;
+    }
+
+    @Override
+    public long getPartialCount() {
+        return index.size();
+    }
+
+    /**
+     * Return number of partials with an image of uniform codec, from codec id of stored images
+     *
+     * @return
+     */
+    @Override
+    public long getUniformPartialCount() {
+        long count = 0;
+        for (Location loc : index.values()) {
+            if (loc.length > 0 && loc.segment.buffer.get(loc.offset) == UniformTileCodec.ID) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return size written in segments, including deleted images. Space of deleted images is never reused, it is given
+     * back when their segment is compacted.
+     *
+     * @return
+     */
+    @Override
+    public synchronized long getFileBytes() {
+        long size = 0;
+        for (Segment seg : segments) {
+            size += seg.position;
+        }
+        return size;
+    }
+
+    @Override
+    public long getLogicalBytes() {
+        long size = 0;
+        for (Location loc : index.values()) {
+            size += loc.length;
+        }
+        return size;
+    }
+
+    /**
+     * Return number of stored partials
+     *
+     * @return
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private Path getSegmentPath(int number) {
+        return directory.resolve(SEGMENT_FILE_PREFIX + String.format("%05d", number) + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * Return number of a segment from its file, or -1 if file is not a segment
+     *
+     * @param path
+     * @return
+     */
+    private static int getSegmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        if (name.startsWith(SEGMENT_FILE_PREFIX) == false || name.endsWith(SEGMENT_FILE_SUFFIX) == false) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Location of a partial in segments. Location references its segment, so a location read before a compaction is
+     * still readable.
+     */
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Location that = (Location) o;
+            return segment.number == that.segment.number &&
+                    offset == that.offset &&
+                    length == that.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * segment.number + offset) + length;
+        }
+    }
+
+    /**
+     * Segment file mapped in memory
+     */
+    private static class Segment {
+
+        private final Path path;
+        private final int number;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Next write position. Written only under lock of store.
+         */
+        private int position;
+
+        Segment(Path path, int number, int size) throws IOException {
+            this.path = path;
+            this.number = number;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.position = 0;
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        /**
+         * Append data, return offset of data in segment
+         *
+         * @param data
+         * @return
+         */
+        int append(byte[] data) {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(position);
+            dup.put(data);
+            int offset = position;
+            position += data.length;
+            return offset;
+        }
+
+        /**
+         * Return a read only view of a part of this segment
+         *
+         * @param offset
+         * @param length
+         * @return
+         */
+        ByteBuffer slice(int offset, int length) {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset);
+            dup.limit(offset + length);
+            return dup.slice().asReadOnlyBuffer();
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+            unmap(buffer);
+        }
+
+        /**
+         * Close file of segment, memory mapping is released by garbage collector
+         *
+         * @throws IOException
+         */
+        void release() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Release memory mapping of a buffer now, instead of when buffer is garbage collected. If cleaner of buffer is not
+     * accessible on this runtime, mapping is released by garbage collector.
+     *
+     * @param buffer
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Java 8, see below
+        } catch (Exception e) {
+            return;
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // mapping is released by garbage collector
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Partials currently loaded or rendered, indexed by grid address.
+ * <p>
+ * The first caller asking for a partial becomes its owner and must complete it. Other callers receive the same future
+ * and are notified when partial is ready, so each partial is processed only once at a time.
+ */
+public class PartialInFlightRegistry {
+
+    private final ConcurrentHashMap<PartialKey, CompletableFuture<RenderedPartial>> inFlight;
+
+    public PartialInFlightRegistry() {
+        this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register interest for a partial. If partial is not in progress, caller become owner of the returned ticket and
+     * have to call complete() or fail() when processing is done.
+     *
+     * @param key
+     * @return
+     */
+    public Ticket acquire(PartialKey key) {
+        CompletableFuture<RenderedPartial> future = new CompletableFuture<>();
+        CompletableFuture<RenderedPartial> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return new Ticket(existing, false);
+        }
+        return new Ticket(future, true);
+    }
+
+    /**
+     * Return future of partial if it is in progress, or null
+     *
+     * @param key
+     * @return
+     */
+    public CompletableFuture<RenderedPartial> get(PartialKey key) {
+        return inFlight.get(key);
+    }
+
+    /**
+     * Return true if partial is loaded or rendered
+     *
+     * @param key
+     * @return
+     */
+    public boolean isInProgress(PartialKey key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * Mark partial as processed and notify all waiting callers
+     *
+     * @param part
+     */
+    public void complete(RenderedPartial part) {
+        CompletableFuture<RenderedPartial> future = inFlight.remove(part.getKey());
+        if (future != null) {
+            future.complete(part);
+        }
+    }
+
+    /**
+     * Mark partial as failed and notify all waiting callers. Partial can be asked again later.
+     *
+     * @param key
+     * @param error
+     */
+    public void fail(PartialKey key, Throwable error) {
+        CompletableFuture<RenderedPartial> future = inFlight.remove(key);
+        if (future != null) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Return number of partials in progress
+     *
+     * @return
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Result of a registration
+     */
+    public static class Ticket {
+
+        private final CompletableFuture<RenderedPartial> future;
+        private final boolean owner;
+
+        private Ticket(CompletableFuture<RenderedPartial> future, boolean owner) {
+            this.future = future;
+            this.owner = owner;
+        }
+
+        /**
+         * Future completed when partial is ready
+         *
+         * @return
+         */
+        public CompletableFuture<RenderedPartial> getFuture() {
+            return future;
+        }
+
+        /**
+         * If true, caller have to process partial
+         *
+         * @return
+         */
+        public boolean isOwner() {
+            return owner;
+        }
+    }
+}
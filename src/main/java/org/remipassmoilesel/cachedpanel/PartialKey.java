@@ -0,0 +1,165 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * Integer address of a partial in the partial grid.
+ * <p>
+ * Partials are fixed size squares aligned on multiples of their side, so a partial can be identified by its side, its column,
+ * its row and its CRS. Using integers avoid floating point comparisons and allow O(1) lookups in hash maps.
+ * <p>
+ * Key contains also a fingerprint of rendered content, in order to distinguish partials of same area rendered with
+ * different layers or styles.
+ * <p>
+ * This object is immutable and can be shared between threads.
+ */
+public class PartialKey {
+
+    /**
+     * Factor used to convert degrees in grid level unit
+     */
+    public static final double LEVEL_FACTOR = 1000000d;
+
+    /**
+     * Grid level: side of partials in millionth of degree
+     */
+    private final int level;
+
+    /**
+     * Column of partial, 0 start at x = 0
+     */
+    private final int col;
+
+    /**
+     * Row of partial, 0 start at y = 0
+     */
+    private final int row;
+
+    /**
+     * Identifier of CRS, see SerializableRenderedPartial.crsToId()
+     */
+    private final String crsId;
+
+    /**
+     * Fingerprint of rendered content
+     */
+    private final int fingerprint;
+
+    private final int hash;
+
+    public PartialKey(int level, int col, int row, String crsId) {
+        this(level, col, row, crsId, 0);
+    }
+
+    public PartialKey(int level, int col, int row, String crsId, int fingerprint) {
+        this.level = level;
+        this.col = col;
+        this.row = row;
+        this.crsId = crsId;
+        this.fingerprint = fingerprint;
+        this.hash = computeHash();
+    }
+
+    /**
+     * Compute the key of a partial from its world area, with an empty fingerprint
+     *
+     * @param env
+     * @return
+     */
+    public static PartialKey fromEnvelope(ReferencedEnvelope env) {
+        return fromEnvelope(env, 0);
+    }
+
+    /**
+     * Compute the key of a partial from its world area
+     *
+     * @param env
+     * @param fingerprint
+     * @return
+     */
+    public static PartialKey fromEnvelope(ReferencedEnvelope env, int fingerprint) {
+        double side = env.getWidth();
+        return new PartialKey(
+                sideToLevel(side),
+                (int) Math.round(env.getMinX() / side),
+                (int) Math.round(env.getMinY() / side),
+                SerializableRenderedPartial.crsToId(env.getCoordinateReferenceSystem()),
+                fingerprint);
+    }
+
+    /**
+     * Convert a side in decimal degrees to a grid level
+     *
+     * @param sideDg
+     * @return
+     */
+    public static int sideToLevel(double sideDg) {
+        return (int) Math.round(sideDg * LEVEL_FACTOR);
+    }
+
+    /**
+     * Return side in decimal degrees of partials of this level
+     *
+     * @return
+     */
+    public double getSideDg() {
+        return level / LEVEL_FACTOR;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getCol() {
+        return col;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public String getCrsId() {
+        return crsId;
+    }
+
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    private int computeHash() {
+        int result = level;
+        result = 31 * result + col;
+        result = 31 * result + row;
+        result = 31 * result + (crsId != null ? crsId.hashCode() : 0);
+        result = 31 * result + fingerprint;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PartialKey that = (PartialKey) o;
+        return level == that.level &&
+                col == that.col &&
+                row == that.row &&
+                fingerprint == that.fingerprint &&
+                (crsId != null ? crsId.equals(that.crsId) : that.crsId == null);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "PartialKey{" +
+                "level=" + level +
+                ", col=" + col +
+                ", row=" + row +
+                ", crsId='" + crsId + '\'' +
+                ", fingerprint=" + fingerprint +
+                '}';
+    }
+}
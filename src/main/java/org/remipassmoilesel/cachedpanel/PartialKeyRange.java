@@ -0,0 +1,124 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * Rectangular range of partials of one grid level, CRS and fingerprint. Bounds are inclusive.
+ * <p>
+ * This object is immutable and can be shared between threads.
+ */
+public class PartialKeyRange {
+
+    private final int level;
+    private final String crsId;
+    private final int fingerprint;
+    private final int minCol;
+    private final int maxCol;
+    private final int minRow;
+    private final int maxRow;
+
+    public PartialKeyRange(int level, String crsId, int fingerprint, int minCol, int maxCol, int minRow, int maxRow) {
+        this.level = level;
+        this.crsId = crsId;
+        this.fingerprint = fingerprint;
+        this.minCol = minCol;
+        this.maxCol = maxCol;
+        this.minRow = minRow;
+        this.maxRow = maxRow;
+    }
+
+    /**
+     * Return range of partials of a level intersecting a world area
+     *
+     * @param area
+     * @param sideDg      side of partials
+     * @param fingerprint
+     * @return
+     */
+    public static PartialKeyRange fromEnvelope(ReferencedEnvelope area, double sideDg, int fingerprint) {
+        return fromEnvelope(area, sideDg, SerializableRenderedPartial.crsToId(area.getCoordinateReferenceSystem()), fingerprint);
+    }
+
+    /**
+     * Return range of partials of a level and CRS intersecting a world area. Area must be expressed in this CRS.
+     *
+     * @param area
+     * @param sideDg      side of partials
+     * @param crsId       identifier of CRS of partials, see SerializableRenderedPartial.crsToId()
+     * @param fingerprint
+     * @return
+     */
+    public static PartialKeyRange fromEnvelope(ReferencedEnvelope area, double sideDg, String crsId, int fingerprint) {
+        return new PartialKeyRange(
+                PartialKey.sideToLevel(sideDg),
+                crsId,
+                fingerprint,
+                (int) Math.floor(area.getMinX() / sideDg),
+                (int) Math.floor(area.getMaxX() / sideDg),
+                (int) Math.floor(area.getMinY() / sideDg),
+                (int) Math.floor(area.getMaxY() / sideDg));
+    }
+
+    /**
+     * Return range containing only one partial
+     *
+     * @param key
+     * @return
+     */
+    public static PartialKeyRange forKey(PartialKey key) {
+        return new PartialKeyRange(key.getLevel(), key.getCrsId(), key.getFingerprint(), key.getCol(), key.getCol(), key.getRow(), key.getRow());
+    }
+
+    /**
+     * Return true if key is in this range
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(PartialKey key) {
+        return key.getLevel() == level
+                && key.getFingerprint() == fingerprint
+                && key.getCol() >= minCol && key.getCol() <= maxCol
+                && key.getRow() >= minRow && key.getRow() <= maxRow
+                && (crsId != null ? crsId.equals(key.getCrsId()) : key.getCrsId() == null);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public String getCrsId() {
+        return crsId;
+    }
+
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getMinCol() {
+        return minCol;
+    }
+
+    public int getMaxCol() {
+        return maxCol;
+    }
+
+    public int getMinRow() {
+        return minRow;
+    }
+
+    public int getMaxRow() {
+        return maxRow;
+    }
+
+    @Override
+    public String toString() {
+        return "PartialKeyRange{" +
+                "level=" + level +
+                ", crsId='" + crsId + '\'' +
+                ", fingerprint=" + fingerprint +
+                ", cols=" + minCol + ".." + maxCol +
+                ", rows=" + minRow + ".." + maxRow +
+                '}';
+    }
+}
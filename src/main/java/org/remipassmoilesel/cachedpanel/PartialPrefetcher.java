@@ -0,0 +1,287 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Choose partials to prepare before they are visible: a ring of partials around viewport, then partials of parent and
+ * child zoom levels.
+ * <p>
+ * Partials of ring are sorted by distance from viewport, partials in the direction of recent pans first.
+ * <p>
+ * Prefetched partials are recorded, in order to know how many of them are displayed later (hit rate).
+ */
+public class PartialPrefetcher {
+
+    /**
+     * Maximum number of prefetched partials recorded for hit rate
+     */
+    private static final int MAX_RECORDED_PARTIALS = 10000;
+
+    /**
+     * Weight of last pan in smoothed pan direction
+     */
+    private static final double PAN_SMOOTHING = 0.3d;
+
+    private volatile boolean enabled = true;
+
+    /**
+     * Number of partials around viewport to prefetch
+     */
+    private volatile int ringSize = 1;
+
+    /**
+     * Maximum number of partials prefetched at each viewport change
+     */
+    private volatile int budget = 24;
+
+    /**
+     * If true, parent and child levels are prefetched
+     */
+    private volatile boolean prefetchLevels = true;
+
+    /**
+     * Smoothed pan direction, in world units
+     */
+    private double panX = 0;
+    private double panY = 0;
+
+    /**
+     * Partials prefetched and not displayed yet
+     */
+    private final Set<PartialKey> prefetched;
+
+    private final AtomicLong scheduledPartials;
+    private final AtomicLong prefetchedPartials;
+    private final AtomicLong hits;
+
+    public PartialPrefetcher() {
+        this.prefetched = ConcurrentHashMap.newKeySet();
+        this.scheduledPartials = new AtomicLong(0);
+        this.prefetchedPartials = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+    }
+
+    /**
+     * Record a move of map, in world units
+     *
+     * @param dx
+     * @param dy
+     */
+    public synchronized void recordPan(double dx, double dy) {
+        panX = panX * (1 - PAN_SMOOTHING) + dx * PAN_SMOOTHING;
+        panY = panY * (1 - PAN_SMOOTHING) + dy * PAN_SMOOTHING;
+    }
+
+    /**
+     * Return area where prefetched partials are still useful
+     *
+     * @param worldBounds
+     * @param sideDg
+     * @return
+     */
+    public ReferencedEnvelope getPrefetchArea(ReferencedEnvelope worldBounds, double sideDg) {
+        double margin = (ringSize + 1) * sideDg;
+        return new ReferencedEnvelope(worldBounds.getMinX() - margin, worldBounds.getMaxX() + margin,
+                worldBounds.getMinY() - margin, worldBounds.getMaxY() + margin, worldBounds.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Return areas of partials to prefetch, most useful first
+     *
+     * @param worldBounds visible area
+     * @param sideDg      side of visible partials
+     * @param minSideDg   minimal side of partials
+     * @return
+     */
+    public ArrayList<ReferencedEnvelope> getCandidates(ReferencedEnvelope worldBounds, double sideDg, double minSideDg) {
+
+        ArrayList<ReferencedEnvelope> result = new ArrayList<>();
+        if (enabled == false) {
+            return result;
+        }
+
+        double centerX = (worldBounds.getMinX() + worldBounds.getMaxX()) / 2;
+        double centerY = (worldBounds.getMinY() + worldBounds.getMaxY()) / 2;
+
+        // ring around visible partials
+        int minCol = (int) Math.floor(worldBounds.getMinX() / sideDg);
+        int maxCol = (int) Math.floor(worldBounds.getMaxX() / sideDg);
+        int minRow = (int) Math.floor(worldBounds.getMinY() / sideDg);
+        int maxRow = (int) Math.floor(worldBounds.getMaxY() / sideDg);
+        int ringSize = this.ringSize;
+
+        ArrayList<ReferencedEnvelope> ring = new ArrayList<>();
+        for (int col = minCol - ringSize; col <= maxCol + ringSize; col++) {
+            for (int row = minRow - ringSize; row <= maxRow + ringSize; row++) {
+                if (col >= minCol && col <= maxCol && row >= minRow && row <= maxRow) {
+                    continue;
+                }
+                ring.add(RenderedPartialFactory.getPartialArea(col, row, sideDg));
+            }
+        }
+
+        double panX;
+        double panY;
+        synchronized (this) {
+            panX = this.panX;
+            panY = this.panY;
+        }
+        double panLength = Math.sqrt(panX * panX + panY * panY);
+
+        ring.sort(Comparator.comparingDouble((area) -> score(area, centerX, centerY, panX, panY, panLength)));
+        result.addAll(ring);
+
+        if (prefetchLevels) {
+
+            // parent level, then child level. There is no parent above root partials.
+            if (sideDg * 2 <= RenderedPartialFactory.ROOT_PARTIAL_SIDE_DG) {
+                addLevel(result, worldBounds, sideDg * 2, centerX, centerY);
+            }
+            if (sideDg / 2 >= minSideDg) {
+                addLevel(result, worldBounds, sideDg / 2, centerX, centerY);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Add partials of a level covering visible area, closest from center first
+     */
+    private void addLevel(ArrayList<ReferencedEnvelope> result, ReferencedEnvelope worldBounds, double sideDg, double centerX, double centerY) {
+
+        ArrayList<ReferencedEnvelope> level = new ArrayList<>();
+        for (int col = (int) Math.floor(worldBounds.getMinX() / sideDg); col <= (int) Math.floor(worldBounds.getMaxX() / sideDg); col++) {
+            for (int row = (int) Math.floor(worldBounds.getMinY() / sideDg); row <= (int) Math.floor(worldBounds.getMaxY() / sideDg); row++) {
+                level.add(RenderedPartialFactory.getPartialArea(col, row, sideDg));
+            }
+        }
+
+        level.sort(Comparator.comparingDouble((area) -> score(area, centerX, centerY, 0, 0, 0)));
+        result.addAll(level);
+    }
+
+    /**
+     * Return distance between area and center, reduced up to half if area is in pan direction, increased up to half
+     * if area is in opposite direction. Lower is better.
+     */
+    private static double score(ReferencedEnvelope area, double centerX, double centerY, double panX, double panY, double panLength) {
+
+        double dx = (area.getMinX() + area.getMaxX()) / 2 - centerX;
+        double dy = (area.getMinY() + area.getMaxY()) / 2 - centerY;
+        double distance = Math.sqrt(dx * dx + dy * dy);
+
+        if (panLength == 0 || distance == 0) {
+            return distance;
+        }
+
+        double cos = (dx * panX + dy * panY) / (distance * panLength);
+        return distance * (1 - cos / 2);
+    }
+
+    /**
+     * Record that partials were scheduled for prefetch
+     *
+     * @param number
+     */
+    void scheduled(int number) {
+        scheduledPartials.addAndGet(number);
+    }
+
+    /**
+     * Record a prefetched partial, ready to be displayed
+     *
+     * @param part
+     */
+    void prefetched(RenderedPartial part) {
+        prefetchedPartials.incrementAndGet();
+        if (prefetched.size() >= MAX_RECORDED_PARTIALS) {
+            prefetched.clear();
+        }
+        prefetched.add(part.getKey());
+    }
+
+    /**
+     * Record that a partial was displayed from memory. If it was prefetched, this is a hit.
+     *
+     * @param key
+     */
+    void displayed(PartialKey key) {
+        if (prefetched.remove(key)) {
+            hits.incrementAndGet();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public void setBudget(int budget) {
+        this.budget = budget;
+    }
+
+    public boolean isPrefetchLevels() {
+        return prefetchLevels;
+    }
+
+    public void setPrefetchLevels(boolean prefetchLevels) {
+        this.prefetchLevels = prefetchLevels;
+    }
+
+    public long getScheduledPartials() {
+        return scheduledPartials.get();
+    }
+
+    public long getPrefetchedPartials() {
+        return prefetchedPartials.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return part of prefetched partials displayed later
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long prefetched = prefetchedPartials.get();
+        return prefetched > 0 ? (double) hits.get() / prefetched : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PartialPrefetcher{" +
+                "enabled=" + enabled +
+                ", ringSize=" + ringSize +
+                ", budget=" + budget +
+                ", scheduled=" + scheduledPartials +
+                ", prefetched=" + prefetchedPartials +
+                ", hits=" + hits +
+                ", hitRate=" + String.format("%.2f", getHitRate()) +
+                '}';
+    }
+}
@@ -0,0 +1,521 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Execute partial jobs in a thread pool, closest partials from viewport center first.
+ * <p>
+ * Jobs of visible partials (same level as viewport, and intersecting it) are executed first. Other jobs (e.g: prefetch)
+ * are executed after, in submission order.
+ * <p>
+ * Each time viewport change, pending jobs are sorted again, and jobs of partials that are no longer in viewport or in
+ * prefetch area are dropped. When queue is full, job with the lowest priority is dropped. Dropped jobs are cancelled, so
+ * their partials can be asked again later. Jobs submitted after shutdown are dropped too.
+ */
+public class PartialRenderScheduler {
+
+    public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 500;
+
+    private final ThreadPoolExecutor executor;
+    private final JobQueue queue;
+
+    /**
+     * Current viewport, jobs of this level intersecting it are visible
+     */
+    private volatile ReferencedEnvelope viewport;
+
+    /**
+     * Area around viewport where jobs are still useful, jobs outside of it are obsolete
+     */
+    private volatile ReferencedEnvelope prefetchArea;
+
+    /**
+     * Grid level of viewport
+     */
+    private volatile int viewportLevel;
+
+    /**
+     * Maximum number of pending jobs. Farthest jobs are dropped first.
+     */
+    private volatile int maxQueueDepth;
+
+    /**
+     * Used to keep submission order of jobs with the same priority
+     */
+    private final AtomicLong sequence;
+
+    private final AtomicLong droppedJobs;
+    private final AtomicLong executedJobs;
+
+    public PartialRenderScheduler() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    public PartialRenderScheduler(int poolSize, int maxQueueDepth) {
+
+        this.queue = new JobQueue();
+        this.sequence = new AtomicLong(0);
+        this.droppedJobs = new AtomicLong(0);
+        this.executedJobs = new AtomicLong(0);
+        this.maxQueueDepth = maxQueueDepth;
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS, queue, (r) -> {
+            Thread t = new Thread(r, "partial-render-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, (r, ex) -> drop((Job) r, "Scheduler is shut down"));
+    }
+
+    /**
+     * Set current viewport, without prefetch area. Pending jobs are sorted again and obsolete jobs are dropped.
+     *
+     * @param viewport
+     * @param level
+     */
+    public void setViewport(ReferencedEnvelope viewport, int level) {
+        setViewport(viewport, viewport, level);
+    }
+
+    /**
+     * Set current viewport. Pending jobs are sorted again and obsolete jobs are dropped.
+     *
+     * @param viewport     visible area
+     * @param prefetchArea area around viewport where partials are still useful
+     * @param level        grid level of visible partials
+     */
+    public void setViewport(ReferencedEnvelope viewport, ReferencedEnvelope prefetchArea, int level) {
+        this.viewportLevel = level;
+        this.prefetchArea = prefetchArea;
+        this.viewport = viewport;
+        reorder();
+    }
+
+    /**
+     * Submit a job. Visible jobs are executed in order of distance from viewport center, then other jobs in submission order.
+     * <p>
+     * If queue is full, job with the lowest priority is dropped, possibly this one. If scheduler is shut down, job is
+     * dropped.
+     *
+     * @param key      address of partial, used to compute priority
+     * @param area     area of partial, used to compute priority
+     * @param task     processing of partial
+     * @param onDrop   called with cancellation if job is dropped before execution
+     */
+    public void submit(PartialKey key, ReferencedEnvelope area, Runnable task, DropListener onDrop) {
+        executor.execute(new Job(key.getLevel(), area, task, onDrop, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Sort pending jobs again with current viewport, drop obsolete jobs, and drop lowest priority jobs if queue is too long
+     */
+    private void reorder() {
+        for (Job job : queue.reorder()) {
+            drop(job);
+        }
+    }
+
+    private void drop(Job job) {
+        drop(job, "Partial is out of viewport");
+    }
+
+    private void drop(Job job, String reason) {
+        droppedJobs.incrementAndGet();
+        if (job.onDrop != null) {
+            job.onDrop.dropped(new CancellationException(reason));
+        }
+    }
+
+    /**
+     * Return true if area is outside of current prefetch area
+     *
+     * @param area
+     * @return
+     */
+    private boolean isObsolete(ReferencedEnvelope area) {
+        ReferencedEnvelope prefetchArea = this.prefetchArea;
+        return prefetchArea != null && intersects(area, prefetchArea) == false;
+    }
+
+    /**
+     * Return true if partial is visible in current viewport
+     *
+     * @param level
+     * @param area
+     * @return
+     */
+    private boolean isVisible(int level, ReferencedEnvelope area) {
+        ReferencedEnvelope viewport = this.viewport;
+        return viewport == null || (level == viewportLevel && intersects(area, viewport));
+    }
+
+    /**
+     * Compare coordinates only: partials and viewport can use different but equivalent CRS objects
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private static boolean intersects(ReferencedEnvelope a, ReferencedEnvelope b) {
+        return (a.getMaxX() < b.getMinX() || a.getMinX() > b.getMaxX()
+                || a.getMaxY() < b.getMinY() || a.getMinY() > b.getMaxY()) == false;
+    }
+
+    /**
+     * Return squared distance between center of area and center of viewport
+     *
+     * @param area
+     * @return
+     */
+    private double computePriority(ReferencedEnvelope area) {
+        ReferencedEnvelope viewport = this.viewport;
+        if (viewport == null) {
+            return 0;
+        }
+        double dx = (area.getMinX() + area.getMaxX()) / 2 - (viewport.getMinX() + viewport.getMaxX()) / 2;
+        double dy = (area.getMinY() + area.getMaxY()) / 2 - (viewport.getMinY() + viewport.getMaxY()) / 2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Change number of threads used to process jobs
+     *
+     * @param poolSize
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(poolSize);
+            executor.setCorePoolSize(poolSize);
+        } else {
+            executor.setCorePoolSize(poolSize);
+            executor.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    public int getPoolSize() {
+        return executor.getCorePoolSize();
+    }
+
+    public void setMaxQueueDepth(int maxQueueDepth) {
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Return number of jobs waiting for a thread
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Return number of jobs currently executed
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getDroppedJobs() {
+        return droppedJobs.get();
+    }
+
+    public long getExecutedJobs() {
+        return executedJobs.get();
+    }
+
+    /**
+     * Stop threads after execution of pending jobs. Jobs submitted later are dropped.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "PartialRenderScheduler{" +
+                "poolSize=" + getPoolSize() +
+                ", active=" + getActiveCount() +
+                ", queueDepth=" + getQueueDepth() +
+                ", maxQueueDepth=" + maxQueueDepth +
+                ", executed=" + executedJobs +
+                ", dropped=" + droppedJobs +
+                '}';
+    }
+
+    /**
+     * Notified when a job is dropped before execution
+     */
+    public interface DropListener {
+        void dropped(CancellationException reason);
+    }
+
+    /**
+     * Pending jobs, sorted by priority. Jobs are added, sorted and trimmed under one lock, so jobs submitted during a
+     * reorder keep their order.
+     * <p>
+     * Dropped jobs are returned or notified outside of lock.
+     */
+    private class JobQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+        private final TreeSet<Job> jobs = new TreeSet<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+
+        /**
+         * Add a job, then drop jobs with the lowest priority while queue is too long. Always return true.
+         *
+         * @param r
+         * @return
+         */
+        @Override
+        public boolean offer(Runnable r) {
+            ArrayList<Job> dropped = new ArrayList<>();
+            lock.lock();
+            try {
+                jobs.add((Job) r);
+                trim(dropped);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            for (Job job : dropped) {
+                drop(job);
+            }
+            return true;
+        }
+
+        /**
+         * Create jobs again with current viewport, then return obsolete jobs and jobs over maximum depth, removed from queue
+         *
+         * @return
+         */
+        ArrayList<Job> reorder() {
+            ArrayList<Job> dropped = new ArrayList<>();
+            lock.lock();
+            try {
+                ArrayList<Job> pending = new ArrayList<>(jobs);
+                jobs.clear();
+                for (Job job : pending) {
+                    if (isObsolete(job.area)) {
+                        dropped.add(job);
+                    } else {
+                        jobs.add(new Job(job.level, job.area, job.task, job.onDrop, job.sequence));
+                    }
+                }
+                trim(dropped);
+            } finally {
+                lock.unlock();
+            }
+            return dropped;
+        }
+
+        /**
+         * Remove jobs with the lowest priority until queue is not too long. Must be called under lock.
+         *
+         * @param dropped
+         */
+        private void trim(ArrayList<Job> dropped) {
+            while (jobs.size() > Math.max(0, maxQueueDepth)) {
+                dropped.add(jobs.pollLast());
+            }
+        }
+
+        @Override
+        public void put(Runnable r) {
+            offer(r);
+        }
+
+        @Override
+        public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+            return offer(r);
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (jobs.isEmpty()) {
+                    notEmpty.await();
+                }
+                return jobs.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (jobs.isEmpty()) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return jobs.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable poll() {
+            lock.lock();
+            try {
+                return jobs.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Runnable peek() {
+            lock.lock();
+            try {
+                return jobs.isEmpty() ? null : jobs.first();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            lock.lock();
+            try {
+                return jobs.remove(o);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return jobs.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            lock.lock();
+            try {
+                int n = 0;
+                while (n < maxElements && jobs.isEmpty() == false) {
+                    c.add(jobs.pollFirst());
+                    n++;
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Return an iterator on a copy of pending jobs
+         *
+         * @return
+         */
+        @Override
+        public Iterator<Runnable> iterator() {
+            lock.lock();
+            try {
+                return new ArrayList<Runnable>(jobs).iterator();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Partial job, visible jobs first ordered by distance from viewport center, then other jobs in submission order.
+     * <p>
+     * Priority is computed at creation, jobs are created again when viewport change.
+     */
+    private class Job implements Runnable, Comparable<Job> {
+
+        private final int level;
+        private final ReferencedEnvelope area;
+        private final Runnable task;
+        private final DropListener onDrop;
+        private final boolean visible;
+        private final double priority;
+        private final long sequence;
+
+        Job(int level, ReferencedEnvelope area, Runnable task, DropListener onDrop, long sequence) {
+            this.level = level;
+            this.area = area;
+            this.task = task;
+            this.onDrop = onDrop;
+            this.visible = isVisible(level, area);
+            this.priority = visible ? computePriority(area) : 0;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+
+            // viewport changed since submission
+            if (isObsolete(area)) {
+                drop(this);
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                executedJobs.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            if (visible != o.visible) {
+                return visible ? -1 : 1;
+            }
+            int c = Double.compare(priority, o.priority);
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
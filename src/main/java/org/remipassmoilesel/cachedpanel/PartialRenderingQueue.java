@@ -1,149 +1,367 @@
 package org.remipassmoilesel.cachedpanel;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.map.MapContent;
-import org.geotools.renderer.lite.StreamingRenderer;
-import org.remipassmoilesel.draw.RendererBuilder;
-import org.remipassmoilesel.utils.ThreadManager;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.sql.SQLException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represent a succession of partial rendering operations
  * <p>
- * Each time a map is render, all partial rendering operations are stored in this object to be executed in a separated thread.
+ * Each time a map is render, all partial rendering operations are stored in this object, then submitted to a
+ * PartialRenderScheduler which execute them in order of distance from viewport center.
  * <p>
- * Each queue have his own StreamingRenderer to avoid multi-threading issues
+ * Jobs lease a renderer from a StreamingRendererPool, so partials of a queue are rendered concurrently
+ * <p>
+ * Partials processed by a queue are registered in a PartialInFlightRegistry, so they are not scheduled twice.
+ * <p>
+ * In metatile mode, partials are grouped by blocks of N x M partials. Each block is rendered in one paint operation, then
+ * sliced. Other partials of block are acquired and rendered too, if they are not already loaded or in progress.
  */
 class PartialRenderingQueue {
 
+    private final StreamingRendererPool renderers;
+    private final RenderedPartialStore store;
+    private final PartialInFlightRegistry inFlight;
+    private final PartialRenderScheduler scheduler;
+    private final int renderedWidthPx;
+    private final int renderedHeightPx;
+
     /**
-     * List of partials which processing is already scheduled
+     * Number of partials rendered together, horizontally and vertically
      */
-    private static final ArrayList<RenderedPartial> partialsInProgress = new ArrayList<>(10);
+    private final int metatileCols;
+    private final int metatileRows;
 
-    private static long loadedFromDatabase = 0;
-    private static long renderedPartials = 0;
+    private ArrayList<RenderedPartial> partials;
 
     /**
-     * Return true if specified partial should be processed soon
-     *
-     * @param area
-     * @return
+     * Partials acquired to complete metatiles, with their completion in in flight registry
      */
-    public static boolean isRenderInProgress(ReferencedEnvelope area) {
-
-        for (RenderedPartial part : partialsInProgress) {
-            if (part.getEnvelope().equals(area)) {
-                return true;
-            }
-        }
+    private final LinkedHashMap<PartialKey, CompletableFuture<RenderedPartial>> neighbours;
 
-        return false;
-    }
+    /**
+     * Partials found in database instead of being rendered
+     */
+    private final Set<PartialKey> loadedFromDatabase;
 
-    public static int getWaitingPartialsNumber(){
-        return partialsInProgress.size();
+    PartialRenderingQueue(StreamingRendererPool renderers, RenderedPartialStore store, PartialInFlightRegistry inFlight, PartialRenderScheduler scheduler,
+                          int renderedWidthPx, int renderedHeightPx) {
+        this(renderers, store, inFlight, scheduler, renderedWidthPx, renderedHeightPx, 1, 1);
     }
 
-    private final StreamingRenderer renderer;
-    private final RenderedPartialStore store;
-    private final Runnable toNotifyWhenPartialsCome;
-    private final int renderedWidthPx;
-    private final int renderedHeightPx;
-
-    private ArrayList<Runnable> tasks;
-
-    PartialRenderingQueue(MapContent content, RenderedPartialStore store, int renderedWidthPx, int renderedHeightPx, Runnable toNotifyWhenPartialsCome) {
-        this.tasks = new ArrayList<>();
+    PartialRenderingQueue(StreamingRendererPool renderers, RenderedPartialStore store, PartialInFlightRegistry inFlight, PartialRenderScheduler scheduler,
+                          int renderedWidthPx, int renderedHeightPx, int metatileCols, int metatileRows) {
+        this.partials = new ArrayList<>();
+        this.neighbours = new LinkedHashMap<>();
+        this.loadedFromDatabase = ConcurrentHashMap.newKeySet();
         this.store = store;
+        this.inFlight = inFlight;
+        this.scheduler = scheduler;
         this.renderedWidthPx = renderedWidthPx;
         this.renderedHeightPx = renderedHeightPx;
-        this.toNotifyWhenPartialsCome = toNotifyWhenPartialsCome;
-
-        this.renderer = RendererBuilder.getRenderer();
-        renderer.setMapContent(content);
+        this.renderers = renderers;
+        this.metatileCols = metatileCols;
+        this.metatileRows = metatileRows;
     }
 
     /**
      * Add a partial to this queue. An image will be added to this partial, extracted from database or a new rendered one if nothing is found.
+     * <p>
+     * Partial must have been acquired in the in flight registry by caller. It is completed in registry when processing is done.
      *
      * @param part
      */
     public void addTask(RenderedPartial part) {
+        this.partials.add(part);
+    }
 
-        partialsInProgress.add(part);
+    /**
+     * Try to load image of partial from database. Return true if partial was found.
+     *
+     * @param part
+     * @return
+     */
+    private boolean loadFromDatabase(RenderedPartial part) {
+
+        boolean exist = false;
+        try {
+            exist = store.updatePartialFromDatabase(part);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (exist == true) {
+            store.getMetrics().increment(CacheMetrics.LOADED_FROM_DATABASE);
+            loadedFromDatabase.add(part.getKey());
+        }
 
-        this.tasks.add(() -> {
+        return exist;
+    }
+
+    /**
+     * Create a job processing one partial
+     *
+     * @param part
+     * @return
+     */
+    private Runnable createTask(RenderedPartial part) {
+        return () -> {
 
-            // try to find existing partial in database
-            boolean exist = false;
             try {
-                exist = store.updatePartialFromDatabase(part);
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
 
-            if(exist == true){
-                loadedFromDatabase++;
+                // try to find existing partial in database
+                boolean exist = loadFromDatabase(part);
+
+                // or create a new one
+                if (exist == false) {
+
+                    // render map in a new image, partial can be invalidated meanwhile
+                    BufferedImage img;
+                    long generation = store.getGeneration();
+                    long start = System.nanoTime();
+                    try {
+                        img = renderers.render(part.getEnvelope(), renderedWidthPx, renderedHeightPx);
+                        store.getMetrics().recordSince(CacheMetrics.RENDER, start);
+                        store.getMetrics().increment(CacheMetrics.RENDERED);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for a renderer", e);
+                    }
+
+                    // keep image
+                    part.setImage(img, renderedWidthPx, renderedHeightPx);
+
+                    // keep partial in memory, it will be written in database later
+                    store.addPartial(part, generation);
+
+                }
+
+                // notify of new tile arrival
+                inFlight.complete(part);
+
+            } catch (Throwable e) {
+                inFlight.fail(part.getKey(), e);
+                throw e;
             }
 
-            // or create a new one
-            else {
+        };
+    }
 
-                renderedPartials++;
+    /**
+     * Create a job processing a block of partials. Partials found in database are loaded, others are rendered in one
+     * paint operation covering the smallest part of block containing them.
+     *
+     * @param block
+     * @return
+     */
+    private Runnable createMetatileTask(List<RenderedPartial> block) {
+        return () -> {
 
-                ReferencedEnvelope bounds = part.getEnvelope();
+            // partials not completed yet, failed on error
+            ArrayList<RenderedPartial> remaining = new ArrayList<>(block);
+            try {
 
-                // create an image, and render map
-                BufferedImage img = new BufferedImage(renderedWidthPx, renderedHeightPx, BufferedImage.TYPE_INT_ARGB);
+                // complete partials found in database first
+                ArrayList<RenderedPartial> toRender = new ArrayList<>();
+                for (RenderedPartial part : block) {
+                    if (loadFromDatabase(part)) {
+                        inFlight.complete(part);
+                        remaining.remove(part);
+                    } else {
+                        toRender.add(part);
+                    }
+                }
 
-                renderer.paint((Graphics2D) img.getGraphics(), new Rectangle(renderedWidthPx, renderedHeightPx), bounds);
+                if (toRender.isEmpty()) {
+                    return;
+                }
 
-                // keep image
-                part.setImage(img, renderedWidthPx, renderedHeightPx);
+                // bounds of missing partials in grid
+                PartialKey first = toRender.get(0).getKey();
+                int minCol = first.getCol();
+                int maxCol = first.getCol();
+                int minRow = first.getRow();
+                int maxRow = first.getRow();
+                for (RenderedPartial part : toRender) {
+                    minCol = Math.min(minCol, part.getKey().getCol());
+                    maxCol = Math.max(maxCol, part.getKey().getCol());
+                    minRow = Math.min(minRow, part.getKey().getRow());
+                    maxRow = Math.max(maxRow, part.getKey().getRow());
+                }
 
+                double side = first.getSideDg();
+                ReferencedEnvelope lowerLeft = RenderedPartialFactory.getPartialArea(minCol, minRow, side);
+                ReferencedEnvelope upperRight = RenderedPartialFactory.getPartialArea(maxCol, maxRow, side);
+                ReferencedEnvelope bounds = new ReferencedEnvelope(lowerLeft.getMinX(), upperRight.getMaxX(),
+                        lowerLeft.getMinY(), upperRight.getMaxY(), toRender.get(0).getEnvelope().getCoordinateReferenceSystem());
+
+                // render all missing partials at once
+                // render latency is recorded per metatile
+                BufferedImage[][] tiles;
+                long generation = store.getGeneration();
+                long start = System.nanoTime();
                 try {
-                    store.addPartial(part);
-                } catch (SQLException e) {
-                    e.printStackTrace();
+                    tiles = renderers.renderTiles(bounds, maxCol - minCol + 1, maxRow - minRow + 1, renderedWidthPx, renderedHeightPx);
+                    store.getMetrics().recordSince(CacheMetrics.RENDER, start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a renderer", e);
+                }
+
+                for (RenderedPartial part : toRender) {
+                    store.getMetrics().increment(CacheMetrics.RENDERED);
+                    part.setImage(tiles[part.getKey().getCol() - minCol][part.getKey().getRow() - minRow], renderedWidthPx, renderedHeightPx);
+                    store.addPartial(part, generation);
+                    inFlight.complete(part);
+                    remaining.remove(part);
                 }
 
+            } catch (Throwable e) {
+                for (RenderedPartial part : remaining) {
+                    inFlight.fail(part.getKey(), e);
+                }
+                throw e;
             }
 
-            partialsInProgress.remove(part);
+        };
+    }
 
-            // notify of new tile arrival
-            if (toNotifyWhenPartialsCome != null) {
-                toNotifyWhenPartialsCome.run();
+    /**
+     * Group partials by metatile. Missing partials of each metatile are acquired and added to group, if they are not
+     * already in memory or in progress.
+     *
+     * @return
+     */
+    private ArrayList<ArrayList<RenderedPartial>> groupByMetatile() {
+
+        LinkedHashMap<MetatileKey, ArrayList<RenderedPartial>> groups = new LinkedHashMap<>();
+        for (RenderedPartial part : partials) {
+            PartialKey key = part.getKey();
+            MetatileKey mkey = new MetatileKey(key, Math.floorDiv(key.getCol(), metatileCols), Math.floorDiv(key.getRow(), metatileRows));
+            groups.computeIfAbsent(mkey, (k) -> new ArrayList<>()).add(part);
+        }
+
+        for (ArrayList<RenderedPartial> group : groups.values()) {
+
+            PartialKey first = group.get(0).getKey();
+            double side = first.getSideDg();
+            int col0 = Math.floorDiv(first.getCol(), metatileCols) * metatileCols;
+            int row0 = Math.floorDiv(first.getRow(), metatileRows) * metatileRows;
+
+            for (int col = col0; col < col0 + metatileCols; col++) {
+                for (int row = row0; row < row0 + metatileRows; row++) {
+
+                    PartialKey key = new PartialKey(first.getLevel(), col, row, first.getCrsId(), first.getFingerprint());
+                    if (store.getMemoryCache().contains(key)) {
+                        continue;
+                    }
+
+                    PartialInFlightRegistry.Ticket ticket = inFlight.acquire(key);
+                    if (ticket.isOwner() == false) {
+                        // already in group, or processed by someone else
+                        continue;
+                    }
+
+                    RenderedPartial part = store.searchInLoadedList(key);
+                    if (part == null) {
+                        part = store.addInLoadedList(new RenderedPartial(null, RenderedPartialFactory.getPartialArea(col, row, side),
+                                first.getFingerprint(), renderedWidthPx, renderedHeightPx));
+                    }
+                    group.add(part);
+                    neighbours.put(key, ticket.getFuture());
+                }
             }
+        }
 
-        });
+        return new ArrayList<>(groups.values());
     }
 
     /**
-     * Start processing queue in a separated thread
+     * Submit all tasks to scheduler. Dropped tasks release their partials in the in flight registry.
      */
     public void start() {
-        ThreadManager.runLater(() -> {
-            for (Runnable task : tasks) {
-                try {
-                    task.run();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+
+        if (metatileCols * metatileRows <= 1) {
+            for (RenderedPartial part : partials) {
+                scheduler.submit(part.getKey(), part.getEnvelope(), createTask(part), (reason) -> inFlight.fail(part.getKey(), reason));
             }
-        });
+            return;
+        }
+
+        for (ArrayList<RenderedPartial> group : groupByMetatile()) {
+
+            // priority of block is priority of first requested partial
+            RenderedPartial first = group.get(0);
+            scheduler.submit(first.getKey(), first.getEnvelope(), createMetatileTask(group), (reason) -> {
+                for (RenderedPartial part : group) {
+                    inFlight.fail(part.getKey(), reason);
+                }
+            });
+        }
     }
 
-    public static long getLoadedFromDatabase() {
-        return loadedFromDatabase;
+    /**
+     * Return partials not added to this queue but acquired to complete metatiles, with their completion. Available after
+     * start().
+     *
+     * @return
+     */
+    LinkedHashMap<PartialKey, CompletableFuture<RenderedPartial>> getNeighbours() {
+        return neighbours;
     }
 
-    public static long getRenderedPartials() {
-        return renderedPartials;
+    /**
+     * Return true if a completed partial of this queue was found in database instead of being rendered
+     *
+     * @param key
+     * @return
+     */
+    boolean isLoadedFromDatabase(PartialKey key) {
+        return loadedFromDatabase.contains(key);
+    }
+
+    /**
+     * Address of a metatile: level, CRS and fingerprint of its partials, and its position in metatile grid
+     */
+    private static class MetatileKey {
+
+        private final int level;
+        private final String crsId;
+        private final int fingerprint;
+        private final int col;
+        private final int row;
+
+        MetatileKey(PartialKey key, int col, int row) {
+            this.level = key.getLevel();
+            this.crsId = key.getCrsId();
+            this.fingerprint = key.getFingerprint();
+            this.col = col;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MetatileKey that = (MetatileKey) o;
+            return level == that.level &&
+                    fingerprint == that.fingerprint &&
+                    col == that.col &&
+                    row == that.row &&
+                    Objects.equals(crsId, that.crsId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(level, crsId, fingerprint, col, row);
+        }
     }
 }
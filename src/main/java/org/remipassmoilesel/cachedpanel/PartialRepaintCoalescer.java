@@ -0,0 +1,165 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import javax.swing.*;
+import java.awt.geom.AffineTransform;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collect areas of partials that arrive from rendering threads, and repaint their union at most once per interval.
+ * <p>
+ * The first partial after an idle period is repainted without delay, next ones are grouped until the end of interval.
+ * Only the union of arrived partials is repainted, with the current world to screen transform of component.
+ */
+public class PartialRepaintCoalescer {
+
+    /**
+     * Default interval between repaints, about one frame at 60 fps
+     */
+    public static final long DEFAULT_INTERVAL_MS = 16;
+
+    private final JComponent component;
+    private final Supplier<AffineTransform> worldToScreen;
+    private final long intervalNs;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Union of dirty world areas, valid if dirty is true. Guarded by this object.
+     */
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private boolean dirty;
+
+    /**
+     * True if a flush is scheduled. Guarded by this object.
+     */
+    private boolean scheduled;
+    private long lastFlushNs;
+
+    private final AtomicLong arrivedPartials;
+    private final AtomicLong repaints;
+
+    /**
+     * @param component     component to repaint
+     * @param worldToScreen current transform of component, or null if nothing is displayed
+     * @param intervalMs
+     */
+    public PartialRepaintCoalescer(JComponent component, Supplier<AffineTransform> worldToScreen, long intervalMs) {
+        this.component = component;
+        this.worldToScreen = worldToScreen;
+        this.intervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.lastFlushNs = System.nanoTime() - intervalNs;
+        this.arrivedPartials = new AtomicLong(0);
+        this.repaints = new AtomicLong(0);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "partial-repaint");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Mark a partial as arrived. Can be called from any thread.
+     *
+     * @param part
+     */
+    public void partialArrived(RenderedPartial part) {
+
+        arrivedPartials.incrementAndGet();
+
+        ReferencedEnvelope ev = part.getEnvelope();
+        long delayNs;
+        synchronized (this) {
+            if (dirty) {
+                minX = Math.min(minX, ev.getMinX());
+                minY = Math.min(minY, ev.getMinY());
+                maxX = Math.max(maxX, ev.getMaxX());
+                maxY = Math.max(maxY, ev.getMaxY());
+            } else {
+                minX = ev.getMinX();
+                minY = ev.getMinY();
+                maxX = ev.getMaxX();
+                maxY = ev.getMaxY();
+                dirty = true;
+            }
+
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            delayNs = lastFlushNs + intervalNs - System.nanoTime();
+        }
+
+        if (delayNs <= 0) {
+            flush();
+        } else {
+            executor.schedule(this::flush, delayNs, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Repaint union of arrived partials. Component.repaint() is thread safe, painting itself is done later on EDT.
+     */
+    private void flush() {
+
+        double[] corners;
+        synchronized (this) {
+            scheduled = false;
+            lastFlushNs = System.nanoTime();
+            if (dirty == false) {
+                return;
+            }
+            corners = new double[]{minX, maxY, maxX, minY};
+            dirty = false;
+        }
+
+        repaints.incrementAndGet();
+
+        AffineTransform transform = worldToScreen.get();
+        if (transform == null) {
+            component.repaint();
+            return;
+        }
+
+        transform.transform(corners, 0, corners, 0, 2);
+
+        // one more pixel on each side, partial positions are rounded when painted
+        int x = (int) Math.floor(Math.min(corners[0], corners[2])) - 1;
+        int y = (int) Math.floor(Math.min(corners[1], corners[3])) - 1;
+        int w = (int) Math.ceil(Math.max(corners[0], corners[2])) + 1 - x;
+        int h = (int) Math.ceil(Math.max(corners[1], corners[3])) + 1 - y;
+
+        component.repaint(x, y, w, h);
+    }
+
+    /**
+     * Stop scheduling repaints
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public long getArrivedPartials() {
+        return arrivedPartials.get();
+    }
+
+    public long getRepaints() {
+        return repaints.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PartialRepaintCoalescer{" +
+                "arrivedPartials=" + arrivedPartials +
+                ", repaints=" + repaints +
+                '}';
+    }
+}
@@ -0,0 +1,462 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Render and persist all partials of an area, for several zoom levels, without display.
+ * <p>
+ * Seeding is resumable: partials already in store are skipped, and pending writes are flushed when seeder is
+ * interrupted. Partials are rendered by the thread pool of factory, a limited number at a time.
+ * <p>
+ * Rendered images are never dropped by write queue of store: rendering waits for encoders. Images that could not be
+ * written are counted as failed.
+ * <p>
+ * Keys of partials depend on content fingerprint, so seeded content must be built in the same way as content of
+ * application (same layers, titles and styles) to be reused.
+ * <p>
+ * Usage: PartialSeeder --bbox minX,minY,maxX,maxY --levels 0-6 --shape file.shp [--shape other.shp]
+ * [--threads N] [--metatile N] [--backend H2|PACK_FILE] [--dir path] [--snapshot-mb N]
+ */
+public class PartialSeeder {
+
+    private static final long REPORT_INTERVAL_MS = 2000;
+
+    /**
+     * Partials submitted in one rendering queue
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Submission is paused while more images are waiting to be encoded or written, so encoding queue is rarely full
+     */
+    private static final int MAX_WRITE_QUEUE_DEPTH = PartialWriteBehindQueue.DEFAULT_MAX_PENDING_ENCODINGS / 2;
+
+    private final RenderedPartialFactory factory;
+
+    /**
+     * Limit number of partials submitted and not completed, to not overflow scheduler queue
+     */
+    private final int window;
+    private final Semaphore permits;
+
+    private final AtomicLong total;
+    private final AtomicLong rendered;
+    private final AtomicLong existing;
+    private final AtomicLong failed;
+    private volatile long startTime;
+
+    /**
+     * Dropped and failed writes of store before seeding
+     */
+    private final long previousWriteFailures;
+
+    public PartialSeeder(RenderedPartialFactory factory) {
+        this.factory = factory;
+        this.window = Math.max(1, factory.getScheduler().getMaxQueueDepth() / 2);
+        this.permits = new Semaphore(window);
+        this.total = new AtomicLong(0);
+        this.rendered = new AtomicLong(0);
+        this.existing = new AtomicLong(0);
+        this.failed = new AtomicLong(0);
+
+        // images must be persisted, even if encoders are slower than renderers
+        PartialWriteBehindQueue writeBehind = factory.getStore().getWriteBehind();
+        writeBehind.setBlockingSubmit(true);
+        this.previousWriteFailures = writeBehind.getDroppedPartials() + writeBehind.getFailedPartials();
+    }
+
+    /**
+     * Return number of partials of a zoom level covering an area
+     *
+     * @param bbox
+     * @param zoomLevel
+     * @return
+     */
+    public static long countPartials(ReferencedEnvelope bbox, int zoomLevel) {
+        PartialKeyRange range = PartialKeyRange.fromEnvelope(bbox, RenderedPartialFactory.getSideForZoomLevel(zoomLevel), 0);
+        return (long) (range.getMaxCol() - range.getMinCol() + 1) * (range.getMaxRow() - range.getMinRow() + 1);
+    }
+
+    /**
+     * Render and persist all partials of specified zoom levels covering an area, then wait for rendering end.
+     * <p>
+     * Partials are written by write behind queue of store, they are persisted when factory is disposed.
+     *
+     * @param bbox
+     * @param zoomLevels
+     * @throws InterruptedException
+     */
+    public void seed(ReferencedEnvelope bbox, int[] zoomLevels) throws InterruptedException {
+
+        for (int zoomLevel : zoomLevels) {
+            total.addAndGet(countPartials(bbox, zoomLevel));
+        }
+        startTime = System.currentTimeMillis();
+
+        RenderedPartialStore store = factory.getStore();
+        PartialInFlightRegistry inFlight = factory.getInFlightRegistry();
+        int sidePx = factory.getPartialSidePx();
+        int fingerprint = factory.getContentFingerprint();
+
+        for (int zoomLevel : zoomLevels) {
+
+            double side = RenderedPartialFactory.getSideForZoomLevel(zoomLevel);
+            PartialKeyRange range = PartialKeyRange.fromEnvelope(bbox, side, fingerprint);
+            PartialRenderingQueue queue = null;
+            int queued = 0;
+
+            // partials rendered with metatiles of previous partials, counted when their metatile is completed
+            HashSet<PartialKey> neighbours = new HashSet<>();
+
+            for (int row = range.getMinRow(); row <= range.getMaxRow(); row++) {
+                for (int col = range.getMinCol(); col <= range.getMaxCol(); col++) {
+
+                    ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(col, row, side);
+                    PartialKey key = PartialKey.fromEnvelope(area, fingerprint);
+
+                    if (neighbours.remove(key)) {
+                        continue;
+                    }
+
+                    // already seeded, or waiting to be written
+                    if (isStored(store, key)) {
+                        existing.incrementAndGet();
+                        continue;
+                    }
+
+                    // let encoders catch up before submitting more partials
+                    while (store.getWriteBehind().getQueueDepth() > MAX_WRITE_QUEUE_DEPTH) {
+                        Thread.sleep(10);
+                    }
+
+                    permits.acquire();
+
+                    // already rendered elsewhere
+                    PartialInFlightRegistry.Ticket ticket = inFlight.acquire(key);
+                    if (ticket.isOwner() == false) {
+                        permits.release();
+                        existing.incrementAndGet();
+                        continue;
+                    }
+
+                    if (queue == null) {
+                        queue = new PartialRenderingQueue(factory.getRenderers(), store, inFlight, factory.getScheduler(),
+                                sidePx, sidePx, factory.getMetatileCols(), factory.getMetatileRows());
+                    }
+
+                    RenderedPartial part = store.addInLoadedList(new RenderedPartial(null, area, fingerprint, sidePx, sidePx));
+                    onCompletion(queue, key, ticket.getFuture(), true);
+                    queue.addTask(part);
+                    queued++;
+
+                    if (queued >= BATCH_SIZE) {
+                        start(queue, range, col, row, neighbours);
+                        queue = null;
+                        queued = 0;
+                    }
+                }
+            }
+
+            if (queue != null) {
+                start(queue, range, range.getMaxCol(), range.getMaxRow(), neighbours);
+            }
+        }
+
+        // wait for last partials
+        permits.acquire(window);
+        permits.release(window);
+    }
+
+    /**
+     * Submit partials of a queue, then wait for partials acquired to complete metatiles. They are counted if they are in
+     * seeded range and not visited yet, visited partials were already counted.
+     *
+     * @param queue
+     * @param range
+     * @param col        last visited column
+     * @param row        last visited row, range is visited row by row
+     * @param neighbours
+     * @throws InterruptedException
+     */
+    private void start(PartialRenderingQueue queue, PartialKeyRange range, int col, int row, HashSet<PartialKey> neighbours)
+            throws InterruptedException {
+
+        queue.start();
+
+        for (Map.Entry<PartialKey, CompletableFuture<RenderedPartial>> entry : queue.getNeighbours().entrySet()) {
+            PartialKey key = entry.getKey();
+            boolean visited = key.getRow() < row || (key.getRow() == row && key.getCol() <= col);
+            boolean counted = range.contains(key) && visited == false;
+            if (counted) {
+                neighbours.add(key);
+            }
+            permits.acquire();
+            onCompletion(queue, key, entry.getValue(), counted);
+        }
+    }
+
+    /**
+     * When job of a partial is completed, count partial as rendered, existing or failed if needed, then release its
+     * permit
+     *
+     * @param queue
+     * @param key
+     * @param future
+     * @param counted
+     */
+    private void onCompletion(PartialRenderingQueue queue, PartialKey key, CompletableFuture<RenderedPartial> future, boolean counted) {
+        RenderedPartialStore store = factory.getStore();
+        future.whenComplete((p, e) -> {
+            if (counted == false) {
+                // out of seeded area or already counted
+            } else if (e != null) {
+                failed.incrementAndGet();
+            } else if (queue.isLoadedFromDatabase(key)) {
+                existing.incrementAndGet();
+            } else {
+                rendered.incrementAndGet();
+            }
+
+            // image is kept by write queue until it is encoded
+            store.removeFromLoadedList(key);
+            permits.release();
+        });
+    }
+
+    private static boolean isStored(RenderedPartialStore store, PartialKey key) {
+        if (store.getWriteBehind().getPending(key) != null) {
+            return true;
+        }
+        try {
+            return store.getBackend().contains(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Return number of partials rendered per second since start
+     *
+     * @return
+     */
+    public double getPartialsPerSecond() {
+        double elapsedS = (System.currentTimeMillis() - startTime) / 1000d;
+        return elapsedS > 0 ? getRendered() / elapsedS : 0;
+    }
+
+    /**
+     * Return estimated remaining time in seconds, or -1 if unknown
+     *
+     * @return
+     */
+    public long getEtaSeconds() {
+        double rate = getPartialsPerSecond();
+        long remaining = total.get() - getRendered() - existing.get() - getFailed();
+        return rate > 0 ? Math.round(remaining / rate) : -1;
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Return number of partials rendered and not lost by write queue
+     *
+     * @return
+     */
+    public long getRendered() {
+        return Math.max(0, rendered.get() - getFailedWrites());
+    }
+
+    public long getExisting() {
+        return existing.get();
+    }
+
+    /**
+     * Return number of partials that could not be rendered or written
+     *
+     * @return
+     */
+    public long getFailed() {
+        return failed.get() + getFailedWrites();
+    }
+
+    /**
+     * Return number of rendered partials dropped or not written by write queue since seeding started. Pending writes
+     * are flushed when factory is disposed, so this number is final only after.
+     *
+     * @return
+     */
+    public long getFailedWrites() {
+        PartialWriteBehindQueue writeBehind = factory.getStore().getWriteBehind();
+        return writeBehind.getDroppedPartials() + writeBehind.getFailedPartials() - previousWriteFailures;
+    }
+
+    @Override
+    public String toString() {
+        long done = getRendered() + existing.get() + getFailed();
+        long eta = getEtaSeconds();
+        return "Seeded " + done + " / " + total
+                + " (" + (total.get() > 0 ? done * 100 / total.get() : 100) + "%)"
+                + ", rendered=" + getRendered()
+                + ", existing=" + existing
+                + ", failed=" + getFailed() + " (writes: " + getFailedWrites() + ")"
+                + ", " + String.format("%.1f", getPartialsPerSecond()) + " partials/s"
+                + ", ETA " + (eta < 0 ? "unknown" : String.format("%02d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60))
+                + ", write queue=" + factory.getStore().getWriteBehind().getQueueDepth();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        System.setProperty("java.awt.headless", "true");
+
+        ReferencedEnvelope bbox = null;
+        int[] levels = null;
+        ArrayList<Path> shapes = new ArrayList<>();
+        int threads = PartialRenderScheduler.DEFAULT_POOL_SIZE;
+        int metatile = 1;
+        PartialStore.Backend backend = PartialStore.Backend.H2;
+        Path directory = CachedRenderLab.CACHE_DATABASE_DIR;
+        long snapshotBytes = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                printUsageAndExit("Missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--bbox":
+                    bbox = parseBbox(value);
+                    break;
+                case "--levels":
+                    levels = parseLevels(value);
+                    break;
+                case "--shape":
+                    shapes.add(Paths.get(value));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--metatile":
+                    metatile = Integer.parseInt(value);
+                    break;
+                case "--backend":
+                    backend = PartialStore.Backend.valueOf(value);
+                    break;
+                case "--dir":
+                    directory = Paths.get(value);
+                    break;
+                case "--snapshot-mb":
+                    snapshotBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                default:
+                    printUsageAndExit("Unknown option: " + arg);
+            }
+        }
+
+        if (bbox == null || levels == null || shapes.isEmpty()) {
+            printUsageAndExit("Options --bbox, --levels and --shape are required");
+        }
+
+        MapContent content = new MapContent();
+        for (Path shape : shapes) {
+            // with a snapshot budget, features are read once and rendered from memory, budget is shared by shapes
+            content.addLayer(snapshotBytes > 0
+                    ? CachedRenderLab.createShapeLayer(shape, snapshotBytes / shapes.size())
+                    : CachedRenderLab.createShapeLayer(shape));
+        }
+
+        RenderedPartialFactory factory = new RenderedPartialFactory(content, backend, directory);
+        factory.setRenderThreads(threads);
+        factory.setMetatileSize(metatile, metatile);
+
+        // on interruption, write pending partials, seeding can be resumed later
+        AtomicBoolean disposed = new AtomicBoolean(false);
+        Runnable dispose = () -> {
+            if (disposed.compareAndSet(false, true)) {
+                factory.dispose();
+                content.dispose();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(dispose));
+
+        PartialSeeder seeder = new PartialSeeder(factory);
+
+        Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                System.out.println(seeder);
+            }
+        }, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS);
+
+        seeder.seed(bbox, levels);
+
+        timer.cancel();
+        dispose.run();
+        System.out.println(seeder);
+
+        System.exit(seeder.getFailed() > 0 ? 1 : 0);
+    }
+
+    private static ReferencedEnvelope parseBbox(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            printUsageAndExit("Invalid bbox: " + value);
+        }
+        return new ReferencedEnvelope(Double.parseDouble(parts[0]), Double.parseDouble(parts[2]),
+                Double.parseDouble(parts[1]), Double.parseDouble(parts[3]), DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * Parse a list of zoom levels, e.g: "0-4" or "2,3,6"
+     *
+     * @param value
+     * @return
+     */
+    private static int[] parseLevels(String value) {
+
+        ArrayList<Integer> levels = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String[] bounds = part.split("-");
+            int from = Integer.parseInt(bounds[0].trim());
+            int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+            for (int z = from; z <= to; z++) {
+                if (z < 0 || z > RenderedPartialFactory.MAX_ZOOM_LEVEL) {
+                    printUsageAndExit("Invalid zoom level: " + z + ", maximum is " + RenderedPartialFactory.MAX_ZOOM_LEVEL);
+                }
+                levels.add(z);
+            }
+        }
+
+        int[] result = new int[levels.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = levels.get(i);
+        }
+        return result;
+    }
+
+    private static void printUsageAndExit(String error) {
+        System.err.println(error);
+        System.err.println("Usage: PartialSeeder --bbox minX,minY,maxX,maxY --levels 0-6 --shape file.shp [--shape other.shp] "
+                + "[--threads N] [--metatile N] [--backend H2|PACK_FILE] [--dir path] [--snapshot-mb N]");
+        System.exit(2);
+    }
+}
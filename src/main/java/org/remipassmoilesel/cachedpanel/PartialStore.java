@@ -0,0 +1,216 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Persistent storage of encoded partial images, indexed by grid address.
+ * <p>
+ * Implementations must be thread safe. Images are stored encoded, see BufferedImagePersister.
+ */
+public interface PartialStore {
+
+    /**
+     * Return encoded image of a partial, or null if partial is not stored
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    ByteBuffer get(PartialKey key) throws IOException;
+
+    /**
+     * Store an encoded image. If a partial with the same key is already stored, nothing is done and false is returned.
+     *
+     * @param key
+     * @param area
+     * @param encodedImage
+     * @return
+     * @throws IOException
+     */
+    boolean put(PartialKey key, ReferencedEnvelope area, byte[] encodedImage) throws IOException;
+
+    /**
+     * Store several encoded images. Partials already stored are ignored.
+     * <p>
+     * Default implementation stores partials one by one, implementations should override it to write them in one operation.
+     *
+     * @param partials
+     * @return number of partials stored
+     * @throws IOException
+     */
+    default int putAll(Collection<EncodedPartial> partials) throws IOException {
+        int stored = 0;
+        for (EncodedPartial part : partials) {
+            if (put(part.getKey(), part.getArea(), part.getEncodedImage())) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Return true if a partial with this key is stored
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    boolean contains(PartialKey key) throws IOException;
+
+    /**
+     * Delete all partials of a range
+     *
+     * @param range
+     * @return number of partials deleted
+     * @throws IOException
+     */
+    int delete(PartialKeyRange range) throws IOException;
+
+    /**
+     * Return size in bytes of stored images, or -1 if size is unknown
+     *
+     * @return
+     * @throws IOException
+     */
+    default long getStoredBytes() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Return size in bytes that stored images would take if identical images were not shared, or -1 if size is
+     * unknown. Default implementation does not share images.
+     *
+     * @return
+     * @throws IOException
+     */
+    default long getLogicalBytes() throws IOException {
+        return getStoredBytes();
+    }
+
+    /**
+     * Return number of stored partials, or -1 if unknown
+     *
+     * @return
+     * @throws IOException
+     */
+    default long getPartialCount() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Return number of stored partials of one colour, stored with UniformTileCodec, or -1 if unknown
+     *
+     * @return
+     * @throws IOException
+     */
+    default long getUniformPartialCount() throws IOException {
+        return -1;
+    }
+
+    /**
+     * Return size in bytes used on disk, including space of deleted partials not reclaimed yet, or -1 if size is
+     * unknown. Default implementation returns size of stored images.
+     *
+     * @return
+     * @throws IOException
+     */
+    default long getFileBytes() throws IOException {
+        return getStoredBytes();
+    }
+
+    /**
+     * Record an access to a partial read from a cache in front of this store, so it is not evicted while it is used.
+     * Reads with get() are recorded by store.
+     * <p>
+     * Default implementation does not track accesses.
+     *
+     * @param key
+     */
+    default void recordAccess(PartialKey key) {
+
+    }
+
+    /**
+     * Write access times recorded since last call, if store tracks them. Access times are recorded in memory when
+     * partials are read, and written in batches.
+     *
+     * @throws IOException
+     */
+    default void flushAccessTimes() throws IOException {
+
+    }
+
+    /**
+     * Return true if this store can delete least recently used partials, see evictLeastRecentlyUsed()
+     *
+     * @return
+     */
+    default boolean isEvictionSupported() {
+        return false;
+    }
+
+    /**
+     * Delete least recently used partials until size of stored images is under specified size.
+     * <p>
+     * Default implementation does not track accesses and deletes nothing: a disk quota cannot be set on stores that do
+     * not override this method and isEvictionSupported().
+     *
+     * @param maxBytes
+     * @return number of partials deleted
+     * @throws IOException
+     */
+    default int evictLeastRecentlyUsed(long maxBytes) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Release resources used by this store
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+    /**
+     * Available implementations
+     */
+    enum Backend {
+
+        /**
+         * H2 database, one row per partial
+         */
+        H2,
+
+        /**
+         * Append only segment files, read through memory mapping
+         */
+        PACK_FILE;
+
+        /**
+         * Open a store of this type in specified directory
+         *
+         * @param directory
+         * @return
+         * @throws IOException
+         */
+        public PartialStore open(Path directory) throws IOException {
+            switch (this) {
+                case H2:
+                    try {
+                        return new H2PartialStore(directory.resolve("partials.db"));
+                    } catch (SQLException e) {
+                        throw new IOException("Unable to initialize database: " + e.getMessage(), e);
+                    }
+                case PACK_FILE:
+                    return new PackFilePartialStore(directory.resolve("pack"));
+                default:
+                    throw new IllegalStateException("Unknown backend: " + this);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep size of a partial store under a disk budget, and report its size.
+ * <p>
+ * At each interval, access times recorded by store are written, then if stored images exceed budget, least recently
+ * used partials are deleted until size is under a lower mark, so eviction does not run again after each new partial.
+ * <p>
+ * Stores that do not track accesses (see PartialStore.isEvictionSupported()) only report their size, a budget cannot
+ * be set on them.
+ * <p>
+ * Size on disk is reported after each check, and after each eviction, since space of evicted partials may only be given
+ * back later (e.g: H2 database is compacted on close).
+ * <p>
+ * Size of images if they were not shared between identical partials is reported too, with the resulting dedup ratio.
+ * Size saved by partials of one colour, stored as a few bytes (see UniformTileCodec), is estimated with the average size
+ * of other partials.
+ */
+public class PartialStoreQuota {
+
+    public static final long DEFAULT_INTERVAL_MS = 30000;
+
+    /**
+     * Part of budget kept after an eviction
+     */
+    public static final double LOW_MARK = 0.9d;
+
+    private final PartialStore backend;
+    private final CacheMetrics metrics;
+    private final ScheduledExecutorService executor;
+
+    private volatile long maxBytes;
+
+    private final AtomicLong storedBytes;
+    private final AtomicLong logicalBytes;
+    private final AtomicLong fileBytes;
+    private final AtomicLong partialCount;
+    private final AtomicLong uniformPartials;
+    private final AtomicLong evictedPartials;
+    private final AtomicLong evictionRuns;
+
+    /**
+     * @param backend
+     * @param metrics
+     * @param maxBytes   budget of stored images, 0 or less for no limit
+     * @param intervalMs
+     * @throws IllegalStateException if a budget is set and store cannot evict partials
+     */
+    public PartialStoreQuota(PartialStore backend, CacheMetrics metrics, long maxBytes, long intervalMs) {
+        if (maxBytes > 0 && backend.isEvictionSupported() == false) {
+            throw new IllegalStateException("Store cannot evict partials: " + backend.getClass().getSimpleName());
+        }
+        this.backend = backend;
+        this.metrics = metrics;
+        this.maxBytes = maxBytes;
+        this.storedBytes = new AtomicLong(-1);
+        this.logicalBytes = new AtomicLong(-1);
+        this.fileBytes = new AtomicLong(-1);
+        this.partialCount = new AtomicLong(-1);
+        this.uniformPartials = new AtomicLong(-1);
+        this.evictedPartials = new AtomicLong(0);
+        this.evictionRuns = new AtomicLong(0);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "partial-eviction");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.scheduleWithFixedDelay(this::check, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        metrics.registerGauge(CacheMetrics.STORE_BYTES, storedBytes::get);
+        metrics.registerGauge(CacheMetrics.STORE_LOGICAL_BYTES, logicalBytes::get);
+        metrics.registerGauge(CacheMetrics.STORE_FILE_BYTES, fileBytes::get);
+        metrics.registerGauge(CacheMetrics.STORE_UNIFORM_SAVED_BYTES, this::getSentinelSavedBytes);
+    }
+
+    /**
+     * Write access times, then evict partials if store is over budget
+     */
+    public void check() {
+        try {
+
+            backend.flushAccessTimes();
+
+            long size = backend.getStoredBytes();
+            storedBytes.set(size);
+            logicalBytes.set(backend.getLogicalBytes());
+            fileBytes.set(backend.getFileBytes());
+            updateCounts();
+
+            long maxBytes = this.maxBytes;
+            if (maxBytes <= 0 || size <= maxBytes) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            int evicted = backend.evictLeastRecentlyUsed((long) (maxBytes * LOW_MARK));
+            metrics.recordSince(CacheMetrics.EVICTION, start);
+
+            evictionRuns.incrementAndGet();
+            evictedPartials.addAndGet(evicted);
+            metrics.add(CacheMetrics.EVICTED, evicted);
+
+            storedBytes.set(backend.getStoredBytes());
+            logicalBytes.set(backend.getLogicalBytes());
+            updateCounts();
+
+            // images are deleted, but files may not shrink before store is closed
+            fileBytes.set(backend.getFileBytes());
+
+        } catch (Exception e) {
+            // an uncaught exception would cancel next checks
+            e.printStackTrace();
+        }
+    }
+
+    private void updateCounts() throws IOException {
+        partialCount.set(backend.getPartialCount());
+        uniformPartials.set(backend.getUniformPartialCount());
+    }
+
+    /**
+     * Stop checking store. A check in progress is awaited.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(RenderedPartialStore.CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set budget of stored images, 0 or less for no limit
+     *
+     * @param maxBytes
+     * @throws IllegalStateException if store cannot evict partials
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes > 0 && backend.isEvictionSupported() == false) {
+            throw new IllegalStateException("Store cannot evict partials: " + backend.getClass().getSimpleName());
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Return size of stored images at last check, or -1 if unknown
+     *
+     * @return
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Return size stored images would take if identical images were not shared, at last check, or -1 if unknown
+     *
+     * @return
+     */
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    /**
+     * Return size used on disk at last check, including space of deleted partials not given back yet, or -1 if unknown
+     *
+     * @return
+     */
+    public long getFileBytes() {
+        return fileBytes.get();
+    }
+
+    /**
+     * Return logical size divided by stored size at last check, 1 if nothing is shared, or -1 if unknown
+     *
+     * @return
+     */
+    public double getDedupRatio() {
+        long stored = storedBytes.get();
+        long logical = logicalBytes.get();
+        if (stored < 0 || logical < 0) {
+            return -1;
+        }
+        return stored > 0 ? (double) logical / stored : 1;
+    }
+
+    /**
+     * Return size saved by sharing identical images at last check, or -1 if unknown
+     *
+     * @return
+     */
+    public long getSavedBytes() {
+        long stored = storedBytes.get();
+        long logical = logicalBytes.get();
+        return stored >= 0 && logical >= 0 ? logical - stored : -1;
+    }
+
+    /**
+     * Return number of partials of one colour at last check, or -1 if unknown
+     *
+     * @return
+     */
+    public long getUniformPartials() {
+        return uniformPartials.get();
+    }
+
+    /**
+     * Return estimated size saved by storing partials of one colour as their colour, at last check, or -1 if unknown.
+     * Each of them would have taken the average size of other partials.
+     *
+     * @return
+     */
+    public long getSentinelSavedBytes() {
+        long count = partialCount.get();
+        long uniform = uniformPartials.get();
+        long logical = logicalBytes.get();
+        if (count < 0 || uniform < 0 || logical < 0) {
+            return -1;
+        }
+
+        long others = count - uniform;
+        if (uniform == 0 || others <= 0) {
+            return 0;
+        }
+
+        long averageSize = (logical - uniform * UniformTileCodec.STORED_SIZE) / others;
+        return uniform * Math.max(0, averageSize - UniformTileCodec.STORED_SIZE);
+    }
+
+    public long getEvictedPartials() {
+        return evictedPartials.get();
+    }
+
+    public long getEvictionRuns() {
+        return evictionRuns.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PartialStoreQuota{" +
+                "storedMb=" + (storedBytes.get() >= 0 ? storedBytes.get() / 1024 / 1024 : -1) +
+                ", maxMb=" + maxBytes / 1024 / 1024 +
+                ", fileMb=" + (fileBytes.get() >= 0 ? fileBytes.get() / 1024 / 1024 : -1) +
+                ", dedupRatio=" + String.format("%.2f", getDedupRatio()) +
+                ", savedMb=" + (getSavedBytes() >= 0 ? getSavedBytes() / 1024 / 1024 : -1) +
+                ", uniform=" + uniformPartials +
+                ", uniformSavedMb=" + (getSentinelSavedBytes() >= 0 ? getSentinelSavedBytes() / 1024 / 1024 : -1) +
+                ", evicted=" + evictedPartials +
+                ", evictionRuns=" + evictionRuns +
+                '}';
+    }
+}
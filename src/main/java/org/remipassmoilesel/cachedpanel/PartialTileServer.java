@@ -0,0 +1,442 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.geotools.map.MapContent;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Serve partials of a RenderedPartialFactory over HTTP, at /{z}/{x}/{y}.png
+ * <p>
+ * z is a zoom level of factory, x and y are column and row of partial in partial grid: WGS84 squares starting at 0,0,
+ * with rows growing to the north. These are not Web Mercator tiles. Partials outside of -180,-90 180,90 are not served.
+ * <p>
+ * Stored PNG images are sent as is, other images are encoded in PNG. Responses have an ETag computed from image, and
+ * requests with a matching If-None-Match header are answered with 304. Requests are handled by a thread pool, partials
+ * are rendered by the pool of factory.
+ * <p>
+ * Usage: PartialTileServer --shape file.shp [--shape other.shp] [--port 8080] [--threads N] [--render-threads N]
+ * [--backend H2|PACK_FILE] [--dir path] [--record trace.txt] [--snapshot-mb N]
+ */
+public class PartialTileServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * Maximum time to wait for a partial to be rendered
+     */
+    public static final long RENDER_TIMEOUT_MS = 30000;
+
+    private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(-?\\d+)/(-?\\d+)\\.png$");
+
+    /**
+     * Codec used when stored images are not PNG. Fast deflate level, images are encoded at each request.
+     */
+    private static final PngTileCodec RESPONSE_CODEC = new PngTileCodec(1);
+
+    private final RenderedPartialFactory factory;
+    private final CacheMetrics metrics;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Output of requested tiles, used to record traces for TileLoadGenerator, or null
+     */
+    private volatile BufferedWriter traceOutput;
+
+    public PartialTileServer(RenderedPartialFactory factory, InetSocketAddress address, int threads) throws IOException {
+        this.factory = factory;
+        this.metrics = factory.getMetrics();
+
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "tile-server-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop server, requests in progress have delaySeconds to complete. Factory is not disposed.
+     *
+     * @param delaySeconds
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+
+        BufferedWriter output = traceOutput;
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Append each requested tile to a file, one z/x/y per line
+     *
+     * @param trace
+     * @throws IOException
+     */
+    public void recordTrace(Path trace) throws IOException {
+        traceOutput = Files.newBufferedWriter(trace, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+
+            String method = exchange.getRequestMethod();
+            if ("GET".equals(method) == false && "HEAD".equals(method) == false) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+
+            Matcher matcher = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+            if (matcher.matches() == false) {
+                sendError(exchange, 404, "Not found, expected /{z}/{x}/{y}.png");
+                return;
+            }
+
+            int zoomLevel;
+            int col;
+            int row;
+            try {
+                zoomLevel = Integer.parseInt(matcher.group(1));
+                col = Integer.parseInt(matcher.group(2));
+                row = Integer.parseInt(matcher.group(3));
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Invalid tile address");
+                return;
+            }
+
+            if (zoomLevel > RenderedPartialFactory.MAX_ZOOM_LEVEL) {
+                sendError(exchange, 404, "Zoom level out of range: " + zoomLevel);
+                return;
+            }
+
+            if (isInWorld(zoomLevel, col, row) == false) {
+                sendError(exchange, 404, "Tile out of range: " + zoomLevel + "/" + col + "/" + row);
+                return;
+            }
+
+            record(zoomLevel, col, row);
+
+            byte[] png;
+            try {
+                png = getPng(zoomLevel, col, row);
+            } catch (TimeoutException e) {
+                sendError(exchange, 503, "Timeout while rendering tile");
+                return;
+            } catch (ExecutionException e) {
+                sendError(exchange, 503, "Tile not rendered: " + e.getCause());
+                return;
+            }
+
+            if (png == null) {
+                sendError(exchange, 500, "Unable to encode tile");
+                return;
+            }
+
+            String etag = computeETag(png);
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", etag);
+            headers.set("Cache-Control", "no-cache");
+
+            if (matchesETag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                metrics.increment(CacheMetrics.HTTP_NOT_MODIFIED);
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            headers.set("Content-Type", "image/png");
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(png);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+            metrics.recordSince(CacheMetrics.HTTP_REQUEST, start);
+        }
+    }
+
+    /**
+     * Return a partial encoded in PNG. Encoded image is searched in store first, then partial is loaded or rendered.
+     *
+     * @param zoomLevel
+     * @param col
+     * @param row
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ExecutionException
+     * @throws TimeoutException
+     */
+    private byte[] getPng(int zoomLevel, int col, int row) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+
+        RenderedPartialStore store = factory.getStore();
+        PartialKey key = PartialKey.fromEnvelope(RenderedPartialFactory.getPartialArea(col, row,
+                RenderedPartialFactory.getSideForZoomLevel(zoomLevel)), factory.getContentFingerprint());
+
+        ByteBuffer encoded = store.getEncoded(key);
+        if (encoded != null) {
+            return toPng(encoded);
+        }
+
+        RenderedPartial part = factory.requestPartial(zoomLevel, col, row).get(RENDER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // image can be encoded already
+        encoded = store.getEncoded(key);
+        if (encoded != null) {
+            return toPng(encoded);
+        }
+
+        BufferedImage img = store.getLoadedImage(part);
+        if (img == null) {
+            return null;
+        }
+        return RESPONSE_CODEC.encode(img);
+    }
+
+    /**
+     * Return PNG data of a stored image. PNG images are copied without decoding.
+     *
+     * @param encoded
+     * @return
+     * @throws IOException
+     */
+    private static byte[] toPng(ByteBuffer encoded) throws IOException {
+
+        ByteBuffer data = encoded.duplicate();
+        byte codecId = BufferedImagePersister.getCodecId(data);
+
+        if (codecId == PngTileCodec.ID) {
+            data.get();
+        } else if (codecId != -1) {
+            BufferedImage img = BufferedImagePersister.bytesToImage(data);
+            return img != null ? RESPONSE_CODEC.encode(img) : null;
+        }
+
+        byte[] png = new byte[data.remaining()];
+        data.get(png);
+        return png;
+    }
+
+    private static String computeETag(byte[] png) {
+        CRC32 crc = new CRC32();
+        crc.update(png, 0, png.length);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(png.length) + "\"";
+    }
+
+    /**
+     * Return true if value of an If-None-Match header contains etag
+     *
+     * @param ifNoneMatch
+     * @param etag
+     * @return
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void record(int zoomLevel, int col, int row) {
+        BufferedWriter output = traceOutput;
+        if (output == null) {
+            return;
+        }
+        synchronized (output) {
+            try {
+                output.write(zoomLevel + "/" + col + "/" + row);
+                output.newLine();
+                output.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Return true if partial of grid intersects WGS84 bounds, -180,-90 180,90
+     *
+     * @param zoomLevel
+     * @param col
+     * @param row
+     * @return
+     */
+    public static boolean isInWorld(int zoomLevel, int col, int row) {
+        double side = RenderedPartialFactory.getSideForZoomLevel(zoomLevel);
+        return col >= Math.floor(-180 / side) && col < Math.ceil(180 / side)
+                && row >= Math.floor(-90 / side) && row < Math.ceil(90 / side);
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) {
+        if (status >= 500) {
+            metrics.increment(CacheMetrics.HTTP_FAILED);
+        }
+        try {
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            // client is gone, or headers were already sent
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        System.setProperty("java.awt.headless", "true");
+
+        ArrayList<Path> shapes = new ArrayList<>();
+        int port = DEFAULT_PORT;
+        int threads = DEFAULT_THREADS;
+        int renderThreads = PartialRenderScheduler.DEFAULT_POOL_SIZE;
+        PartialStore.Backend backend = PartialStore.Backend.H2;
+        Path directory = CachedRenderLab.CACHE_DATABASE_DIR;
+        Path trace = null;
+        long snapshotBytes = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                printUsageAndExit("Missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--shape":
+                    shapes.add(Paths.get(value));
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--render-threads":
+                    renderThreads = Integer.parseInt(value);
+                    break;
+                case "--backend":
+                    backend = PartialStore.Backend.valueOf(value);
+                    break;
+                case "--dir":
+                    directory = Paths.get(value);
+                    break;
+                case "--snapshot-mb":
+                    snapshotBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "--record":
+                    trace = Paths.get(value);
+                    break;
+                default:
+                    printUsageAndExit("Unknown option: " + arg);
+            }
+        }
+
+        if (shapes.isEmpty()) {
+            printUsageAndExit("Option --shape is required");
+        }
+
+        MapContent content = new MapContent();
+        for (Path shape : shapes) {
+            // with a snapshot budget, features are read once and rendered from memory, budget is shared by shapes
+            content.addLayer(snapshotBytes > 0
+                    ? CachedRenderLab.createShapeLayer(shape, snapshotBytes / shapes.size())
+                    : CachedRenderLab.createShapeLayer(shape));
+        }
+
+        RenderedPartialFactory factory = new RenderedPartialFactory(content, backend, directory);
+        factory.setRenderThreads(renderThreads);
+
+        PartialTileServer server = new PartialTileServer(factory, new InetSocketAddress(port), threads);
+        if (trace != null) {
+            server.recordTrace(trace);
+        }
+
+        // on interruption, write pending partials
+        AtomicBoolean disposed = new AtomicBoolean(false);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (disposed.compareAndSet(false, true)) {
+                server.stop(1);
+                factory.dispose();
+                content.dispose();
+            }
+        }));
+
+        server.start();
+        System.out.println("Serving partials on http://localhost:" + server.getAddress().getPort() + "/{z}/{x}/{y}.png");
+    }
+
+    private static void printUsageAndExit(String message) {
+        System.err.println(message);
+        System.err.println("Usage: PartialTileServer --shape file.shp [--shape other.shp] [--port 8080] [--threads N]"
+                + " [--render-threads N] [--backend H2|PACK_FILE] [--dir path] [--record trace.txt]"
+                + " [--snapshot-mb N]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,641 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Encode and write partials in a persistent store, without blocking rendering threads.
+ * <p>
+ * Images are encoded in a bounded pool of threads. If encoding queue is full, images are not persisted and a counter is
+ * incremented: they stay in memory and will be rendered again if needed.
+ * <p>
+ * Encoded images are written by a single thread, in batches. A batch is written when it reaches maximum size or when
+ * flush interval is elapsed since first pending image.
+ * <p>
+ * Encoded images waiting to be written can be read with getPending(), so partials are not rendered twice.
+ * <p>
+ * Each discard of a range increments an invalidation generation. Images are submitted with the generation observed
+ * before they were loaded or rendered, and images of a range discarded since are dropped, even if they are encoded or
+ * written after the discard.
+ * <p>
+ * Batches are written in store outside of discard lock, so discards do not wait for store. Partials of a batch discarded
+ * during its write are deleted from store after the write, and refused by runIfNotDiscarded() until they are deleted.
+ * <p>
+ * Encoding and writing latencies, written, dropped and failed partials are recorded in cache metrics.
+ */
+public class PartialWriteBehindQueue {
+
+    public static final int DEFAULT_ENCODER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_MAX_PENDING_ENCODINGS = 200;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 500;
+
+    /**
+     * Number of discarded ranges kept. Images submitted before older discards are dropped.
+     */
+    public static final int MAX_DISCARDED_RANGES = 1024;
+
+    private final PartialStore backend;
+
+    /**
+     * Metrics of cache owning this queue
+     */
+    private final CacheMetrics metrics;
+
+    private final ThreadPoolExecutor encoders;
+    private final Thread writer;
+
+    /**
+     * Encoded partials waiting to be written
+     */
+    private final LinkedBlockingQueue<EncodedPartial> toWrite;
+
+    /**
+     * Encoded images not yet written, by key
+     */
+    private final ConcurrentHashMap<PartialKey, byte[]> pending;
+
+    private final int maxBatchSize;
+    private final long flushIntervalMs;
+
+    private volatile boolean closed;
+
+    /**
+     * If true, submission waits for a free place in encoding queue instead of dropping image
+     */
+    private volatile boolean blockingSubmit;
+
+    /**
+     * Incremented on each discard
+     */
+    private final AtomicLong generation;
+
+    /**
+     * Discarded ranges with their generation, oldest first
+     */
+    private final ArrayDeque<DiscardedRange> discardedRanges;
+
+    /**
+     * Generation of the newest discarded range removed from list, images submitted before it are dropped
+     */
+    private long forgottenGeneration;
+
+    /**
+     * Held for reading while images are checked and made available, and for writing while ranges are discarded
+     */
+    private final ReentrantReadWriteLock discardLock;
+
+    /**
+     * Partials of the batch being written. Written under discard lock.
+     */
+    private volatile Set<PartialKey> writing;
+
+    /**
+     * Partials discarded while they were written, stored with an outdated image until they are deleted again
+     */
+    private final Set<PartialKey> staleKeys;
+
+    /**
+     * Codec used to encode images, or null to use default codec of BufferedImagePersister
+     */
+    private volatile TileCodec codec;
+
+    /**
+     * Notified with each encoded image, before it is written, or null
+     */
+    private volatile BiConsumer<PartialKey, byte[]> encodedListener;
+
+    private final AtomicLong encodedPartials;
+    private final AtomicLong writtenPartials;
+    private final AtomicLong droppedPartials;
+    private final AtomicLong failedPartials;
+    private final AtomicLong discardedPartials;
+    private final AtomicLong batches;
+
+    public PartialWriteBehindQueue(PartialStore backend, CacheMetrics metrics) {
+        this(backend, metrics, DEFAULT_ENCODER_THREADS, DEFAULT_MAX_PENDING_ENCODINGS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public PartialWriteBehindQueue(PartialStore backend, CacheMetrics metrics, int encoderThreads, int maxPendingEncodings,
+                                   int maxBatchSize, long flushIntervalMs) {
+
+        this.backend = backend;
+        this.metrics = metrics;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.toWrite = new LinkedBlockingQueue<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.closed = false;
+        this.generation = new AtomicLong(0);
+        this.discardedRanges = new ArrayDeque<>();
+        this.forgottenGeneration = 0;
+        this.discardLock = new ReentrantReadWriteLock();
+        this.writing = Collections.emptySet();
+        this.staleKeys = ConcurrentHashMap.newKeySet();
+
+        this.encodedPartials = new AtomicLong(0);
+        this.writtenPartials = new AtomicLong(0);
+        this.droppedPartials = new AtomicLong(0);
+        this.failedPartials = new AtomicLong(0);
+        this.discardedPartials = new AtomicLong(0);
+        this.batches = new AtomicLong(0);
+
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        this.encoders = new ThreadPoolExecutor(encoderThreads, encoderThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPendingEncodings), (r) -> {
+            Thread t = new Thread(r, "partial-encoder-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, this::rejected);
+
+        this.writer = new Thread(this::writeLoop, "partial-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Called when encoding queue is full. Wait for a free place if submission is blocking, otherwise reject image.
+     *
+     * @param task
+     * @param executor
+     */
+    private void rejected(Runnable task, ThreadPoolExecutor executor) {
+
+        if (blockingSubmit == false || executor.isShutdown()) {
+            throw new RejectedExecutionException("Encoding queue is full");
+        }
+
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for encoding queue", e);
+        }
+
+        // queue was closed meanwhile, task will not run
+        if (executor.isShutdown() && executor.remove(task)) {
+            throw new RejectedExecutionException("Encoding queue is closed");
+        }
+    }
+
+    /**
+     * If true, submit() waits for a free place in encoding queue instead of dropping image, e.g: to seed partials, where
+     * all images must be persisted. Rendering threads are then slowed down by encoders.
+     *
+     * @param blockingSubmit
+     */
+    public void setBlockingSubmit(boolean blockingSubmit) {
+        this.blockingSubmit = blockingSubmit;
+    }
+
+    public boolean isBlockingSubmit() {
+        return blockingSubmit;
+    }
+
+    /**
+     * Encode and write an image later. Return false if queue is full or closed, then image will not be persisted.
+     * <p>
+     * Image is considered as rendered now, use submit(key, area, img, generation) if it was rendered earlier.
+     *
+     * @param key
+     * @param area
+     * @param img
+     * @return
+     */
+    public boolean submit(PartialKey key, ReferencedEnvelope area, BufferedImage img) {
+        return submit(key, area, img, getGeneration());
+    }
+
+    /**
+     * Encode and write an image later. Return false if queue is full or closed, then image will not be persisted.
+     * <p>
+     * Image is dropped if its partial is discarded after specified generation.
+     *
+     * @param key
+     * @param area
+     * @param img
+     * @param generation generation observed before image was loaded or rendered, see getGeneration()
+     * @return
+     */
+    public boolean submit(PartialKey key, ReferencedEnvelope area, BufferedImage img, long generation) {
+
+        if (closed) {
+            dropped();
+            return false;
+        }
+
+        try {
+            encoders.execute(() -> {
+
+                long start = System.nanoTime();
+                byte[] encoded = BufferedImagePersister.encode(img, getCodec());
+                metrics.recordSince(CacheMetrics.ENCODE, start);
+
+                if (encoded == null) {
+                    failed(1);
+                    return;
+                }
+
+                encodedPartials.incrementAndGet();
+                if (encoded[0] == UniformTileCodec.ID) {
+                    metrics.increment(CacheMetrics.UNIFORM);
+                }
+
+                boolean current = runIfNotDiscarded(key, generation, () -> {
+                    BiConsumer<PartialKey, byte[]> listener = encodedListener;
+                    if (listener != null) {
+                        listener.accept(key, encoded);
+                    }
+
+                    pending.put(key, encoded);
+                    toWrite.offer(new EncodedPartial(key, area, encoded));
+                });
+
+                if (current == false) {
+                    discardedPartials.incrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped();
+            return false;
+        }
+    }
+
+    /**
+     * Set codec used to encode next images, e.g: JPEG for an opaque base layer and PNG for a transparent overlay. Codec is
+     * registered for decoding. Images already stored keep their codec.
+     *
+     * @param codec codec, or null to use default codec of BufferedImagePersister
+     */
+    public void setCodec(TileCodec codec) {
+        if (codec != null) {
+            BufferedImagePersister.registerCodec(codec);
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Return codec used to encode images
+     *
+     * @return
+     */
+    public TileCodec getCodec() {
+        TileCodec codec = this.codec;
+        return codec != null ? codec : BufferedImagePersister.getDefaultCodec();
+    }
+
+    /**
+     * Set an object notified with each encoded image, from encoding threads
+     *
+     * @param encodedListener
+     */
+    public void setEncodedListener(BiConsumer<PartialKey, byte[]> encodedListener) {
+        this.encodedListener = encodedListener;
+    }
+
+    private void dropped() {
+        droppedPartials.incrementAndGet();
+        metrics.increment(CacheMetrics.WRITE_DROPPED);
+    }
+
+    private void failed(int partials) {
+        failedPartials.addAndGet(partials);
+        metrics.add(CacheMetrics.WRITE_FAILED, partials);
+    }
+
+    /**
+     * Return encoded image of a partial waiting to be written, or null
+     *
+     * @param key
+     * @return
+     */
+    public ByteBuffer getPending(PartialKey key) {
+        byte[] encoded = pending.get(key);
+        return encoded != null ? ByteBuffer.wrap(encoded) : null;
+    }
+
+    /**
+     * Return current invalidation generation. It must be read before loading or rendering an image, then passed to
+     * submit() or runIfNotDiscarded().
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Forget pending images of a range of partials, they will not be written. Images of this range submitted or being
+     * encoded with an older generation are dropped too.
+     *
+     * @param range
+     */
+    public void discard(PartialKeyRange range) {
+        discardLock.writeLock().lock();
+        try {
+            discardedRanges.addLast(new DiscardedRange(range, generation.incrementAndGet()));
+            while (discardedRanges.size() > MAX_DISCARDED_RANGES) {
+                forgottenGeneration = discardedRanges.removeFirst().generation;
+            }
+            pending.keySet().removeIf(range::contains);
+            for (PartialKey key : writing) {
+                if (range.contains(key)) {
+                    staleKeys.add(key);
+                }
+            }
+        } finally {
+            discardLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return true if partial was discarded after specified generation, or if it is stored with an outdated image. Must
+     * be called under discard lock.
+     *
+     * @param key
+     * @param since
+     * @return
+     */
+    private boolean isDiscarded(PartialKey key, long since) {
+
+        if (staleKeys.contains(key)) {
+            return true;
+        }
+
+        // discarded ranges were forgotten, image may be outdated
+        if (since < forgottenGeneration) {
+            return true;
+        }
+
+        for (DiscardedRange discarded : discardedRanges) {
+            if (discarded.generation > since && discarded.range.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run an action if partial was not discarded after specified generation, e.g: to cache an image read from store.
+     * Action runs atomically with discards, so it cannot run after a discard of its partial.
+     *
+     * @param key
+     * @param generation generation observed before image was loaded or rendered
+     * @param action
+     * @return true if action was run
+     */
+    public boolean runIfNotDiscarded(PartialKey key, long generation, Runnable action) {
+        discardLock.readLock().lock();
+        try {
+            if (isDiscarded(key, generation)) {
+                return false;
+            }
+            action.run();
+            return true;
+        } finally {
+            discardLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collect encoded partials and write them in batches, until queue is closed and empty
+     */
+    private void writeLoop() {
+
+        ArrayList<EncodedPartial> batch = new ArrayList<>(maxBatchSize);
+
+        while (true) {
+
+            try {
+
+                // wait for first partial of batch
+                EncodedPartial first = toWrite.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && encoders.isTerminated() && toWrite.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+
+                // then wait until batch is full or flush interval is elapsed
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = closed ? 0 : deadline - System.currentTimeMillis();
+                    EncodedPartial next = remaining > 0 ? toWrite.poll(remaining, TimeUnit.MILLISECONDS) : toWrite.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+            } catch (InterruptedException e) {
+                // closing, write what is left
+                toWrite.drainTo(batch);
+                write(batch);
+                return;
+            }
+
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write a batch in store. On error, partials of batch are lost.
+     * <p>
+     * Store is written outside of discard lock. Partials discarded during write are deleted after it.
+     *
+     * @param batch
+     */
+    private void write(ArrayList<EncodedPartial> batch) {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // ignore discarded partials, then record partials written, so discards during write mark them as stale
+        ArrayList<EncodedPartial> toStore = new ArrayList<>(batch.size());
+        HashSet<PartialKey> keys = new HashSet<>();
+        discardLock.readLock().lock();
+        try {
+            for (EncodedPartial part : batch) {
+                if (pending.get(part.getKey()) == part.getEncodedImage()) {
+                    toStore.add(part);
+                    keys.add(part.getKey());
+                }
+            }
+            writing = keys;
+        } finally {
+            discardLock.readLock().unlock();
+        }
+
+        long start = System.nanoTime();
+        try {
+            int stored = backend.putAll(toStore);
+            metrics.recordSince(CacheMetrics.DB_WRITE, start);
+            writtenPartials.addAndGet(stored);
+            batches.incrementAndGet();
+            metrics.add(CacheMetrics.ADDED_IN_DATABASE, stored);
+        } catch (IOException e) {
+            failed(toStore.size());
+            e.printStackTrace();
+        } finally {
+            for (EncodedPartial part : toStore) {
+                pending.remove(part.getKey(), part.getEncodedImage());
+            }
+            deleteStale(keys);
+        }
+    }
+
+    /**
+     * Delete partials of a batch discarded during its write. Each of them is discarded again after deletion, so images
+     * read from store before deletion are refused.
+     *
+     * @param keys
+     */
+    private void deleteStale(Set<PartialKey> keys) {
+
+        ArrayList<PartialKey> stale = new ArrayList<>();
+        discardLock.readLock().lock();
+        try {
+            writing = Collections.emptySet();
+            for (PartialKey key : keys) {
+                if (staleKeys.contains(key)) {
+                    stale.add(key);
+                }
+            }
+        } finally {
+            discardLock.readLock().unlock();
+        }
+
+        for (PartialKey key : stale) {
+            PartialKeyRange range = PartialKeyRange.forKey(key);
+            try {
+                backend.delete(range);
+            } catch (IOException e) {
+                // outdated image stays in store, it is still refused
+                e.printStackTrace();
+                continue;
+            }
+            discard(range);
+            staleKeys.remove(key);
+            discardedPartials.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop accepting images, encode and write all pending images, then stop threads.
+     *
+     * @param timeoutMs maximum time to wait for pending writes
+     * @return true if all pending images were written before timeout
+     */
+    public boolean close(long timeoutMs) {
+
+        closed = true;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+            writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // images not written before timeout are lost
+        if (writer.isAlive()) {
+            int lost = encoders.shutdownNow().size() + toWrite.size();
+            writer.interrupt();
+            droppedPartials.addAndGet(lost);
+            metrics.add(CacheMetrics.WRITE_DROPPED, lost);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Return number of images waiting to be encoded or written
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return encoders.getQueue().size() + encoders.getActiveCount() + toWrite.size();
+    }
+
+    public long getEncodedPartials() {
+        return encodedPartials.get();
+    }
+
+    public long getWrittenPartials() {
+        return writtenPartials.get();
+    }
+
+    public long getDroppedPartials() {
+        return droppedPartials.get();
+    }
+
+    public long getFailedPartials() {
+        return failedPartials.get();
+    }
+
+    /**
+     * Return number of images dropped because their partial was discarded while they were rendered or encoded
+     *
+     * @return
+     */
+    public long getDiscardedPartials() {
+        return discardedPartials.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PartialWriteBehindQueue{" +
+                "queueDepth=" + getQueueDepth() +
+                ", encoded=" + encodedPartials +
+                ", written=" + writtenPartials +
+                ", batches=" + batches +
+                ", dropped=" + droppedPartials +
+                ", failed=" + failedPartials +
+                ", discarded=" + discardedPartials +
+                '}';
+    }
+
+    /**
+     * Range of partials discarded, with generation of discard
+     */
+    private static class DiscardedRange {
+
+        private final PartialKeyRange range;
+        private final long generation;
+
+        DiscardedRange(PartialKeyRange range, long generation) {
+            this.range = range;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.remipassmoilesel.cachedpanel;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Lossless PNG codec, with a tunable deflate level.
+ * <p>
+ * PNG writer of JRE 8 does not support compression settings, so images are written by this codec: 8 bits RGBA pixels, or
+ * RGB pixels if image has no alpha, one IDAT chunk deflated with specified level. Filter of each row is chosen with the
+ * minimum sum of absolute differences heuristic. Images are read with ImageIO.
+ */
+public class PngTileCodec implements TileCodec {
+
+    public static final byte ID = 1;
+
+    /**
+     * Default deflate level, level of PNG writer of JRE 8
+     */
+    public static final int DEFAULT_DEFLATE_LEVEL = 9;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    private static final byte COLOR_TYPE_RGB = 2;
+    private static final byte COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final int deflateLevel;
+
+    public PngTileCodec() {
+        this(DEFAULT_DEFLATE_LEVEL);
+    }
+
+    /**
+     * @param deflateLevel from 0 (no compression, fastest) to 9 (best compression)
+     */
+    public PngTileCodec(int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Invalid deflate level: " + deflateLevel);
+        }
+        this.deflateLevel = deflateLevel;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "png-" + deflateLevel;
+    }
+
+    @Override
+    public byte[] encode(BufferedImage img) throws IOException {
+
+        int w = img.getWidth();
+        int h = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        int bpp = alpha ? 4 : 3;
+        int[] pixels = DeflateTileCodec.getPixels(img);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(w * h);
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(w);
+        header.putInt(h);
+        header.put((byte) 8);
+        header.put(alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        header.put(new byte[]{0, 0, 0});
+        writeChunk(data, "IHDR", header.array(), header.position());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(w * h);
+        Deflater deflater = new Deflater(deflateLevel);
+        try (DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater, 64 * 1024)) {
+
+            byte[] previous = new byte[w * bpp];
+            byte[] current = new byte[w * bpp];
+            byte[] filtered = new byte[w * bpp + 1];
+            byte[] best = new byte[w * bpp + 1];
+
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int argb = pixels[y * w + x];
+                    int i = x * bpp;
+                    current[i] = (byte) (argb >> 16);
+                    current[i + 1] = (byte) (argb >> 8);
+                    current[i + 2] = (byte) argb;
+                    if (alpha) {
+                        current[i + 3] = (byte) (argb >>> 24);
+                    }
+                }
+
+                long bestSum = Long.MAX_VALUE;
+                for (int filter = 0; filter <= FILTER_PAETH; filter++) {
+                    long sum = filter(filter, current, previous, bpp, filtered);
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        System.arraycopy(filtered, 0, best, 0, filtered.length);
+                    }
+                }
+                deflated.write(best);
+
+                byte[] tmp = previous;
+                previous = current;
+                current = tmp;
+            }
+
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IDAT", compressed.toByteArray(), compressed.size());
+
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Filter a row, write filter type then filtered bytes in result
+     *
+     * @param filter   filter type
+     * @param row      current row
+     * @param previous previous row, zeros for first row
+     * @param bpp      bytes per pixel
+     * @param result
+     * @return sum of absolute values of filtered bytes
+     */
+    private static long filter(int filter, byte[] row, byte[] previous, int bpp, byte[] result) {
+
+        result[0] = (byte) filter;
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+
+            int value;
+            switch (filter) {
+                case FILTER_SUB:
+                    value = x - a;
+                    break;
+                case FILTER_UP:
+                    value = x - b;
+                    break;
+                case FILTER_AVERAGE:
+                    value = x - (a + b) / 2;
+                    break;
+                case FILTER_PAETH:
+                    value = x - paeth(a, b, c);
+                    break;
+                default:
+                    value = x;
+            }
+
+            result[i + 1] = (byte) value;
+            sum += Math.abs((byte) value);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Write a chunk: length, type, data and CRC of type and data
+     *
+     * @param out
+     * @param type
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    @Override
+    public BufferedImage decode(ByteBuffer data) throws IOException {
+        try (InputStream in = BufferedImagePersister.toInputStream(data)) {
+            return ImageIO.read(in);
+        }
+    }
+
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+}
@@ -15,26 +15,36 @@ public class RenderedPartial {
     /**
      * Soft reference to the rendered image
      */
-    private SoftReference<BufferedImage> imageSoftRef;
+    private volatile SoftReference<BufferedImage> imageSoftRef;
 
     /**
      * Size in pixel
      */
-    private int renderedWidth;
+    private volatile int renderedWidth;
 
     /**
      * Size in pixel
      */
-    private int renderedHeight;
+    private volatile int renderedHeight;
 
     /**
      * World area of the referenced partial
      */
     private ReferencedEnvelope envelope;
 
+    /**
+     * Grid address of the referenced partial
+     */
+    private final PartialKey key;
+
     public RenderedPartial(BufferedImage image, ReferencedEnvelope envelope, int renderedWidth, int renderedHeight) {
+        this(image, envelope, 0, renderedWidth, renderedHeight);
+    }
+
+    public RenderedPartial(BufferedImage image, ReferencedEnvelope envelope, int fingerprint, int renderedWidth, int renderedHeight) {
         setImage(image, renderedWidth, renderedHeight);
         this.envelope = envelope;
+        this.key = PartialKey.fromEnvelope(envelope, fingerprint);
     }
 
     /**
@@ -73,6 +83,15 @@ public class RenderedPartial {
         return new ReferencedEnvelope(envelope);
     }
 
+    /**
+     * Get grid address of the rendered image
+     *
+     * @return
+     */
+    public PartialKey getKey() {
+        return key;
+    }
+
     public int getRenderedHeight() {
         return renderedHeight;
     }
@@ -1,14 +1,21 @@
 package org.remipassmoilesel.cachedpanel;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.Layer;
 import org.geotools.map.MapContent;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
 
 import java.awt.*;
 import java.awt.geom.Point2D;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Store and create partials
@@ -21,12 +28,39 @@ import java.util.ArrayList;
  */
 public class RenderedPartialFactory {
 
+    /**
+     * Side in degree of partials of zoom level 0. Each zoom level divide side by two.
+     */
+    public static final double ROOT_PARTIAL_SIDE_DG = 25.6d;
+
+    /**
+     * CRS of partial grid, and its identifier used in partial keys
+     */
+    public static final CoordinateReferenceSystem GRID_CRS = DefaultGeographicCRS.WGS84;
+    public static final String GRID_CRS_ID = SerializableRenderedPartial.crsToId(GRID_CRS);
+
+    public static final int DEFAULT_ZOOM_LEVEL = 4;
+    public static final int DEFAULT_PARTIAL_SIDE_PX = 500;
+
+    /**
+     * Deepest zoom level
+     */
+    public static final int MAX_ZOOM_LEVEL = 9;
+
     /**
      * Minimal size in degree of rendered map on partil
      */
-    private static final double MIN_PARTIAL_SIDE_DG = 0.05d;
+    private static final double MIN_PARTIAL_SIDE_DG = getSideForZoomLevel(MAX_ZOOM_LEVEL);
+
+    /**
+     * Number of parent levels searched for a placeholder of a missing partial
+     */
+    private static final int PLACEHOLDER_PARENT_LEVELS = 3;
 
-    private static long loadedPartialsReused = 0;
+    /**
+     * Number of factories created, used to name metrics in JMX
+     */
+    private static final AtomicInteger factoryCount = new AtomicInteger(0);
 
     /**
      * Associated map content
@@ -39,24 +73,159 @@ public class RenderedPartialFactory {
     private final RenderedPartialStore store;
 
     /**
-     * Zoom level of current rendering
+     * Partials currently loaded or rendered
+     */
+    private final PartialInFlightRegistry inFlight;
+
+    /**
+     * Execute partial jobs, closest from viewport center first
+     */
+    private final PartialRenderScheduler scheduler;
+
+    /**
+     * True if scheduler was created by this factory, false if it is shared with other factories
+     */
+    private final boolean ownScheduler;
+
+    /**
+     * Renderers bound to map content, leased by partial jobs
+     */
+    private final StreamingRendererPool renderers;
+
+    /**
+     * Choose partials to prepare around viewport
+     */
+    private final PartialPrefetcher prefetcher;
+
+    /**
+     * Update content fingerprint and invalidate partials when map content change
+     */
+    private final MapContentWatcher watcher;
+
+    /**
+     * Counters, gauges and latencies of this factory and its store
      */
-    private double partialSideDg = 2d;
+    private final CacheMetrics metrics;
+
+    /**
+     * Called after partials were invalidated, e.g: to refresh display
+     */
+    private volatile Runnable invalidationListener;
+
+    /**
+     * Zoom level of current rendering, in pyramid of partials
+     */
+    private int zoomLevel = DEFAULT_ZOOM_LEVEL;
+
+    /**
+     * Side in degree of partials of current zoom level
+     */
+    private double partialSideDg = getSideForZoomLevel(zoomLevel);
 
     /**
      * Default size in px of each partial
      */
-    private int partialSidePx = 500;
+    private int partialSidePx = DEFAULT_PARTIAL_SIDE_PX;
 
+    /**
+     * Fingerprint of rendered content, part of partial keys
+     */
+    private int contentFingerprint = 0;
+
+    /**
+     * Number of partials rendered in one paint operation, horizontally and vertically. 1 x 1 disable metatile mode.
+     */
+    private volatile int metatileCols = 1;
+    private volatile int metatileRows = 1;
 
     public RenderedPartialFactory(MapContent content) {
+        this(content, PartialStore.Backend.H2);
+    }
 
-        mapContent = content;
+    /**
+     * Create a factory storing partials with specified backend, in default cache directory
+     *
+     * @param content
+     * @param backend
+     */
+    public RenderedPartialFactory(MapContent content, PartialStore.Backend backend) {
+        this(content, backend, CachedRenderLab.CACHE_DATABASE_DIR);
+    }
+
+    /**
+     * Create a factory storing partials with specified backend, in specified directory
+     *
+     * @param content
+     * @param backend
+     * @param directory
+     */
+    public RenderedPartialFactory(MapContent content, PartialStore.Backend backend, Path directory) {
+        this(content, openBackend(backend, directory));
+    }
+
+    /**
+     * Create a factory storing partials with specified backend, in specified directory. Partial jobs are executed by
+     * specified scheduler, which can be shared between factories so they do not use more threads than processors.
+     * Shared scheduler is not shut down with factory.
+     *
+     * @param content
+     * @param backend
+     * @param directory
+     * @param scheduler
+     */
+    public RenderedPartialFactory(MapContent content, PartialStore.Backend backend, Path directory, PartialRenderScheduler scheduler) {
+        this(content, backend, directory, scheduler, RenderedPartialStore.DEFAULT_MEMORY_CACHE_BYTES, RenderedPartialStore.DEFAULT_OFF_HEAP_CACHE_BYTES);
+    }
 
+    /**
+     * Create a factory storing partials with specified backend, in specified directory, executing partial jobs with
+     * specified scheduler, see above. Sizes of caches are given, e.g: to share memory between several factories.
+     *
+     * @param content
+     * @param backend
+     * @param directory
+     * @param scheduler
+     * @param memoryCacheBytes  size of decoded images cache
+     * @param offHeapCacheBytes maximum size of encoded images cache, it can only be reduced later
+     */
+    public RenderedPartialFactory(MapContent content, PartialStore.Backend backend, Path directory, PartialRenderScheduler scheduler,
+                                  long memoryCacheBytes, long offHeapCacheBytes) {
+        this(content, openBackend(backend, directory), scheduler, false, memoryCacheBytes, offHeapCacheBytes);
+    }
+
+    /**
+     * Create a factory storing partials in specified store
+     *
+     * @param content
+     * @param backend
+     */
+    public RenderedPartialFactory(MapContent content, PartialStore backend) {
+        this(content, backend, new PartialRenderScheduler(), true,
+                RenderedPartialStore.DEFAULT_MEMORY_CACHE_BYTES, RenderedPartialStore.DEFAULT_OFF_HEAP_CACHE_BYTES);
+    }
+
+    private RenderedPartialFactory(MapContent content, PartialStore backend, PartialRenderScheduler scheduler, boolean ownScheduler,
+                                   long memoryCacheBytes, long offHeapCacheBytes) {
+        this.mapContent = content;
+        this.metrics = new CacheMetrics();
+        this.store = new RenderedPartialStore(backend, memoryCacheBytes, offHeapCacheBytes, metrics);
+        this.inFlight = new PartialInFlightRegistry();
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+        this.renderers = new StreamingRendererPool(content, scheduler.getPoolSize());
+        this.prefetcher = new PartialPrefetcher();
+        this.watcher = new MapContentWatcher(content, this);
+
+        metrics.registerGauge(CacheMetrics.SCHEDULER_QUEUE_DEPTH, scheduler::getQueueDepth);
+        metrics.registerGauge(CacheMetrics.IN_FLIGHT, inFlight::size);
+        metrics.registerMBean("factory-" + factoryCount.incrementAndGet());
+    }
+
+    private static PartialStore openBackend(PartialStore.Backend backend, Path directory) {
         try {
-            store = new RenderedPartialStore(CachedRenderLab.CACHE_DATABASE_DIR.resolve("partials.db"));
-        } catch (SQLException e) {
-            throw new RuntimeException("Unable to initialize database: " + e.getMessage(), e);
+            return backend.open(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to initialize partial store: " + e.getMessage(), e);
         }
     }
 
@@ -65,9 +234,10 @@ public class RenderedPartialFactory {
      *
      * @param ulc
      * @param pixelDimension
+     * @param toNotifyWhenPartialsCome called with each partial that was not in memory, when it is ready, or null
      * @return
      */
-    public RenderedPartialQueryResult intersect(Point2D ulc, Dimension pixelDimension, CoordinateReferenceSystem crs, Runnable toNotifyWhenPartialsCome) {
+    public RenderedPartialQueryResult intersect(Point2D ulc, Dimension pixelDimension, CoordinateReferenceSystem crs, Consumer<RenderedPartial> toNotifyWhenPartialsCome) {
 
         // get width and height in decimal dg
         double wdg = partialSideDg * pixelDimension.width / partialSidePx;
@@ -88,18 +258,24 @@ public class RenderedPartialFactory {
      * Get partials around a world envelope
      *
      * @param worldBounds
+     * @param toNotifyWhenPartialsCome called with each partial that was not in memory, when it is ready, or null
      * @return
      */
-    public RenderedPartialQueryResult intersect(ReferencedEnvelope worldBounds, Runnable toNotifyWhenPartialsCome) {
+    public RenderedPartialQueryResult intersect(ReferencedEnvelope worldBounds, Consumer<RenderedPartial> toNotifyWhenPartialsCome) {
 
         // keep the same value until end of rendering process, even if value is changed by setter
         double partialSideDg = this.partialSideDg;
+        int contentFingerprint = this.contentFingerprint;
 
         // Side value in decimal degree of each partial
         if (partialSideDg < MIN_PARTIAL_SIDE_DG) {
             partialSideDg = MIN_PARTIAL_SIDE_DG;
         }
 
+        // pending jobs out of this area are obsolete
+        ReferencedEnvelope prefetchArea = prefetcher.isEnabled() ? prefetcher.getPrefetchArea(worldBounds, partialSideDg) : worldBounds;
+        scheduler.setViewport(worldBounds, prefetchArea, PartialKey.sideToLevel(partialSideDg));
+
         ArrayList<RenderedPartial> rsparts = new ArrayList<>();
 
         // count partials
@@ -122,39 +298,43 @@ public class RenderedPartialFactory {
             }
 
             // compute needed area for next partial
-            ReferencedEnvelope area = new ReferencedEnvelope(x, round(x + partialSideDg), y, round(y + partialSideDg), DefaultGeographicCRS.WGS84);
+            ReferencedEnvelope area = new ReferencedEnvelope(x, round(x + partialSideDg), y, round(y + partialSideDg), GRID_CRS);
 
             // check if partial already exist and is already loaded
-            RenderedPartial part = store.searchInLoadedList(area);
-            if (part != null && part.getImage() != null) {
+            PartialKey key = PartialKey.fromEnvelope(area, contentFingerprint);
+            RenderedPartial part = store.searchInLoadedList(key);
+            if (part != null && store.getLoadedImage(part) != null) {
                 rsparts.add(part);
-                loadedPartialsReused++;
+                metrics.increment(CacheMetrics.REUSED_FROM_MEMORY);
+                prefetcher.displayed(key);
             }
 
             // partial does not exist or image is not loaded, create it
             else {
 
-                // partial processing has already been scheduled
-                if (PartialRenderingQueue.isRenderInProgress(area) && part != null) {
-                    rsparts.add(part);
-                }
+                // reuse partial if its image was released, or create a new one
+                RenderedPartial newPart = part != null ? part
+                        : store.addInLoadedList(new RenderedPartial(null, area, contentFingerprint, partialSidePx, partialSidePx));
+                rsparts.add(newPart);
 
-                // partial processing have to be scheduled
-                else {
-                    // create a new partial
-                    RenderedPartial newPart = new RenderedPartial(null, area, partialSidePx, partialSidePx);
-                    store.addInLoadedList(newPart);
-                    rsparts.add(newPart);
+                // schedule processing only if partial is not already loaded or rendered by someone else
+                PartialInFlightRegistry.Ticket ticket = inFlight.acquire(key);
+                if (ticket.isOwner()) {
 
                     // Create a queue if needed. In most case, it is not needed.
                     if (pr == null) {
-                        pr = new PartialRenderingQueue(mapContent, store, partialSidePx, partialSidePx, toNotifyWhenPartialsCome);
+                        pr = new PartialRenderingQueue(renderers, store, inFlight, scheduler, partialSidePx, partialSidePx, metatileCols, metatileRows);
                     }
 
                     // create a task to retrieve or render image from map
                     pr.addTask(newPart);
                 }
 
+                // notify of new tile arrival
+                if (toNotifyWhenPartialsCome != null) {
+                    ticket.getFuture().whenComplete((p, e) -> toNotifyWhenPartialsCome.accept(newPart));
+                }
+
             }
 
             // go to next
@@ -173,11 +353,21 @@ public class RenderedPartialFactory {
 
         }
 
+        // visible partials must stay in memory
+        ArrayList<PartialKey> visibleKeys = new ArrayList<>(rsparts.size());
+        for (RenderedPartial part : rsparts) {
+            visibleKeys.add(part.getKey());
+        }
+        store.getMemoryCache().setPinned(visibleKeys);
+
         // launch tasks to retrieve or produce partial in a separated thread, if needed
         if (pr != null) {
             pr.start();
         }
 
+        // prepare partials around viewport, with a lower priority
+        prefetch(worldBounds, partialSideDg, contentFingerprint);
+
         // if not enough tiles, return null to avoid errors on transformations
         if (rsparts.size() < 1) {
             return null;
@@ -195,6 +385,109 @@ public class RenderedPartialFactory {
         return new RenderedPartialQueryResult(rsparts, worldBounds, screenBounds, tileNumberW, tileNumberH);
     }
 
+    /**
+     * Return one partial of grid with its image, loaded from memory, from store, or rendered if needed.
+     * <p>
+     * Future fails if partial is dropped by scheduler or if processing fails.
+     *
+     * @param zoomLevel
+     * @param col
+     * @param row
+     * @return
+     */
+    public CompletableFuture<RenderedPartial> requestPartial(int zoomLevel, int col, int row) {
+
+        int contentFingerprint = this.contentFingerprint;
+        ReferencedEnvelope area = getPartialArea(col, row, getSideForZoomLevel(zoomLevel));
+        PartialKey key = PartialKey.fromEnvelope(area, contentFingerprint);
+
+        RenderedPartial part = store.searchInLoadedList(key);
+        if (part != null && store.getLoadedImage(part) != null) {
+            metrics.increment(CacheMetrics.REUSED_FROM_MEMORY);
+            return CompletableFuture.completedFuture(part);
+        }
+
+        PartialInFlightRegistry.Ticket ticket = inFlight.acquire(key);
+        if (ticket.isOwner()) {
+
+            if (part == null) {
+                part = store.addInLoadedList(new RenderedPartial(null, area, contentFingerprint, partialSidePx, partialSidePx));
+            }
+
+            PartialRenderingQueue pr = new PartialRenderingQueue(renderers, store, inFlight, scheduler, partialSidePx, partialSidePx, metatileCols, metatileRows);
+            pr.addTask(part);
+            pr.start();
+        }
+
+        return ticket.getFuture();
+    }
+
+    /**
+     * Schedule processing of partials around viewport and of parent and child levels, in limit of prefetch budget.
+     * <p>
+     * Partials already in memory or already in progress are ignored.
+     *
+     * @param worldBounds
+     * @param partialSideDg
+     * @param contentFingerprint
+     */
+    private void prefetch(ReferencedEnvelope worldBounds, double partialSideDg, int contentFingerprint) {
+
+        int budget = prefetcher.getBudget();
+        int scheduled = 0;
+        PartialRenderingQueue pr = null;
+
+        for (ReferencedEnvelope area : prefetcher.getCandidates(worldBounds, partialSideDg, MIN_PARTIAL_SIDE_DG)) {
+
+            if (scheduled >= budget) {
+                break;
+            }
+
+            PartialKey key = PartialKey.fromEnvelope(area, contentFingerprint);
+            if (store.getMemoryCache().contains(key)) {
+                continue;
+            }
+
+            PartialInFlightRegistry.Ticket ticket = inFlight.acquire(key);
+            if (ticket.isOwner() == false) {
+                continue;
+            }
+
+            RenderedPartial part = store.searchInLoadedList(key);
+            if (part == null) {
+                part = store.addInLoadedList(new RenderedPartial(null, area, contentFingerprint, partialSidePx, partialSidePx));
+            }
+
+            if (pr == null) {
+                pr = new PartialRenderingQueue(renderers, store, inFlight, scheduler, partialSidePx, partialSidePx, metatileCols, metatileRows);
+            }
+            pr.addTask(part);
+            ticket.getFuture().thenAccept(prefetcher::prefetched);
+
+            scheduled++;
+        }
+
+        prefetcher.scheduled(scheduled);
+
+        if (pr != null) {
+            pr.start();
+        }
+    }
+
+    /**
+     * Return area of a partial from its grid position
+     *
+     * @param col
+     * @param row
+     * @param sideDg
+     * @return
+     */
+    public static ReferencedEnvelope getPartialArea(int col, int row, double sideDg) {
+        double x = roundCoordinate(col * sideDg);
+        double y = roundCoordinate(row * sideDg);
+        return new ReferencedEnvelope(x, roundCoordinate(x + sideDg), y, roundCoordinate(y + sideDg), GRID_CRS);
+    }
+
     /**
      * Get the closest start point of specified coordinate.
      * <p>
@@ -222,20 +515,196 @@ public class RenderedPartialFactory {
      * @return
      */
     public double round(double coord) {
+        return roundCoordinate(coord);
+    }
+
+    private static double roundCoordinate(double coord) {
         return Math.round(coord * 1000000.0) / 1000000.0;
     }
 
     /**
+     * Set side of partials. Side is snapped to the closest zoom level of pyramid, so partials can be reused.
+     *
      * @param sideDg
      */
     public void setPartialSideDg(double sideDg) {
+        setZoomLevel((int) Math.round(Math.log(ROOT_PARTIAL_SIDE_DG / sideDg) / Math.log(2)));
+    }
 
-        this.partialSideDg = sideDg;
+    /**
+     * Set zoom level, between 0 and MAX_ZOOM_LEVEL. Side of partials is divided by two at each level.
+     *
+     * @param zoomLevel
+     */
+    public void setZoomLevel(int zoomLevel) {
+        zoomLevel = Math.max(0, Math.min(MAX_ZOOM_LEVEL, zoomLevel));
+        this.partialSideDg = getSideForZoomLevel(zoomLevel);
+        this.zoomLevel = zoomLevel;
+    }
 
-        if (partialSideDg < MIN_PARTIAL_SIDE_DG) {
-            partialSideDg = MIN_PARTIAL_SIDE_DG;
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * Return side in degree of partials of a zoom level
+     *
+     * @param zoomLevel
+     * @return
+     */
+    public static double getSideForZoomLevel(int zoomLevel) {
+        return ROOT_PARTIAL_SIDE_DG / (1 << zoomLevel);
+    }
+
+    /**
+     * Return partials of other zoom levels that can be displayed, scaled, while a partial is not loaded.
+     * <p>
+     * Closest loaded parent is searched first, then loaded children. Returned partials have an image in memory.
+     *
+     * @param part
+     * @return
+     */
+    public ArrayList<RenderedPartial> getPlaceholders(RenderedPartial part) {
+
+        ArrayList<RenderedPartial> result = new ArrayList<>();
+        PartialKey key = part.getKey();
+
+        // closest parent covering partial
+        for (int i = 1; i <= PLACEHOLDER_PARENT_LEVELS; i++) {
+            int factor = 1 << i;
+            PartialKey parentKey = new PartialKey(key.getLevel() * factor, Math.floorDiv(key.getCol(), factor),
+                    Math.floorDiv(key.getRow(), factor), key.getCrsId(), key.getFingerprint());
+            RenderedPartial parent = store.searchInLoadedList(parentKey);
+            if (parent != null && store.getLoadedImage(parent) != null) {
+                result.add(parent);
+                return result;
+            }
+        }
+
+        // or children covering parts of partial
+        if (key.getLevel() % 2 == 0) {
+            for (int c = 0; c < 2; c++) {
+                for (int r = 0; r < 2; r++) {
+                    PartialKey childKey = new PartialKey(key.getLevel() / 2, key.getCol() * 2 + c, key.getRow() * 2 + r,
+                            key.getCrsId(), key.getFingerprint());
+                    RenderedPartial child = store.searchInLoadedList(childKey);
+                    if (child != null && store.getLoadedImage(child) != null) {
+                        result.add(child);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove partials of all zoom levels intersecting an area, from memory and from database. Partials will be rendered
+     * again when needed.
+     * <p>
+     * Nothing is done if layer is not part of map content of this factory.
+     *
+     * @param layer changed layer
+     * @param area  changed area, in any CRS
+     * @return number of partials deleted from database
+     */
+    public int invalidate(Layer layer, ReferencedEnvelope area) {
+
+        if (mapContent.layers().contains(layer) == false) {
+            return 0;
+        }
+
+        ReferencedEnvelope gridArea = toGridArea(area);
+        int fingerprint = this.contentFingerprint;
+        int deleted = 0;
+        for (int z = 0; z <= MAX_ZOOM_LEVEL; z++) {
+            PartialKeyRange range = PartialKeyRange.fromEnvelope(gridArea, getSideForZoomLevel(z), GRID_CRS_ID, fingerprint);
+            try {
+                deleted += store.invalidate(range);
+            } catch (IOException e) {
+                metrics.increment(CacheMetrics.INVALIDATION_FAILED);
+                System.err.println("Unable to delete partials of " + range + ": " + e.getMessage());
+            }
         }
 
+        Runnable listener = invalidationListener;
+        if (listener != null) {
+            listener.run();
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Return an area expressed in CRS of partial grid. Layers and feature events use CRS of their data, which can be
+     * equivalent to grid CRS but with another identifier (e.g. GCS_WGS_1984 of a shapefile).
+     * <p>
+     * If area cannot be reprojected, the whole world is returned.
+     *
+     * @param area
+     * @return
+     */
+    public static ReferencedEnvelope toGridArea(ReferencedEnvelope area) {
+
+        CoordinateReferenceSystem crs = area.getCoordinateReferenceSystem();
+        if (crs == null) {
+            return new ReferencedEnvelope(area.getMinX(), area.getMaxX(), area.getMinY(), area.getMaxY(), GRID_CRS);
+        }
+
+        try {
+            return area.transform(GRID_CRS, true);
+        } catch (TransformException | FactoryException e) {
+            System.err.println("Unable to reproject area " + area + ", using whole world: " + e.getMessage());
+            return new ReferencedEnvelope(-180, 180, -90, 90, GRID_CRS);
+        }
+    }
+
+    /**
+     * Set an object called after partials were invalidated
+     *
+     * @param invalidationListener
+     */
+    public void setInvalidationListener(Runnable invalidationListener) {
+        this.invalidationListener = invalidationListener;
+    }
+
+    /**
+     * Stop watching map content and rendering partials, then write pending partials and close store. A shared scheduler
+     * is not shut down.
+     */
+    public void dispose() {
+        watcher.dispose();
+        metrics.unregisterMBean();
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return object watching map content
+     *
+     * @return
+     */
+    public MapContentWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Set fingerprint of rendered content. Partials rendered with another fingerprint will not be reused.
+     *
+     * @param contentFingerprint
+     */
+    public void setContentFingerprint(int contentFingerprint) {
+        this.contentFingerprint = contentFingerprint;
+    }
+
+    public int getContentFingerprint() {
+        return contentFingerprint;
     }
 
     public int getPartialSidePx() {
@@ -246,7 +715,93 @@ public class RenderedPartialFactory {
         return partialSideDg;
     }
 
-    public static long getLoadedPartialsReused() {
-        return loadedPartialsReused;
+    /**
+     * Return store used by this factory
+     *
+     * @return
+     */
+    public RenderedPartialStore getStore() {
+        return store;
+    }
+
+    /**
+     * Return registry of partials currently loaded or rendered
+     *
+     * @return
+     */
+    public PartialInFlightRegistry getInFlightRegistry() {
+        return inFlight;
+    }
+
+    /**
+     * Return scheduler of partial jobs, to configure it or read statistics
+     *
+     * @return
+     */
+    public PartialRenderScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Set number of threads and renderers used to load and render partials. If scheduler is shared, threads of other
+     * factories change too.
+     *
+     * @param threads
+     */
+    public void setRenderThreads(int threads) {
+        scheduler.setPoolSize(threads);
+        renderers.setSize(threads);
+    }
+
+    /**
+     * Render partials by blocks of cols x rows in one paint operation. Features are queried once per block and labels are
+     * not cut at partial borders, but each block needs a larger image.
+     * <p>
+     * Use 1 x 1 to render partials one by one.
+     *
+     * @param cols
+     * @param rows
+     */
+    public void setMetatileSize(int cols, int rows) {
+        if (cols < 1 || rows < 1) {
+            throw new IllegalArgumentException("Invalid metatile size: " + cols + "x" + rows);
+        }
+        this.metatileCols = cols;
+        this.metatileRows = rows;
+    }
+
+    public int getMetatileCols() {
+        return metatileCols;
+    }
+
+    public int getMetatileRows() {
+        return metatileRows;
+    }
+
+    /**
+     * Return prefetcher, to configure it or read statistics
+     *
+     * @return
+     */
+    public PartialPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Return pool of renderers used by partial jobs
+     *
+     * @return
+     */
+    public StreamingRendererPool getRenderers() {
+        return renderers;
+    }
+
+    /**
+     * Return metrics of this factory, also exported in JMX
+     *
+     * @return
+     */
+    public CacheMetrics getMetrics() {
+        return metrics;
     }
 }
@@ -0,0 +1,245 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In heap cache of rendered images, limited by a size in bytes.
+ * <p>
+ * Images are evicted in least recently used order when budget is exceeded. Pinned images (e.g: images currently displayed)
+ * are never evicted, even if budget is exceeded.
+ * <p>
+ * Images are weighted with size of their raster data, e.g: 4 bytes per pixel for TYPE_INT_RGB images. An image shared
+ * by several partials (e.g: uniform images, see UniformTileCodec) is weighted once.
+ */
+public class RenderedPartialMemoryCache {
+
+    /**
+     * Images in access order, eldest first
+     */
+    private final LinkedHashMap<PartialKey, BufferedImage> images;
+
+    /**
+     * Number of partials associated with each image
+     */
+    private final IdentityHashMap<BufferedImage, Integer> users;
+
+    /**
+     * Addresses of images that must not be evicted
+     */
+    private volatile Set<PartialKey> pinned;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Maximum size in bytes of cached images
+     */
+    private long maxBytes;
+
+    /**
+     * Current size in bytes of cached images
+     */
+    private long currentBytes;
+
+    public RenderedPartialMemoryCache(long maxBytes) {
+        this.images = new LinkedHashMap<>(64, 0.75f, true);
+        this.users = new IdentityHashMap<>();
+        this.pinned = Collections.emptySet();
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+        this.maxBytes = maxBytes;
+        this.currentBytes = 0;
+    }
+
+    /**
+     * Return image associated with this key or null. Image is marked as recently used.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized BufferedImage get(PartialKey key) {
+        BufferedImage img = images.get(key);
+        if (img != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return img;
+    }
+
+    /**
+     * Return true if an image is associated with this key. Access order and statistics are not modified.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean contains(PartialKey key) {
+        return images.containsKey(key);
+    }
+
+    /**
+     * Add an image in cache, then evict older images if needed
+     *
+     * @param key
+     * @param img
+     */
+    public synchronized void put(PartialKey key, BufferedImage img) {
+
+        if (img == null) {
+            throw new NullPointerException("Image is null");
+        }
+
+        BufferedImage old = images.put(key, img);
+        if (old != null) {
+            release(old);
+        }
+        retain(img);
+
+        evictIfNeeded();
+    }
+
+    /**
+     * Remove an image from cache
+     *
+     * @param key
+     */
+    public synchronized void remove(PartialKey key) {
+        BufferedImage old = images.remove(key);
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * Count a new partial using an image, image is weighted with its first partial
+     *
+     * @param img
+     */
+    private void retain(BufferedImage img) {
+        if (users.merge(img, 1, Integer::sum) == 1) {
+            currentBytes += weight(img);
+        }
+    }
+
+    /**
+     * Count a partial not using an image anymore, image is not weighted anymore after its last partial
+     *
+     * @param img
+     */
+    private void release(BufferedImage img) {
+        if (users.merge(img, -1, Integer::sum) == 0) {
+            users.remove(img);
+            currentBytes -= weight(img);
+        }
+    }
+
+    /**
+     * Return true if image associated with this key must not be evicted
+     *
+     * @param key
+     * @return
+     */
+    public boolean isPinned(PartialKey key) {
+        return pinned.contains(key);
+    }
+
+    /**
+     * Set addresses of images that must not be evicted. Previous pinned images are released.
+     *
+     * @param keys
+     */
+    public void setPinned(Collection<PartialKey> keys) {
+        this.pinned = Collections.unmodifiableSet(new HashSet<>(keys));
+        synchronized (this) {
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Evict least recently used images which are not pinned, until budget is respected
+     */
+    private void evictIfNeeded() {
+
+        if (currentBytes <= maxBytes) {
+            return;
+        }
+
+        Set<PartialKey> pinned = this.pinned;
+        Iterator<Map.Entry<PartialKey, BufferedImage>> it = images.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<PartialKey, BufferedImage> entry = it.next();
+            if (pinned.contains(entry.getKey())) {
+                continue;
+            }
+            it.remove();
+            release(entry.getValue());
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the size in bytes of raster data of an image. Pixels of opaque int images take 4 bytes, even if only 3 are
+     * used by colour model.
+     *
+     * @param img
+     * @return
+     */
+    public static long weight(BufferedImage img) {
+        DataBuffer buffer = img.getRaster().getDataBuffer();
+        long elementBytes = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (long) buffer.getSize() * buffer.getNumBanks() * elementBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictIfNeeded();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RenderedPartialMemoryCache{" +
+                "size=" + size() +
+                ", currentBytes=" + getCurrentBytes() +
+                ", maxBytes=" + getMaxBytes() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
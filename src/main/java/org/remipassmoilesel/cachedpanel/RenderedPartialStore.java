@@ -1,72 +1,227 @@
 package org.remipassmoilesel.cachedpanel;
 
-import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.field.SqlType;
-import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
-import com.j256.ormlite.stmt.SelectArg;
-import com.j256.ormlite.table.TableUtils;
-import org.geotools.geometry.jts.ReferencedEnvelope;
-
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Store partials in RAM and in database
+ * Store partials in RAM and in a persistent store
+ * <p>
+ * Partials should contains only soft links to images, in order to free memory when needed. Hard references to recently
+ * used images are kept in a memory cache (L1).
+ * <p>
+ * Encoded images are kept in an off heap cache (L2), so images evicted from memory cache are decoded without querying
+ * persistent store (L3).
  * <p>
- * Partials should contains only soft links to images, in order to free memory when needed
+ * Persistent storage is delegated to a PartialStore implementation. New partials are encoded and written later by a
+ * PartialWriteBehindQueue, so rendering threads do not wait for database.
  */
 public class RenderedPartialStore {
 
     /**
-     * Precision used when search existing partials by area in database
+     * Partials already used, indexed by grid address. They can be complete (with an image loaded) or not.
+     * <p>
+     * This map is read from EDT and written from rendering threads. Partials without image are pruned when map grows,
+     * see pruneLoadedList().
+     */
+    private final ConcurrentHashMap<PartialKey, RenderedPartial> loadedPartials;
+
+    /**
+     * Size of loaded list that triggers next pruning
+     */
+    private final AtomicInteger pruneThreshold;
+
+    /**
+     * True while loaded list is pruned, so only one thread prunes it
+     */
+    private final AtomicBoolean pruning;
+
+    /**
+     * Hard references to recently used images, limited in size
      */
-    private static final Double PRECISION = 0.0001d;
+    private final RenderedPartialMemoryCache memoryCache;
 
     /**
-     * List of partials already used. They can be complete (with an image loaded) or not.
+     * Encoded images, off heap, limited in size
      */
-    private ArrayList<RenderedPartial> loadedPartials;
+    private final OffHeapPartialCache offHeapCache;
 
-    private final Dao<SerializableRenderedPartial, ?> dao;
-    private final Path databasePath;
-    private final JdbcPooledConnectionSource connectionSource;
-    private static long addedInDatabase = 0;
+    /**
+     * Persistent storage of encoded images
+     */
+    private final PartialStore backend;
+
+    /**
+     * Encode and write new partials in backend
+     */
+    private final PartialWriteBehindQueue writeBehind;
+
+    /**
+     * Metrics of this store
+     */
+    private final CacheMetrics metrics;
+
+    /**
+     * Keep size of backend under a disk budget, unlimited by default
+     */
+    private final PartialStoreQuota quota;
+
+    /**
+     * Memory given by default to all caches: half of maximum heap. Other defaults are parts of it: decoded images and
+     * feature snapshots share heap, encoded images are in direct memory, limited by default to maximum heap size.
+     */
+    public static final long DEFAULT_CACHE_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * Default size of in memory cache: half of cache budget, the other half is for feature snapshots
+     */
+    public static final long DEFAULT_MEMORY_CACHE_BYTES = DEFAULT_CACHE_BUDGET_BYTES / 2;
+
+    /**
+     * Default size of off heap cache, as large as heap part of cache budget
+     */
+    public static final long DEFAULT_OFF_HEAP_CACHE_BYTES = DEFAULT_CACHE_BUDGET_BYTES / 2;
+
+    /**
+     * Minimal size of loaded list before it is pruned
+     */
+    public static final int MIN_PRUNE_THRESHOLD = 1024;
+
+    /**
+     * Maximum time to wait for pending writes when store is closed
+     */
+    public static final long CLOSE_TIMEOUT_MS = 10000;
+
+    /**
+     * Create a store using H2 backend in specified directory
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public RenderedPartialStore(Path directory) throws IOException {
+        this(PartialStore.Backend.H2.open(directory), DEFAULT_MEMORY_CACHE_BYTES);
+    }
+
+    public RenderedPartialStore(PartialStore backend, long memoryCacheBytes) {
+        this(backend, memoryCacheBytes, new CacheMetrics());
+    }
 
-    public RenderedPartialStore(Path databasePath) throws SQLException {
+    public RenderedPartialStore(PartialStore backend, long memoryCacheBytes, CacheMetrics metrics) {
+        this(backend, memoryCacheBytes, DEFAULT_OFF_HEAP_CACHE_BYTES, metrics);
+    }
 
-        this.loadedPartials = new ArrayList<>();
-        this.databasePath = databasePath;
+    public RenderedPartialStore(PartialStore backend, long memoryCacheBytes, long offHeapCacheBytes, CacheMetrics metrics) {
+        this.loadedPartials = new ConcurrentHashMap<>();
+        this.pruneThreshold = new AtomicInteger(MIN_PRUNE_THRESHOLD);
+        this.pruning = new AtomicBoolean(false);
+        this.memoryCache = new RenderedPartialMemoryCache(memoryCacheBytes);
+        this.offHeapCache = new OffHeapPartialCache(offHeapCacheBytes);
+        this.backend = backend;
+        this.metrics = metrics;
+        this.writeBehind = new PartialWriteBehindQueue(backend, metrics);
+        this.quota = new PartialStoreQuota(backend, metrics, 0, PartialStoreQuota.DEFAULT_INTERVAL_MS);
 
-        this.connectionSource = new JdbcPooledConnectionSource("jdbc:h2:./" + databasePath + ";DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=TRUE", "", "");
-        connectionSource.setMaxConnectionAgeMillis(5 * 60 * 1000);
-        connectionSource.setTestBeforeGet(true);
-        connectionSource.initialize();
+        metrics.registerGauge(CacheMetrics.WRITE_QUEUE_DEPTH, writeBehind::getQueueDepth);
+        metrics.registerGauge(CacheMetrics.MEMORY_CACHE_BYTES, memoryCache::getCurrentBytes);
+        metrics.registerGauge(CacheMetrics.MEMORY_CACHE_SIZE, memoryCache::size);
+        metrics.registerGauge(CacheMetrics.OFF_HEAP_BYTES, offHeapCache::getCurrentBytes);
+        metrics.registerGauge(CacheMetrics.OFF_HEAP_SIZE, offHeapCache::size);
 
-        // create tables
-        TableUtils.createTableIfNotExists(connectionSource, SerializableRenderedPartial.class);
+        // images are cached off heap as soon as they are encoded
+        writeBehind.setEncodedListener(offHeapCache::put);
+    }
 
-        // create dao object
-        this.dao = DaoManager.createDao(connectionSource, SerializableRenderedPartial.class);
+    /**
+     * Return a corresponding rendered partial or null
+     *
+     * @param key
+     * @return
+     */
+    public RenderedPartial searchInLoadedList(PartialKey key) {
+        return loadedPartials.get(key);
     }
 
     /**
-     * Return a corresponding rendered partial
+     * Return image of partial if it is still in memory, or null.
+     * <p>
+     * Image is searched in memory cache first, then in soft reference of partial. An image found in memory cache is set
+     * in partial if its reference was cleared, so it can be drawn.
      *
-     * @param env
+     * @param part
      * @return
      */
-    public RenderedPartial searchInLoadedList(ReferencedEnvelope env) {
-        for (RenderedPartial part : loadedPartials) {
-            if (part.getEnvelope().equals(env) == false) {
-                continue;
+    public BufferedImage getLoadedImage(RenderedPartial part) {
+        BufferedImage img = memoryCache.get(part.getKey());
+        if (img != null && part.getImage() != img) {
+            part.setImage(img, part.getRenderedWidth(), part.getRenderedHeight());
+        } else if (img == null) {
+            img = part.getImage();
+
+            // soft reference survived eviction, partial is used again
+            if (img != null) {
+                memoryCache.put(part.getKey(), img);
             }
-            return part;
         }
-        return null;
+
+        // partial is not read from backend while it is in memory, it must not be evicted as unused
+        if (img != null) {
+            backend.recordAccess(part.getKey());
+        }
+        return img;
+    }
+
+    /**
+     * Return encoded image of a partial waiting to be written, in off heap cache or stored in database, or null
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    public ByteBuffer getEncoded(PartialKey key) throws IOException {
+        return getEncoded(key, writeBehind.getGeneration());
+    }
+
+    /**
+     * Return encoded image of a partial, see getEncoded(key). Image read from backend is cached off heap only if partial
+     * was not invalidated since specified generation.
+     *
+     * @param key
+     * @param generation
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer getEncoded(PartialKey key, long generation) throws IOException {
+
+        // partial rendered recently, not written yet
+        ByteBuffer encoded = writeBehind.getPending(key);
+        if (encoded != null) {
+            metrics.increment(CacheMetrics.WRITE_BEHIND_HITS);
+            backend.recordAccess(key);
+            return encoded;
+        }
+
+        encoded = offHeapCache.get(key);
+        if (encoded != null) {
+            metrics.increment(CacheMetrics.OFF_HEAP_HITS);
+            backend.recordAccess(key);
+            return encoded;
+        }
+
+        long start = System.nanoTime();
+        encoded = backend.get(key);
+        metrics.recordSince(CacheMetrics.DB_READ, start);
+
+        if (encoded != null) {
+            metrics.increment(CacheMetrics.STORE_HITS);
+            ByteBuffer stored = encoded;
+            writeBehind.runIfNotDiscarded(key, generation, () -> offHeapCache.put(key, stored));
+        }
+
+        return encoded;
     }
 
     /**
@@ -74,77 +229,286 @@ public class RenderedPartialStore {
      *
      * @param part
      * @return
-     * @throws SQLException
+     * @throws IOException
      */
-    public boolean updatePartialFromDatabase(RenderedPartial part) throws SQLException {
+    public boolean updatePartialFromDatabase(RenderedPartial part) throws IOException {
 
-        // check if partial is in database
-        ReferencedEnvelope area = part.getEnvelope();
-        List<SerializableRenderedPartial> results = dao.queryBuilder().where().raw(
-                "ABS(" + SerializableRenderedPartial.PARTIAL_X1_FIELD_NAME + " - ?) < " + PRECISION + " "
-                        + "AND ABS(" + SerializableRenderedPartial.PARTIAL_X2_FIELD_NAME + " - ?) < " + PRECISION + " "
-                        + "AND ABS(" + SerializableRenderedPartial.PARTIAL_Y1_FIELD_NAME + " - ?) < " + PRECISION + " "
-                        + "AND ABS(" + SerializableRenderedPartial.PARTIAL_Y2_FIELD_NAME + " - ?) < " + PRECISION + " "
-                        + "AND CRS=?;",
+        // partial can be invalidated while it is read
+        long generation = writeBehind.getGeneration();
 
-                new SelectArg(SqlType.DOUBLE, area.getMinX()),
-                new SelectArg(SqlType.DOUBLE, area.getMaxX()),
-                new SelectArg(SqlType.DOUBLE, area.getMinY()),
-                new SelectArg(SqlType.DOUBLE, area.getMaxY()),
-                new SelectArg(SqlType.STRING, SerializableRenderedPartial.crsToId(area.getCoordinateReferenceSystem()))).query();
+        // check if partial is waiting to be written, then if partial is in database
+        ByteBuffer encoded = getEncoded(part.getKey(), generation);
 
         // no results found
-        if (results.size() < 1) {
+        if (encoded == null) {
             return false;
         }
 
-        // too much results, show error
-        if (results.size() > 1) {
-            new SQLException("More than one result found: " + results.size()).printStackTrace();
+        // one result found, prepare it for display and return it
+        BufferedImage img = CompatibleImages.toCompatible(BufferedImagePersister.bytesToImage(encoded));
+        if (img == null) {
+            return false;
         }
 
-        // one result found, prepare it and return it
-        BufferedImage img = results.get(0).getImage();
         int w = img.getWidth();
         int h = img.getHeight();
-        part.setImage(img, w, h);
 
-        // update in memory partial
-        loadedPartials.add(part);
+        // update in memory partial, if it was not invalidated meanwhile
+        pruneLoadedListIfNeeded();
+        return writeBehind.runIfNotDiscarded(part.getKey(), generation, () -> {
+            part.setImage(img, w, h);
+            memoryCache.put(part.getKey(), img);
+            loadedPartials.put(part.getKey(), part);
+        });
+
+    }
+
+    /**
+     * Add partial only in loaded list (RAM), if no partial with the same address is already present.
+     * <p>
+     * Return the partial present in list after this operation, the specified one or an existing one.
+     *
+     * @param part
+     * @return
+     */
+    public RenderedPartial addInLoadedList(RenderedPartial part) {
+        // pruned before addition, so new partial is not removed before its image is ready
+        pruneLoadedListIfNeeded();
+        RenderedPartial existing = loadedPartials.putIfAbsent(part.getKey(), part);
+        return existing != null ? existing : part;
+    }
 
-        return true;
+    /**
+     * Prune loaded list when its size reaches threshold. Threshold is then set to twice the size of pruned list, so cost
+     * of pruning is amortized over additions.
+     */
+    private void pruneLoadedListIfNeeded() {
 
+        if (loadedPartials.size() < pruneThreshold.get() || pruning.compareAndSet(false, true) == false) {
+            return;
+        }
+
+        try {
+            pruneLoadedList();
+            pruneThreshold.set(Math.max(MIN_PRUNE_THRESHOLD, loadedPartials.size() * 2));
+        } finally {
+            pruning.set(false);
+        }
     }
 
     /**
-     * Add partial only in loaded list (RAM)
+     * Remove partials whose image was evicted from memory cache and released by garbage collector, and which are not
+     * displayed. They are loaded again from off heap cache or from backend when needed.
+     * <p>
+     * Partials waiting for their image can be removed too, they are added again when their image is ready.
+     *
+     * @return number of partials removed
+     */
+    public int pruneLoadedList() {
+        int removed = 0;
+        for (RenderedPartial part : loadedPartials.values()) {
+            PartialKey key = part.getKey();
+            if (part.getImage() == null && memoryCache.contains(key) == false && memoryCache.isPinned(key) == false
+                    && loadedPartials.remove(key, part)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Return number of partials in loaded list
+     *
+     * @return
+     */
+    public int getLoadedListSize() {
+        return loadedPartials.size();
+    }
+
+    /**
+     * Remove a partial from loaded list and from memory cache. Partial stays in database.
+     *
+     * @param key
+     */
+    public void removeFromLoadedList(PartialKey key) {
+        loadedPartials.remove(key);
+        memoryCache.remove(key);
+    }
+
+    /**
+     * Add partial in loaded list, then encode it and write it in database later.
+     * <p>
+     * Image is considered as rendered now, use addPartial(part, generation) if it was rendered earlier.
      *
      * @param part
      */
-    public void addInLoadedList(RenderedPartial part) {
-        loadedPartials.add(part);
+    public void addPartial(RenderedPartial part) {
+        addPartial(part, writeBehind.getGeneration());
     }
 
     /**
-     * Add partial in loaded list and in database
+     * Add partial in loaded list, then encode it and write it in database later.
+     * <p>
+     * Rendered image is encoded as is, and replaced in partial by a copy in screen format. If write queue is full,
+     * partial is only kept in memory. If partial was invalidated while it was rendered, it is neither kept nor written.
      *
      * @param part
-     * @throws SQLException
+     * @param generation generation observed before rendering, see getGeneration()
+     * @return false if partial was invalidated while it was rendered
      */
-    public void addPartial(RenderedPartial part) throws SQLException {
+    public boolean addPartial(RenderedPartial part, long generation) {
 
-        if (part.getImage() == null) {
+        BufferedImage img = part.getImage();
+        if (img == null) {
             throw new NullPointerException("Image is null");
         }
 
-        dao.create(new SerializableRenderedPartial(part));
+        BufferedImage displayed = CompatibleImages.toCompatible(img);
+        if (displayed != img) {
+            part.setImage(displayed, part.getRenderedWidth(), part.getRenderedHeight());
+        }
 
-        addInLoadedList(part);
+        pruneLoadedListIfNeeded();
+        boolean current = writeBehind.runIfNotDiscarded(part.getKey(), generation, () -> {
+            memoryCache.put(part.getKey(), displayed);
+            loadedPartials.put(part.getKey(), part);
+        });
 
-        addedInDatabase++;
+        if (current) {
+            writeBehind.submit(part.getKey(), part.getEnvelope(), img, generation);
+        }
+        return current;
     }
 
-    public static long getAddedInDatabase() {
-        return addedInDatabase;
+    /**
+     * Return current invalidation generation. It must be read before rendering a partial, then passed to addPartial().
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return writeBehind.getGeneration();
+    }
+
+    /**
+     * Remove a range of partials from memory, from write queue and from database
+     *
+     * @param range
+     * @return number of partials deleted from database
+     * @throws IOException
+     */
+    public int invalidate(PartialKeyRange range) throws IOException {
+
+        // pending images are not written anymore
+        writeBehind.discard(range);
+
+        try {
+            return backend.delete(range);
+        } finally {
+
+            // images read or rendered before deletion are refused after this second discard, and removed below if they
+            // were cached before it. Memory is cleaned even if deletion failed.
+            writeBehind.discard(range);
+            offHeapCache.invalidate(range);
+
+            for (PartialKey key : loadedPartials.keySet()) {
+                if (range.contains(key)) {
+                    loadedPartials.remove(key);
+                    memoryCache.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return in memory image cache, to configure it or read statistics
+     *
+     * @return
+     */
+    public RenderedPartialMemoryCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Return off heap cache of encoded images, to read statistics
+     *
+     * @return
+     */
+    public OffHeapPartialCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    /**
+     * Return queue of partials waiting to be written, to read statistics
+     *
+     * @return
+     */
+    public PartialWriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set codec used to encode new partials of this store. Codecs without transparency (e.g: JPEG) must only be used for
+     * opaque layers.
+     *
+     * @param codec codec, or null to use default codec of BufferedImagePersister
+     */
+    public void setCodec(TileCodec codec) {
+        writeBehind.setCodec(codec);
+    }
+
+    public TileCodec getCodec() {
+        return writeBehind.getCodec();
+    }
+
+    /**
+     * Set maximum size in bytes of images stored in backend, 0 or less for no limit. Least recently used partials are
+     * deleted in background when size is over limit.
+     *
+     * @param maxBytes
+     * @throws IllegalStateException if backend cannot evict partials
+     */
+    public void setDiskQuota(long maxBytes) {
+        quota.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Return disk quota of backend, to read size and eviction statistics
+     *
+     * @return
+     */
+    public PartialStoreQuota getQuota() {
+        return quota;
+    }
+
+    /**
+     * Return metrics of this store
+     *
+     * @return
+     */
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return persistent storage used by this store
+     *
+     * @return
+     */
+    public PartialStore getBackend() {
+        return backend;
+    }
+
+    /**
+     * Write pending partials, then release persistent storage
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        quota.close();
+        if (writeBehind.close(CLOSE_TIMEOUT_MS) == false) {
+            System.err.println("Timeout while writing pending partials: " + writeBehind);
+        }
+        backend.close();
+        offHeapCache.clear();
     }
 }
@@ -0,0 +1,60 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Encoded image shared by partials with identical content, identified by its content hash.
+ * <p>
+ * Partials reference images with their IMAGE_HASH column, see SerializableRenderedPartial. Images are deleted when no
+ * partial reference them anymore, see H2PartialStore.
+ */
+@DatabaseTable(tableName = SerializablePartialImage.TABLE_NAME)
+public class SerializablePartialImage {
+
+    public static final String TABLE_NAME = "PARTIAL_IMAGES";
+    public static final String HASH_FIELD_NAME = "HASH";
+    public static final String IMAGE_FIELD_NAME = "IMAGE";
+    public static final String IMAGE_SIZE_FIELD_NAME = "IMAGE_SIZE";
+
+    /**
+     * SHA-1 of encoded image, see EncodedPartial.contentHash()
+     */
+    @DatabaseField(id = true, columnName = HASH_FIELD_NAME, width = 40)
+    private String hash;
+
+    /**
+     * Encoded rendered image, see BufferedImagePersister
+     */
+    @DatabaseField(columnName = IMAGE_FIELD_NAME, dataType = DataType.BYTE_ARRAY)
+    private byte[] image;
+
+    /**
+     * Size in bytes of encoded image
+     */
+    @DatabaseField(columnName = IMAGE_SIZE_FIELD_NAME)
+    private int imageSize;
+
+    public SerializablePartialImage() {
+
+    }
+
+    public SerializablePartialImage(String hash, byte[] image) {
+        this.hash = hash;
+        this.image = image;
+        this.imageSize = image.length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public byte[] getEncodedImage() {
+        return image;
+    }
+
+    public int getImageSize() {
+        return imageSize;
+    }
+}
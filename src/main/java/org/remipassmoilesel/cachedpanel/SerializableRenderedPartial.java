@@ -1,5 +1,6 @@
 package org.remipassmoilesel.cachedpanel;
 
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -7,11 +8,15 @@ import org.geotools.referencing.CRS;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import java.awt.image.BufferedImage;
 import java.util.Objects;
 
 /**
- * Portion of rendered map, serializable version. Contains:
+ * Portion of rendered map, serializable version. Contains an image, its world area and its grid address.
+ * <p>
+ * Grid address (level, column, row, CRS and fingerprint) is covered by an unique index, used for lookups.
+ * <p>
+ * Small images are stored in partial row. Others are shared between identical partials in SerializablePartialImage
+ * rows, referenced by their content hash.
  */
 @DatabaseTable(tableName = SerializableRenderedPartial.TABLE_NAME)
 public class SerializableRenderedPartial {
@@ -24,16 +29,31 @@ public class SerializableRenderedPartial {
     public static final String PARTIAL_Y1_FIELD_NAME = "Y1";
     public static final String PARTIAL_Y2_FIELD_NAME = "Y2";
     public static final String PARTIAL_CRS_FIELD_NAME = "CRS";
+    public static final String PARTIAL_LEVEL_FIELD_NAME = "GRID_LEVEL";
+    public static final String PARTIAL_COL_FIELD_NAME = "GRID_COL";
+    public static final String PARTIAL_ROW_FIELD_NAME = "GRID_ROW";
+    public static final String PARTIAL_FINGERPRINT_FIELD_NAME = "FINGERPRINT";
+    public static final String PARTIAL_LAST_ACCESS_FIELD_NAME = "LAST_ACCESS";
+    public static final String PARTIAL_IMAGE_SIZE_FIELD_NAME = "IMAGE_SIZE";
+    public static final String PARTIAL_IMAGE_HASH_FIELD_NAME = "IMAGE_HASH";
+    public static final String PARTIAL_CODEC_FIELD_NAME = "CODEC";
+    public static final String PARTIAL_KEY_INDEX_NAME = "PARTIALS_KEY_IDX";
 
 
     @DatabaseField(generatedId = true, columnName = PARTIAL_ID_FIELD_NAME)
     private long id;
 
     /**
-     * Hard reference to the rendered image. This reference is used only when writing object to database
+     * Encoded rendered image, see BufferedImagePersister, or null if image is shared
      */
-    @DatabaseField(columnName = PARTIAL_IMAGE_FIELD_NAME, persisterClass = BufferedImagePersister.class)
-    private BufferedImage image;
+    @DatabaseField(columnName = PARTIAL_IMAGE_FIELD_NAME, dataType = DataType.BYTE_ARRAY)
+    private byte[] image;
+
+    /**
+     * Content hash of shared image, or null if image is stored in this row
+     */
+    @DatabaseField(columnName = PARTIAL_IMAGE_HASH_FIELD_NAME, index = true, width = 40)
+    private String imageHash;
 
     /**
      * World coordinate BLC
@@ -59,38 +79,114 @@ public class SerializableRenderedPartial {
     @DatabaseField(columnName = PARTIAL_Y2_FIELD_NAME)
     private double y2;
 
-    @DatabaseField(columnName = PARTIAL_CRS_FIELD_NAME)
+    @DatabaseField(columnName = PARTIAL_CRS_FIELD_NAME, uniqueIndexName = PARTIAL_KEY_INDEX_NAME)
     private String crsId;
 
+    /**
+     * Grid level, see PartialKey
+     */
+    @DatabaseField(columnName = PARTIAL_LEVEL_FIELD_NAME, uniqueIndexName = PARTIAL_KEY_INDEX_NAME)
+    private int level;
+
+    /**
+     * Grid column, see PartialKey
+     */
+    @DatabaseField(columnName = PARTIAL_COL_FIELD_NAME, uniqueIndexName = PARTIAL_KEY_INDEX_NAME)
+    private int col;
+
+    /**
+     * Grid row, see PartialKey
+     */
+    @DatabaseField(columnName = PARTIAL_ROW_FIELD_NAME, uniqueIndexName = PARTIAL_KEY_INDEX_NAME)
+    private int row;
+
+    /**
+     * Fingerprint of rendered content, see PartialKey
+     */
+    @DatabaseField(columnName = PARTIAL_FINGERPRINT_FIELD_NAME, uniqueIndexName = PARTIAL_KEY_INDEX_NAME)
+    private int fingerprint;
+
+    /**
+     * Last time partial was read or written, in ms since epoch. Updated in batches, see H2PartialStore.
+     */
+    @DatabaseField(columnName = PARTIAL_LAST_ACCESS_FIELD_NAME, index = true)
+    private long lastAccess;
+
+    /**
+     * Size in bytes of encoded image, even if image is shared
+     */
+    @DatabaseField(columnName = PARTIAL_IMAGE_SIZE_FIELD_NAME)
+    private int imageSize;
+
+    /**
+     * Id of codec of image, see TileCodec, even if image is shared
+     */
+    @DatabaseField(columnName = PARTIAL_CODEC_FIELD_NAME)
+    private byte codecId;
+
     public SerializableRenderedPartial() {
 
     }
 
-    public SerializableRenderedPartial(RenderedPartial part) {
-        this(part.getImage(), part.getEnvelope());
+    public SerializableRenderedPartial(byte[] img, ReferencedEnvelope ev, PartialKey key) {
+        this(img, null, img.length, getCodecId(img), ev, key);
     }
 
-    public SerializableRenderedPartial(BufferedImage img, ReferencedEnvelope ev) {
-        this(img, ev.getMinX(), ev.getMaxX(), ev.getMinY(), ev.getMaxY(), crsToId(ev.getCoordinateReferenceSystem()));
+    /**
+     * Create a partial referencing a shared image
+     *
+     * @param imageHash
+     * @param imageSize
+     * @param codecId
+     * @param ev
+     * @param key
+     */
+    public SerializableRenderedPartial(String imageHash, int imageSize, byte codecId, ReferencedEnvelope ev, PartialKey key) {
+        this(null, imageHash, imageSize, codecId, ev, key);
     }
 
-    public SerializableRenderedPartial(BufferedImage img, double x1, double x2, double y1, double y2, String crsId) {
+    private SerializableRenderedPartial(byte[] img, String imageHash, int imageSize, byte codecId, ReferencedEnvelope ev, PartialKey key) {
         this.image = img;
-        this.x1 = x1;
-        this.x2 = x2;
-        this.y1 = y1;
-        this.y2 = y2;
-        this.crsId = crsId;
+        this.imageHash = imageHash;
+        this.x1 = ev.getMinX();
+        this.x2 = ev.getMaxX();
+        this.y1 = ev.getMinY();
+        this.y2 = ev.getMaxY();
+        this.crsId = key.getCrsId();
+        this.level = key.getLevel();
+        this.col = key.getCol();
+        this.row = key.getRow();
+        this.fingerprint = key.getFingerprint();
+        this.lastAccess = System.currentTimeMillis();
+        this.imageSize = imageSize;
+        this.codecId = codecId;
     }
 
-    public void setImage(BufferedImage img) {
+    /**
+     * Return codec id of an encoded image, see BufferedImagePersister
+     *
+     * @param img
+     * @return
+     */
+    public static byte getCodecId(byte[] img) {
+        return img != null && img.length > 0 ? img[0] : -1;
+    }
+
+    public void setEncodedImage(byte[] img) {
         this.image = img;
+        this.imageHash = null;
+        this.imageSize = img != null ? img.length : 0;
+        this.codecId = getCodecId(img);
     }
 
-    public BufferedImage getImage() {
+    public byte[] getEncodedImage() {
         return image;
     }
 
+    public String getImageHash() {
+        return imageHash;
+    }
+
     public static String crsToId(CoordinateReferenceSystem crs) {
         String authority = crs.getName().getAuthority() != null ? crs.getName().getAuthority() + ":" : "";
         return authority + crs.getName().getCode();
@@ -108,32 +204,58 @@ public class SerializableRenderedPartial {
         return id;
     }
 
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    public byte getCodecId() {
+        return codecId;
+    }
+
+    /**
+     * Return grid address of this partial
+     *
+     * @return
+     */
+    public PartialKey getKey() {
+        return new PartialKey(level, col, row, crsId, fingerprint);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         SerializableRenderedPartial that = (SerializableRenderedPartial) o;
-        return Double.compare(that.x1, x1) == 0 &&
-                Double.compare(that.x2, x2) == 0 &&
-                Double.compare(that.y1, y1) == 0 &&
-                Double.compare(that.y2, y2) == 0 &&
+        return level == that.level &&
+                col == that.col &&
+                row == that.row &&
+                fingerprint == that.fingerprint &&
                 Objects.equals(crsId, that.crsId);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(x1, x2, y1, y2, crsId);
+        return Objects.hash(level, col, row, crsId, fingerprint);
     }
 
     @Override
     public String toString() {
         return "SerializableRenderedPartial{" +
-                "image=" + image +
+                "image=" + (image != null ? image.length + " bytes" : imageHash) +
                 ", x1=" + x1 +
                 ", x2=" + x2 +
                 ", y1=" + y1 +
                 ", y2=" + y2 +
                 ", crs=" + crsId +
+                ", level=" + level +
+                ", col=" + col +
+                ", row=" + row +
+                ", fingerprint=" + fingerprint +
+                ", lastAccess=" + lastAccess +
                 '}';
     }
 }
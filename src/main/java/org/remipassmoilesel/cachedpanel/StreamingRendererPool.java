@@ -0,0 +1,155 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.remipassmoilesel.draw.RendererBuilder;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Pool of renderers bound to a map content.
+ * <p>
+ * StreamingRenderer is not thread safe, so each rendering thread lease a renderer for the duration of a paint operation,
+ * then release it. Renderers are created on demand, up to pool size.
+ */
+public class StreamingRendererPool {
+
+    private final MapContent content;
+    private int size;
+    private final LinkedBlockingQueue<StreamingRenderer> available;
+
+    /**
+     * Number of renderers created
+     */
+    private int created;
+
+    public StreamingRendererPool(MapContent content, int size) {
+        this.content = content;
+        this.size = size;
+        this.available = new LinkedBlockingQueue<>();
+        this.created = 0;
+    }
+
+    /**
+     * Return a free renderer. If no renderer is available and pool is full, wait for a release.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public StreamingRenderer lease() throws InterruptedException {
+
+        StreamingRenderer renderer = available.poll();
+        if (renderer != null) {
+            return renderer;
+        }
+
+        synchronized (this) {
+            if (created < size) {
+                created++;
+                renderer = RendererBuilder.getRenderer();
+                renderer.setMapContent(content);
+                return renderer;
+            }
+        }
+
+        return available.take();
+    }
+
+    /**
+     * Render an area of map in a new image, with a leased renderer
+     *
+     * @param bounds
+     * @param widthPx
+     * @param heightPx
+     * @return
+     * @throws InterruptedException
+     */
+    public BufferedImage render(ReferencedEnvelope bounds, int widthPx, int heightPx) throws InterruptedException {
+
+        BufferedImage img = new BufferedImage(widthPx, heightPx, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = img.createGraphics();
+
+        StreamingRenderer renderer = lease();
+        try {
+            renderer.paint(g2d, new Rectangle(widthPx, heightPx), bounds);
+        } finally {
+            release(renderer);
+            g2d.dispose();
+        }
+
+        return img;
+    }
+
+    /**
+     * Render a block of tiles in one paint operation, then slice it.
+     * <p>
+     * Result is indexed by [column][row], row 0 is the bottom row of block (lowest y), as in partial grid.
+     *
+     * @param bounds   area of whole block
+     * @param cols     number of tiles horizontally
+     * @param rows     number of tiles vertically
+     * @param tileWPx  width of a tile
+     * @param tileHPx  height of a tile
+     * @return
+     * @throws InterruptedException
+     */
+    public BufferedImage[][] renderTiles(ReferencedEnvelope bounds, int cols, int rows, int tileWPx, int tileHPx) throws InterruptedException {
+
+        BufferedImage block = render(bounds, cols * tileWPx, rows * tileHPx);
+
+        BufferedImage[][] tiles = new BufferedImage[cols][rows];
+        for (int c = 0; c < cols; c++) {
+            for (int r = 0; r < rows; r++) {
+
+                // image y axis goes down, grid rows go up
+                BufferedImage tile = new BufferedImage(tileWPx, tileHPx, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2d = tile.createGraphics();
+                g2d.setComposite(AlphaComposite.Src);
+                g2d.drawImage(block.getSubimage(c * tileWPx, (rows - 1 - r) * tileHPx, tileWPx, tileHPx), 0, 0, null);
+                g2d.dispose();
+
+                tiles[c][r] = tile;
+            }
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Give back a renderer obtained with lease()
+     *
+     * @param renderer
+     */
+    public void release(StreamingRenderer renderer) {
+        available.offer(renderer);
+    }
+
+    /**
+     * Change maximum number of renderers. Renderers already created are kept.
+     *
+     * @param size
+     */
+    public synchronized void setSize(int size) {
+        this.size = size;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized int getCreated() {
+        return created;
+    }
+
+    /**
+     * Return number of renderers currently leased
+     *
+     * @return
+     */
+    public int getLeased() {
+        return getCreated() - available.size();
+    }
+}
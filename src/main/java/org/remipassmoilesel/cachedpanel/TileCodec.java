@@ -0,0 +1,46 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encode and decode images of partials.
+ * <p>
+ * Each codec has a unique id, written by BufferedImagePersister before encoded data, so a stored partial can be decoded
+ * even if default codec changed.
+ */
+public interface TileCodec {
+
+    /**
+     * Return unique id of codec, stored with each encoded image
+     *
+     * @return
+     */
+    byte getId();
+
+    /**
+     * Return a readable name, e.g: for benchmarks
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Encode an image
+     *
+     * @param img
+     * @return
+     * @throws IOException
+     */
+    byte[] encode(BufferedImage img) throws IOException;
+
+    /**
+     * Decode an image from position to limit of buffer. Position of buffer can be modified.
+     *
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    BufferedImage decode(ByteBuffer data) throws IOException;
+}
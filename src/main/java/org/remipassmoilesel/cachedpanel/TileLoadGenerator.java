@@ -0,0 +1,282 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replay a trace of tile requests against a PartialTileServer, then report requests per second and latency percentiles.
+ * <p>
+ * A trace is a text file with one z/x/y per line, as recorded by PartialTileServer --record. Lines starting with # are
+ * ignored. Without trace, a pan of a viewport of tiles to the east is generated.
+ * <p>
+ * Each client replays whole trace, in order, one request at a time. With --etag, clients keep ETags of received tiles and
+ * send them in If-None-Match, as a browser would do.
+ * <p>
+ * Usage: TileLoadGenerator [--url http://localhost:8080] [--trace trace.txt | --pan z,col,row,cols,rows,steps]
+ * [--clients N] [--repeat N] [--etag]
+ */
+public class TileLoadGenerator {
+
+    public static final String DEFAULT_URL = "http://localhost:" + PartialTileServer.DEFAULT_PORT;
+
+    private static final int TIMEOUT_MS = 60000;
+
+    private final String baseUrl;
+    private final List<String> trace;
+    private final boolean sendETags;
+
+    private final LatencyHistogram latency;
+    private final ConcurrentHashMap<Integer, LongAdder> statuses;
+    private final LongAdder receivedBytes;
+    private final LongAdder errors;
+
+    public TileLoadGenerator(String baseUrl, List<String> trace, boolean sendETags) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.trace = trace;
+        this.sendETags = sendETags;
+        this.latency = new LatencyHistogram();
+        this.statuses = new ConcurrentHashMap<>();
+        this.receivedBytes = new LongAdder();
+        this.errors = new LongAdder();
+    }
+
+    /**
+     * Read a trace file, one z/x/y per line
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static List<String> readTrace(Path path) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() == false && line.startsWith("#") == false) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a trace of a viewport of cols x rows tiles, moved of one column to the east at each step
+     *
+     * @param zoomLevel
+     * @param col       column of lower left tile at start
+     * @param row       row of lower left tile
+     * @param cols
+     * @param rows
+     * @param steps
+     * @return
+     */
+    public static List<String> createPanTrace(int zoomLevel, int col, int row, int cols, int rows, int steps) {
+        ArrayList<String> result = new ArrayList<>();
+        for (int s = 0; s < steps; s++) {
+            for (int r = row; r < row + rows; r++) {
+                for (int c = col + s; c < col + s + cols; c++) {
+                    result.add(zoomLevel + "/" + c + "/" + r);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replay trace with several clients, return duration in ms
+     *
+     * @param clients
+     * @param repeat  number of times each client replays trace
+     * @return
+     * @throws InterruptedException
+     */
+    public long run(int clients, int repeat) throws InterruptedException {
+
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    HashMap<String, String> etags = new HashMap<>();
+                    for (int r = 0; r < repeat; r++) {
+                        for (String tile : trace) {
+                            request(tile, etags);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        done.await();
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Request one tile and read whole response
+     *
+     * @param tile
+     * @param etags ETags of tiles already received by client
+     */
+    private void request(String tile, Map<String, String> etags) {
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + "/" + tile + ".png").openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+
+            String etag = etags.get(tile);
+            if (sendETags && etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+            // read body, so connection can be reused
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        receivedBytes.add(read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+
+            if (status == 200 && connection.getHeaderField("ETag") != null) {
+                etags.put(tile, connection.getHeaderField("ETag"));
+            }
+
+            latency.recordSince(start);
+            statuses.computeIfAbsent(status, (s) -> new LongAdder()).increment();
+
+        } catch (IOException e) {
+            errors.increment();
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public long getRequests() {
+        return latency.getCount();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Return number of responses by HTTP status
+     *
+     * @return
+     */
+    public Map<Integer, Long> getStatuses() {
+        TreeMap<Integer, Long> result = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        String url = DEFAULT_URL;
+        List<String> trace = null;
+        int clients = 4;
+        int repeat = 1;
+        boolean sendETags = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--etag")) {
+                sendETags = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                printUsageAndExit("Missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--url":
+                    url = value;
+                    break;
+                case "--trace":
+                    trace = readTrace(Paths.get(value));
+                    break;
+                case "--pan":
+                    String[] parts = value.split(",");
+                    if (parts.length != 6) {
+                        printUsageAndExit("Invalid pan: " + value);
+                    }
+                    trace = createPanTrace(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--repeat":
+                    repeat = Integer.parseInt(value);
+                    break;
+                default:
+                    printUsageAndExit("Unknown option: " + arg);
+            }
+        }
+
+        // default pan: a maximized window of 500 px partials, around Spain, as in CachedRenderLab
+        if (trace == null) {
+            trace = createPanTrace(RenderedPartialFactory.DEFAULT_ZOOM_LEVEL, -5, 21, 5, 3, 20);
+        }
+
+        if (trace.isEmpty()) {
+            printUsageAndExit("Trace is empty");
+        }
+
+        TileLoadGenerator generator = new TileLoadGenerator(url, trace, sendETags);
+        long durationMs = generator.run(clients, repeat);
+
+        System.out.println("Trace: " + trace.size() + " tiles, clients: " + clients + ", repeat: " + repeat + ", ETags: " + sendETags);
+        System.out.println("Requests: " + generator.getRequests() + " in " + durationMs + " ms, "
+                + String.format("%.1f", generator.getRequests() * 1000d / Math.max(1, durationMs)) + " requests/s, "
+                + generator.getReceivedBytes() / 1024 + " kB received");
+        System.out.println("Statuses: " + generator.getStatuses() + ", connection errors: " + generator.getErrors());
+        System.out.println("Latency: " + new MetricsSnapshot.Latency(generator.getLatency()));
+    }
+
+    private static void printUsageAndExit(String message) {
+        System.err.println(message);
+        System.err.println("Usage: TileLoadGenerator [--url http://localhost:8080] [--trace trace.txt | --pan z,col,row,cols,rows,steps]"
+                + " [--clients N] [--repeat N] [--etag]");
+        System.exit(2);
+    }
+}
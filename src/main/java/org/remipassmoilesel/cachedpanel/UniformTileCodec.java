@@ -0,0 +1,181 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sentinel codec for images of one colour, e.g: empty sea or transparent background. Only size and colour are stored.
+ * <p>
+ * Images are checked with isUniform() before encoding, see BufferedImagePersister. Fully transparent pixels are
+ * considered equal whatever their colour.
+ * <p>
+ * Decoded images are shared: one image is created per size and colour, and returned for each partial of this colour.
+ * They must not be modified. Shared images are created in screen format (see CompatibleImages), so they are not copied
+ * again for display.
+ * <p>
+ * Format: width (int), height (int), ARGB colour (int).
+ */
+public class UniformTileCodec implements TileCodec {
+
+    public static final byte ID = 4;
+
+    /**
+     * Size of encoded data
+     */
+    public static final int ENCODED_SIZE = 12;
+
+    /**
+     * Size of a stored uniform image, with codec id
+     */
+    public static final int STORED_SIZE = ENCODED_SIZE + 1;
+
+    /**
+     * Maximum number of shared decoded images, other images are created at each decoding
+     */
+    private static final int MAX_DECODED_IMAGES = 256;
+
+    /**
+     * Decoded images, by size and colour
+     */
+    private final ConcurrentHashMap<ImageKey, BufferedImage> decodedImages = new ConcurrentHashMap<>();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "uniform";
+    }
+
+    /**
+     * Return true if all pixels of image have the same colour
+     *
+     * @param img
+     * @return
+     */
+    public static boolean isUniform(BufferedImage img) {
+
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int first = normalize(img.getRGB(0, 0));
+
+        // pixels of TYPE_INT_ARGB images are read directly from raster
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB && img.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            if (data.length == w * h) {
+                for (int pixel : data) {
+                    if (normalize(pixel) != first) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for (int pixel : row) {
+                if (normalize(pixel) != first) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int normalize(int argb) {
+        return (argb >>> 24) == 0 ? 0 : argb;
+    }
+
+    /**
+     * Encode size of image and colour of its first pixel. Image must be uniform.
+     *
+     * @param img
+     * @return
+     */
+    @Override
+    public byte[] encode(BufferedImage img) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(ENCODED_SIZE);
+        result.putInt(img.getWidth());
+        result.putInt(img.getHeight());
+        result.putInt(normalize(img.getRGB(0, 0)));
+        return result.array();
+    }
+
+    /**
+     * Return an image of encoded size and colour. Image is shared between partials of the same colour, it must not be
+     * modified.
+     *
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public BufferedImage decode(ByteBuffer data) throws IOException {
+
+        if (data.remaining() < ENCODED_SIZE) {
+            throw new IOException("Truncated uniform image: " + data.remaining() + " bytes");
+        }
+
+        int w = data.getInt();
+        int h = data.getInt();
+        int argb = data.getInt();
+        if (w < 1 || h < 1) {
+            throw new IOException("Invalid image size: " + w + "x" + h);
+        }
+
+        ImageKey key = new ImageKey(w, h, argb);
+        BufferedImage img = decodedImages.get(key);
+        if (img != null) {
+            return img;
+        }
+
+        img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        if (argb != 0) {
+            Arrays.fill(((DataBufferInt) img.getRaster().getDataBuffer()).getData(), argb);
+        }
+
+        if (decodedImages.size() >= MAX_DECODED_IMAGES) {
+            return img;
+        }
+        img = CompatibleImages.toCompatible(img);
+        BufferedImage existing = decodedImages.putIfAbsent(key, img);
+        return existing != null ? existing : img;
+    }
+
+    /**
+     * Size and colour of a decoded image
+     */
+    private static class ImageKey {
+
+        private final int width;
+        private final int height;
+        private final int argb;
+
+        ImageKey(int width, int height, int argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ImageKey that = (ImageKey) o;
+            return width == that.width && height == that.height && argb == that.argb;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * width + height) + argb;
+        }
+    }
+}
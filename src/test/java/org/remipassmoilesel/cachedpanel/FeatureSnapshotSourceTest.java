@@ -0,0 +1,169 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKTReader;
+import junit.framework.TestCase;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queries answered from snapshot or from wrapped source, memory budget, and changes of source while loading
+ */
+public class FeatureSnapshotSourceTest extends TestCase {
+
+    private static final FilterFactory2 FILTERS = CommonFactoryFinder.getFilterFactory2();
+
+    private SimpleFeatureType type;
+    private List<SimpleFeature> features;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("points");
+        typeBuilder.setCRS(DefaultGeographicCRS.WGS84);
+        typeBuilder.add("the_geom", Point.class);
+        typeBuilder.add("name", String.class);
+        type = typeBuilder.buildFeatureType();
+
+        features = new ArrayList<>();
+        WKTReader reader = new WKTReader();
+        String[] points = {"POINT(1 1)", "POINT(5 5)", "POINT(20 20)"};
+        for (int i = 0; i < points.length; i++) {
+            SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
+            featureBuilder.add(reader.read(points[i]));
+            featureBuilder.add("point " + i);
+            features.add(featureBuilder.buildFeature("point." + i));
+        }
+    }
+
+    private static Filter bbox(double minX, double minY, double maxX, double maxY) {
+        return FILTERS.bbox("the_geom", minX, minY, maxX, maxY, null);
+    }
+
+    private Query query(Filter filter) {
+        return new Query(type.getTypeName(), filter);
+    }
+
+    public void testQueriesAreAnsweredFromSnapshot() throws Exception {
+
+        FeatureSnapshotSource source = new FeatureSnapshotSource(DataUtilities.source(new ListFeatureCollection(type, features)), 1024 * 1024);
+
+        // snapshot is not loaded yet
+        assertEquals(2, source.getSource().getFeatures(bbox(0, 0, 10, 10)).size());
+        assertTrue(source.load());
+        assertEquals(3, source.getFeatureCount());
+        assertTrue(source.getEstimatedBytes() > 0);
+
+        assertEquals(2, source.getFeatures(bbox(0, 0, 10, 10)).size());
+        assertEquals(1, source.getFeatures(bbox(15, 15, 25, 25)).size());
+        assertEquals(0, source.getFeatures(bbox(-50, -50, -40, -40)).size());
+        assertEquals(3, source.getFeatures().size());
+
+        Query limited = query(Filter.INCLUDE);
+        limited.setMaxFeatures(2);
+        assertEquals(2, source.getFeatures(limited).size());
+
+        assertEquals(5, source.getMemoryQueries());
+        assertEquals(0, source.getSourceQueries());
+        source.dispose();
+    }
+
+    public void testQueriesNotAnsweredExactlyGoToSource() throws Exception {
+
+        FeatureSnapshotSource source = new FeatureSnapshotSource(DataUtilities.source(new ListFeatureCollection(type, features)), 1024 * 1024);
+        assertTrue(source.load());
+
+        Query forcedCrs = query(bbox(0, 0, 10, 10));
+        forcedCrs.setCoordinateSystem(DefaultGeographicCRS.WGS84);
+        source.getFeatures(forcedCrs);
+
+        Query unknownProperty = query(Filter.INCLUDE);
+        unknownProperty.setPropertyNames(new String[]{"the_geom", "population"});
+        try {
+            source.getFeatures(unknownProperty).size();
+        } catch (Exception e) {
+            // wrapped source may refuse unknown attribute
+        }
+
+        Query offset = query(Filter.INCLUDE);
+        offset.setStartIndex(1);
+        source.getFeatures(offset);
+
+        assertEquals(0, source.getMemoryQueries());
+        assertEquals(3, source.getSourceQueries());
+
+        // known attributes are answered with complete features
+        Query knownProperty = query(bbox(0, 0, 2, 2));
+        knownProperty.setPropertyNames(new String[]{"the_geom"});
+        try (SimpleFeatureIterator it = source.getFeatures(knownProperty).features()) {
+            assertEquals("point 0", it.next().getAttribute("name"));
+            assertFalse(it.hasNext());
+        }
+        assertEquals(1, source.getMemoryQueries());
+        source.dispose();
+    }
+
+    public void testBudgetExceeded() throws Exception {
+
+        FeatureSnapshotSource source = new FeatureSnapshotSource(DataUtilities.source(new ListFeatureCollection(type, features)), 300);
+
+        assertFalse(source.load());
+        assertFalse(source.isLoaded());
+        assertTrue(source.isBudgetExceeded());
+
+        // all queries go to source, snapshot is not loaded again
+        assertEquals(2, source.getFeatures(bbox(0, 0, 10, 10)).size());
+        assertEquals(3, source.getFeatures().size());
+        Thread.sleep(50);
+        assertFalse(source.isLoaded());
+        assertEquals(0, source.getMemoryQueries());
+        assertEquals(2, source.getSourceQueries());
+
+        // a change of source allows a new attempt
+        source.invalidate();
+        assertFalse(source.isBudgetExceeded());
+        source.dispose();
+    }
+
+    public void testSnapshotLoadedBeforeChangeIsDropped() throws Exception {
+
+        FeatureSnapshotSource[] holder = new FeatureSnapshotSource[1];
+        int[] reads = new int[1];
+
+        // source changes while first snapshot is read
+        ListFeatureCollection collection = new ListFeatureCollection(type, features) {
+            @Override
+            public SimpleFeatureIterator features() {
+                if (holder[0] != null && reads[0]++ == 0) {
+                    holder[0].invalidate();
+                }
+                return super.features();
+            }
+        };
+        FeatureSnapshotSource source = new FeatureSnapshotSource(DataUtilities.source(collection), 1024 * 1024);
+        holder[0] = source;
+
+        assertFalse(source.load());
+        assertFalse(source.isLoaded());
+        assertFalse(source.isBudgetExceeded());
+
+        // next load is not outdated
+        assertTrue(source.load());
+        assertEquals(3, source.getFeatureCount());
+        source.dispose();
+    }
+}
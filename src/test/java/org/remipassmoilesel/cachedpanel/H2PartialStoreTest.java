@@ -0,0 +1,23 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.nio.file.Path;
+
+/**
+ * H2 store, with access tracking and eviction
+ */
+public class H2PartialStoreTest extends PartialStoreTestCase {
+
+    @Override
+    protected PartialStore openStore(Path directory) throws Exception {
+        return new H2PartialStore(directory.resolve("partials.db"));
+    }
+
+    public void testEvictedPartialsAreCounted() throws Exception {
+
+        for (int i = 0; i < 4; i++) {
+            put(i, 0, image(i, 1000));
+        }
+        assertEquals(2, store.evictLeastRecentlyUsed(2000));
+        assertEquals(2, ((H2PartialStore) store).getEvictedPartials());
+    }
+}
@@ -0,0 +1,60 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Percentiles of latency histogram, with their relative error
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    /**
+     * Relative error of percentiles: 16 buckets per power of two
+     */
+    private static final double ERROR = 1d / 16;
+
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMs(50), 0);
+        assertEquals(0, histogram.getMeanMs(), 0);
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int us = 0; us < 10; us++) {
+            histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(us));
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(0.004, histogram.getPercentileMs(50), 1e-9);
+        assertEquals(0.009, histogram.getPercentileMs(100), 1e-9);
+        assertEquals(0.009, histogram.getMaxMs(), 1e-9);
+    }
+
+    public void testPercentiles() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMs(), 1e-6);
+        assertEquals(1000, histogram.getMaxMs(), 1e-6);
+
+        double[] percentiles = {1, 50, 95, 99, 100};
+        for (double p : percentiles) {
+            double value = histogram.getPercentileMs(p);
+            assertTrue("p" + p + "=" + value, value <= p * 10);
+            assertTrue("p" + p + "=" + value, value >= p * 10 * (1 - ERROR));
+        }
+    }
+
+    public void testNegativeDuration() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-1000);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMs(100), 0);
+    }
+}
@@ -0,0 +1,128 @@
+package org.remipassmoilesel.cachedpanel;
+
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.io.WKTReader;
+import junit.framework.TestCase;
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.SLD;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+
+import java.awt.*;
+import java.io.File;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Invalidation of partials when features of a layer change
+ */
+public class MapContentWatcherTest extends TestCase {
+
+    /**
+     * CRS written in .prj files by ESRI tools, equivalent to grid CRS but with another name
+     */
+    private static final String ESRI_WGS84 = "GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\","
+            + "SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],PRIMEM[\"Greenwich\",0.0],"
+            + "UNIT[\"Degree\",0.0174532925199433]]";
+
+    private static final int ZOOM_LEVEL = 4;
+
+    private Path directory;
+    private FileDataStore dataStore;
+    private MapContent content;
+    private MemoryPartialStore backend;
+    private RenderedPartialFactory factory;
+    private SimpleFeatureStore features;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        directory = Files.createTempDirectory("map-content-watcher-test");
+        File shapefile = directory.resolve("areas.shp").toFile();
+
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("areas");
+        typeBuilder.setCRS(CRS.parseWKT(ESRI_WGS84));
+        typeBuilder.add("the_geom", MultiPolygon.class);
+        typeBuilder.add("name", String.class);
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+        Map<String, Serializable> params = new HashMap<>();
+        params.put("url", shapefile.toURI().toURL());
+        ShapefileDataStore newDataStore = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+        newDataStore.createSchema(type);
+
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(newDataStore.getSchema());
+        featureBuilder.add(new WKTReader().read("MULTIPOLYGON(((5 5, 6 5, 6 6, 5 6, 5 5)))"));
+        featureBuilder.add("first");
+        SimpleFeatureStore newFeatures = (SimpleFeatureStore) newDataStore.getFeatureSource(newDataStore.getTypeNames()[0]);
+        newFeatures.addFeatures(new ListFeatureCollection(newDataStore.getSchema(),
+                Collections.singletonList(featureBuilder.buildFeature(null))));
+        newDataStore.dispose();
+
+        // reopen shapefile, CRS is read from .prj file
+        dataStore = FileDataStoreFinder.getDataStore(shapefile);
+        features = (SimpleFeatureStore) dataStore.getFeatureSource();
+
+        content = new MapContent();
+        content.addLayer(new FeatureLayer(features, SLD.createPolygonStyle(Color.BLUE, Color.CYAN, 0.5f)));
+
+        backend = new MemoryPartialStore();
+        factory = new RenderedPartialFactory(content, backend);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        factory.dispose();
+        content.dispose();
+        dataStore.dispose();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Store a partial of the grid containing a point
+     */
+    private PartialKey storePartial(double x, double y, int zoomLevel) {
+        double side = RenderedPartialFactory.getSideForZoomLevel(zoomLevel);
+        ReferencedEnvelope area = RenderedPartialFactory.getPartialArea((int) Math.floor(x / side), (int) Math.floor(y / side), side);
+        PartialKey key = PartialKey.fromEnvelope(area, factory.getContentFingerprint());
+        assertTrue(backend.put(key, area, new byte[]{1, 2, 3}));
+        return key;
+    }
+
+    public void testEditedFeatureInvalidatesPartials() throws Exception {
+
+        // layer CRS is named differently from grid CRS
+        String layerCrsId = SerializableRenderedPartial.crsToId(features.getSchema().getCoordinateReferenceSystem());
+        assertFalse(RenderedPartialFactory.GRID_CRS_ID.equals(layerCrsId));
+
+        PartialKey root = storePartial(5.5, 5.5, 0);
+        PartialKey edited = storePartial(5.5, 5.5, ZOOM_LEVEL);
+        PartialKey other = storePartial(-120, -40, ZOOM_LEVEL);
+
+        features.modifyFeatures("name", "second", Filter.INCLUDE);
+
+        assertFalse(backend.contains(root));
+        assertFalse(backend.contains(edited));
+        assertTrue(backend.contains(other));
+    }
+}
@@ -0,0 +1,117 @@
+package org.remipassmoilesel.cachedpanel;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Partial store in memory, for tests. Writes can be suspended to test what happens while a batch is written.
+ */
+public class MemoryPartialStore implements PartialStore {
+
+    private final ConcurrentHashMap<PartialKey, byte[]> images = new ConcurrentHashMap<>();
+
+    /**
+     * If not null, writes wait for this latch
+     */
+    private volatile CountDownLatch writeBlocker;
+
+    /**
+     * Released when a write starts
+     */
+    private final CountDownLatch writeStarted = new CountDownLatch(1);
+
+    /**
+     * Suspend next writes until resumeWrites() is called
+     */
+    public void suspendWrites() {
+        writeBlocker = new CountDownLatch(1);
+    }
+
+    public void resumeWrites() {
+        writeBlocker.countDown();
+    }
+
+    /**
+     * Wait until a write starts, return false on timeout
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean awaitWrite() throws InterruptedException {
+        return writeStarted.await(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public ByteBuffer get(PartialKey key) {
+        byte[] img = images.get(key);
+        return img != null ? ByteBuffer.wrap(img) : null;
+    }
+
+    @Override
+    public boolean put(PartialKey key, ReferencedEnvelope area, byte[] encodedImage) {
+        return images.putIfAbsent(key, encodedImage) == null;
+    }
+
+    @Override
+    public int putAll(Collection<EncodedPartial> partials) {
+        writeStarted.countDown();
+
+        CountDownLatch blocker = writeBlocker;
+        if (blocker != null) {
+            try {
+                blocker.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int stored = 0;
+        for (EncodedPartial part : partials) {
+            if (put(part.getKey(), part.getArea(), part.getEncodedImage())) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    @Override
+    public boolean contains(PartialKey key) {
+        return images.containsKey(key);
+    }
+
+    @Override
+    public int delete(PartialKeyRange range) {
+        ArrayList<PartialKey> deleted = new ArrayList<>();
+        for (PartialKey key : images.keySet()) {
+            if (range.contains(key) && images.remove(key) != null) {
+                deleted.add(key);
+            }
+        }
+        return deleted.size();
+    }
+
+    @Override
+    public long getStoredBytes() {
+        long size = 0;
+        for (byte[] img : images.values()) {
+            size += img.length;
+        }
+        return size;
+    }
+
+    @Override
+    public long getPartialCount() {
+        return images.size();
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,123 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of slabs of off heap cache
+ */
+public class OffHeapPartialCacheTest extends TestCase {
+
+    private static PartialKey key(int col) {
+        return new PartialKey(1000, col, 0, "EPSG:4326");
+    }
+
+    private static byte[] data(int value, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (value + i);
+        }
+        return data;
+    }
+
+    private static void assertData(byte[] expected, ByteBuffer actual) {
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.remaining());
+        for (byte b : expected) {
+            assertEquals(b, actual.get());
+        }
+    }
+
+    public void testPutGet() {
+
+        OffHeapPartialCache cache = new OffHeapPartialCache(100, 10);
+        cache.put(key(1), data(1, 4));
+        cache.put(key(2), data(2, 6));
+
+        assertData(data(1, 4), cache.get(key(1)));
+        assertData(data(2, 6), cache.get(key(2)));
+        assertNull(cache.get(key(3)));
+        assertEquals(10, cache.getCurrentBytes());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // images larger than a slab are ignored
+        cache.put(key(4), data(4, 11));
+        assertFalse(cache.contains(key(4)));
+    }
+
+    public void testRingWrap() {
+
+        // two slabs of 10 bytes, 2 images per slab
+        OffHeapPartialCache cache = new OffHeapPartialCache(20, 10);
+        for (int i = 0; i < 4; i++) {
+            cache.put(key(i), data(i, 5));
+        }
+        assertEquals(4, cache.size());
+        assertEquals(0, cache.getEvictions());
+
+        // first slab is reused, its two images are evicted at once
+        cache.put(key(4), data(4, 5));
+        assertFalse(cache.contains(key(0)));
+        assertFalse(cache.contains(key(1)));
+        assertEquals(2, cache.getEvictions());
+
+        assertData(data(2, 5), cache.get(key(2)));
+        assertData(data(3, 5), cache.get(key(3)));
+        assertData(data(4, 5), cache.get(key(4)));
+
+        // and second slab after
+        cache.put(key(5), data(5, 5));
+        cache.put(key(6), data(6, 5));
+        assertFalse(cache.contains(key(2)));
+        assertFalse(cache.contains(key(3)));
+        assertData(data(4, 5), cache.get(key(4)));
+        assertData(data(6, 5), cache.get(key(6)));
+        assertEquals(15, cache.getCurrentBytes());
+    }
+
+    public void testInvalidate() {
+
+        OffHeapPartialCache cache = new OffHeapPartialCache(100, 10);
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(i), data(i, 2));
+        }
+
+        cache.invalidate(new PartialKeyRange(1000, "EPSG:4326", 0, 1, 3, 0, 0));
+        assertTrue(cache.contains(key(0)));
+        assertFalse(cache.contains(key(1)));
+        assertFalse(cache.contains(key(3)));
+        assertTrue(cache.contains(key(4)));
+        assertEquals(4, cache.getCurrentBytes());
+    }
+
+    public void testSetMaxBytes() {
+
+        OffHeapPartialCache cache = new OffHeapPartialCache(100, 10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(key(i), data(i, 10));
+        }
+        assertEquals(100, cache.getAllocatedBytes());
+
+        // slabs above new size are released
+        cache.setMaxBytes(30);
+        assertEquals(30, cache.getMaxBytes());
+        assertEquals(30, cache.getAllocatedBytes());
+        assertEquals(3, cache.size());
+
+        for (int i = 10; i < 20; i++) {
+            cache.put(key(i), data(i, 10));
+        }
+        assertEquals(3, cache.size());
+        assertData(data(19, 10), cache.get(key(19)));
+
+        // size cannot exceed size given at construction
+        cache.setMaxBytes(1000);
+        assertEquals(100, cache.getMaxBytes());
+
+        cache.setMaxBytes(0);
+        cache.put(key(30), data(30, 10));
+        assertEquals(0, cache.size());
+    }
+}
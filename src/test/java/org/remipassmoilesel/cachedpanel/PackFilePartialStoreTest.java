@@ -0,0 +1,127 @@
+package org.remipassmoilesel.cachedpanel;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Pack file store, with small segments
+ */
+public class PackFilePartialStoreTest extends PartialStoreTestCase {
+
+    @Override
+    protected PartialStore openStore(Path directory) throws Exception {
+        return new PackFilePartialStore(directory, 16 * 1024);
+    }
+
+    public void testSegmentRollover() throws Exception {
+
+        // 10 kB images, one per segment
+        for (int i = 0; i < 5; i++) {
+            put(i, 0, image(i, 10 * 1024));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertImage(image(i, 10 * 1024), store.get(key(i, 0)));
+        }
+    }
+
+    public void testImagesAreSharedAfterReopen() throws Exception {
+
+        byte[] img = image(1, 2000);
+        put(0, 0, img);
+        store.close();
+
+        // content hash is read from index
+        store = openStore(directory);
+        put(0, 1, img);
+        assertEquals(2000, store.getStoredBytes());
+        assertImage(img, store.get(key(0, 1)));
+    }
+
+    public void testNothingIsReadAfterClose() throws Exception {
+        put(0, 0, image(0, 1000));
+        store.close();
+        assertNull(store.get(key(0, 0)));
+        store = null;
+    }
+
+    private long countSegmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter((p) -> p.getFileName().toString().endsWith(".pack")).count();
+        }
+    }
+
+    public void testEvictionCompactsSegments() throws Exception {
+
+        // 3 images per segment, last one alone in last segment
+        for (int i = 0; i < 7; i++) {
+            put(i, 0, image(i, 5000));
+        }
+        assertEquals(3, countSegmentFiles());
+        store.get(key(0, 0));
+        ByteBuffer before = store.get(key(5, 0));
+
+        assertEquals(4, store.evictLeastRecentlyUsed(15000));
+
+        // live images of first segments are moved to last segment
+        assertEquals(15000, store.getFileBytes());
+        assertEquals(1, countSegmentFiles());
+        assertImage(image(5, 5000), before);
+        assertImage(image(5, 5000), store.get(key(5, 0)));
+
+        store.close();
+        store = openStore(directory);
+        for (int i = 0; i < 7; i++) {
+            assertEquals("Partial " + i, i == 0 || i >= 5, store.contains(key(i, 0)));
+        }
+        assertImage(image(0, 5000), store.get(key(0, 0)));
+        assertEquals(15000, store.getFileBytes());
+
+        // segments are created again after compaction
+        put(10, 0, image(10, 5000));
+        put(11, 0, image(11, 5000));
+        store.close();
+        store = openStore(directory);
+        assertImage(image(10, 5000), store.get(key(10, 0)));
+        assertImage(image(11, 5000), store.get(key(11, 0)));
+    }
+
+    public void testSharedImagesSurviveCompaction() throws Exception {
+
+        byte[] shared = image(100, 5000);
+        put(0, 0, shared);
+        put(0, 1, shared);
+        put(1, 0, image(1, 5000));
+        put(2, 0, image(2, 5000));
+        put(3, 0, image(3, 5000));
+        store.get(key(0, 0));
+        store.get(key(0, 1));
+
+        // shared image is counted once, and moved once
+        assertEquals(2, store.evictLeastRecentlyUsed(10000));
+        assertEquals(10000, store.getStoredBytes());
+        assertEquals(10000, store.getFileBytes());
+        assertImage(shared, store.get(key(0, 0)));
+        assertImage(shared, store.get(key(0, 1)));
+
+        store.close();
+        store = openStore(directory);
+        put(0, 2, shared);
+        assertEquals(10000, store.getStoredBytes());
+    }
+
+    public void testSharedImageIsFreedWithLastPartial() throws Exception {
+
+        byte[] shared = image(100, 5000);
+        put(0, 0, shared);
+        put(0, 1, shared);
+        put(1, 0, image(1, 5000));
+        store.get(key(1, 0));
+
+        // first partial evicted does not free shared image
+        assertEquals(2, store.evictLeastRecentlyUsed(5000));
+        assertEquals(5000, store.getStoredBytes());
+        assertTrue(store.contains(key(1, 0)));
+    }
+}
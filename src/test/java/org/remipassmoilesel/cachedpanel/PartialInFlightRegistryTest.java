@@ -0,0 +1,113 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalescing of concurrent requests for the same partial
+ */
+public class PartialInFlightRegistryTest extends TestCase {
+
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(4);
+
+    private static RenderedPartial partial(int col, int row) {
+        return new RenderedPartial(new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB),
+                RenderedPartialFactory.getPartialArea(col, row, SIDE), 4, 4);
+    }
+
+    public void testOneOwnerPerPartial() throws Exception {
+
+        PartialInFlightRegistry registry = new PartialInFlightRegistry();
+        PartialKey key = partial(1, 2).getKey();
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger owners = new AtomicInteger(0);
+
+        ArrayList<Future<CompletableFuture<RenderedPartial>>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                PartialInFlightRegistry.Ticket ticket = registry.acquire(key);
+                if (ticket.isOwner()) {
+                    owners.incrementAndGet();
+                }
+                return ticket.getFuture();
+            }));
+        }
+        start.countDown();
+
+        // all callers wait on the same future
+        CompletableFuture<RenderedPartial> first = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<CompletableFuture<RenderedPartial>> result : results) {
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(1, owners.get());
+        assertTrue(registry.isInProgress(key));
+        assertEquals(1, registry.size());
+    }
+
+    public void testCompleteNotifiesWaiters() throws Exception {
+
+        PartialInFlightRegistry registry = new PartialInFlightRegistry();
+        RenderedPartial part = partial(3, 3);
+
+        PartialInFlightRegistry.Ticket owner = registry.acquire(part.getKey());
+        PartialInFlightRegistry.Ticket waiter = registry.acquire(part.getKey());
+        assertTrue(owner.isOwner());
+        assertFalse(waiter.isOwner());
+        assertFalse(waiter.getFuture().isDone());
+
+        registry.complete(part);
+        assertSame(part, waiter.getFuture().get(1, TimeUnit.SECONDS));
+        assertFalse(registry.isInProgress(part.getKey()));
+        assertNull(registry.get(part.getKey()));
+
+        // partial can be asked again later
+        assertTrue(registry.acquire(part.getKey()).isOwner());
+    }
+
+    public void testFailNotifiesWaiters() throws Exception {
+
+        PartialInFlightRegistry registry = new PartialInFlightRegistry();
+        PartialKey key = partial(0, 0).getKey();
+
+        registry.acquire(key);
+        PartialInFlightRegistry.Ticket waiter = registry.acquire(key);
+
+        registry.fail(key, new IllegalStateException("Rendering failed"));
+        try {
+            waiter.getFuture().get(1, TimeUnit.SECONDS);
+            fail("Failure expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(0, registry.size());
+        assertTrue(registry.acquire(key).isOwner());
+    }
+
+    public void testOtherPartialsAreIndependent() {
+
+        PartialInFlightRegistry registry = new PartialInFlightRegistry();
+        assertTrue(registry.acquire(partial(0, 0).getKey()).isOwner());
+        assertTrue(registry.acquire(partial(0, 1).getKey()).isOwner());
+
+        // completing a partial not in progress does nothing
+        registry.complete(partial(5, 5));
+        assertEquals(2, registry.size());
+    }
+}
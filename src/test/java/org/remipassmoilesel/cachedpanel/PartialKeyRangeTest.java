@@ -0,0 +1,59 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Ranges of partials used to delete or discard areas
+ */
+public class PartialKeyRangeTest extends TestCase {
+
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(3);
+
+    public void testFromEnvelope() {
+
+        // borders on grid lines: partials starting on max border are included
+        ReferencedEnvelope area = new ReferencedEnvelope(-SIDE, 2 * SIDE, 0, SIDE, DefaultGeographicCRS.WGS84);
+        PartialKeyRange range = PartialKeyRange.fromEnvelope(area, SIDE, 0);
+        assertEquals(-1, range.getMinCol());
+        assertEquals(2, range.getMaxCol());
+        assertEquals(0, range.getMinRow());
+        assertEquals(1, range.getMaxRow());
+
+        // borders inside partials
+        area = new ReferencedEnvelope(-SIDE / 2, SIDE / 2, -SIDE / 2, SIDE / 2, DefaultGeographicCRS.WGS84);
+        range = PartialKeyRange.fromEnvelope(area, SIDE, 0);
+        assertEquals(-1, range.getMinCol());
+        assertEquals(0, range.getMaxCol());
+        assertEquals(-1, range.getMinRow());
+        assertEquals(0, range.getMaxRow());
+    }
+
+    public void testContains() {
+
+        int level = PartialKey.sideToLevel(SIDE);
+        PartialKeyRange range = new PartialKeyRange(level, "EPSG:4326", 3, -2, 2, 0, 4);
+
+        assertTrue(range.contains(new PartialKey(level, -2, 0, "EPSG:4326", 3)));
+        assertTrue(range.contains(new PartialKey(level, 2, 4, "EPSG:4326", 3)));
+        assertFalse(range.contains(new PartialKey(level, -3, 0, "EPSG:4326", 3)));
+        assertFalse(range.contains(new PartialKey(level, 2, 5, "EPSG:4326", 3)));
+
+        // other level, fingerprint or CRS
+        assertFalse(range.contains(new PartialKey(level * 2, 0, 0, "EPSG:4326", 3)));
+        assertFalse(range.contains(new PartialKey(level, 0, 0, "EPSG:4326", 4)));
+        assertFalse(range.contains(new PartialKey(level, 0, 0, "EPSG:3857", 3)));
+    }
+
+    public void testGridCrsId() {
+
+        // area without CRS, as some feature events have
+        ReferencedEnvelope area = RenderedPartialFactory.toGridArea(new ReferencedEnvelope(SIDE, 2 * SIDE, 0, SIDE, null));
+        PartialKeyRange range = PartialKeyRange.fromEnvelope(area, SIDE, RenderedPartialFactory.GRID_CRS_ID, 2);
+
+        ReferencedEnvelope partialArea = RenderedPartialFactory.getPartialArea(1, 0, SIDE);
+        assertTrue(range.contains(PartialKey.fromEnvelope(partialArea, 2)));
+        assertFalse(range.contains(PartialKey.fromEnvelope(partialArea, 3)));
+    }
+}
@@ -0,0 +1,47 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+/**
+ * Grid maths of partial keys
+ */
+public class PartialKeyTest extends TestCase {
+
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(4);
+
+    public void testSideToLevel() {
+        assertEquals(25600000, PartialKey.sideToLevel(RenderedPartialFactory.ROOT_PARTIAL_SIDE_DG));
+        assertEquals(1600000, PartialKey.sideToLevel(SIDE));
+
+        // rounding errors of divisions must not change level
+        assertEquals(PartialKey.sideToLevel(0.05), PartialKey.sideToLevel(25.6 / 512));
+        assertEquals(SIDE, new PartialKey(PartialKey.sideToLevel(SIDE), 0, 0, "EPSG:4326").getSideDg(), 1e-9);
+    }
+
+    public void testFromEnvelope() {
+
+        PartialKey key = PartialKey.fromEnvelope(RenderedPartialFactory.getPartialArea(3, 2, SIDE), 7);
+        assertEquals(PartialKey.sideToLevel(SIDE), key.getLevel());
+        assertEquals(3, key.getCol());
+        assertEquals(2, key.getRow());
+        assertEquals(7, key.getFingerprint());
+
+        // partials west and south of origin have negative addresses
+        PartialKey negative = PartialKey.fromEnvelope(RenderedPartialFactory.getPartialArea(-1, -5, SIDE));
+        assertEquals(-1, negative.getCol());
+        assertEquals(-5, negative.getRow());
+    }
+
+    public void testEquals() {
+
+        PartialKey key = new PartialKey(1000, 2, 3, "EPSG:4326", 5);
+        assertEquals(key, new PartialKey(1000, 2, 3, "EPSG:4326", 5));
+        assertEquals(key.hashCode(), new PartialKey(1000, 2, 3, "EPSG:4326", 5).hashCode());
+
+        assertFalse(key.equals(new PartialKey(1000, 2, 3, "EPSG:4326", 6)));
+        assertFalse(key.equals(new PartialKey(1000, 3, 2, "EPSG:4326", 5)));
+        assertFalse(key.equals(new PartialKey(2000, 2, 3, "EPSG:4326", 5)));
+        assertFalse(key.equals(new PartialKey(1000, 2, 3, "EPSG:3857", 5)));
+        assertFalse(key.equals(new PartialKey(1000, 2, 3, null, 5)));
+    }
+}
@@ -0,0 +1,65 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import java.util.List;
+
+/**
+ * Choice of partials to prefetch
+ */
+public class PartialPrefetcherTest extends TestCase {
+
+    private static final double ROOT_SIDE = RenderedPartialFactory.ROOT_PARTIAL_SIDE_DG;
+    private static final double MIN_SIDE = RenderedPartialFactory.getSideForZoomLevel(10);
+
+    private static final ReferencedEnvelope VIEWPORT = new ReferencedEnvelope(1, 10, 1, 10, DefaultGeographicCRS.WGS84);
+
+    private static int countSide(List<ReferencedEnvelope> areas, double side) {
+        int count = 0;
+        for (ReferencedEnvelope area : areas) {
+            if (Math.abs(area.getWidth() - side) < 1e-9) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testRingAndAdjacentLevels() {
+
+        double side = ROOT_SIDE / 2;
+        List<ReferencedEnvelope> candidates = new PartialPrefetcher().getCandidates(VIEWPORT, side, MIN_SIDE);
+
+        // ring first, then parent, then children
+        assertEquals(8 + 1 + 4, candidates.size());
+        assertEquals(8, countSide(candidates.subList(0, 8), side));
+        assertEquals(ROOT_SIDE, candidates.get(8).getWidth(), 1e-9);
+        assertEquals(4, countSide(candidates, side / 2));
+    }
+
+    public void testNoParentAboveRoot() {
+
+        List<ReferencedEnvelope> candidates = new PartialPrefetcher().getCandidates(VIEWPORT, ROOT_SIDE, MIN_SIDE);
+
+        assertEquals(8 + 1, candidates.size());
+        assertEquals(0, countSide(candidates, ROOT_SIDE * 2));
+    }
+
+    public void testNoChildUnderMinimalSide() {
+
+        List<ReferencedEnvelope> candidates = new PartialPrefetcher().getCandidates(VIEWPORT, MIN_SIDE, MIN_SIDE);
+        assertEquals(0, countSide(candidates, MIN_SIDE / 2));
+    }
+
+    public void testPanDirectionFirst() {
+
+        PartialPrefetcher prefetcher = new PartialPrefetcher();
+        prefetcher.setPrefetchLevels(false);
+        prefetcher.recordPan(5, 0);
+
+        // partial east of viewport comes first
+        ReferencedEnvelope first = prefetcher.getCandidates(VIEWPORT, ROOT_SIDE / 2, MIN_SIDE).get(0);
+        assertTrue(first.getMinX() >= VIEWPORT.getMaxX());
+    }
+}
@@ -0,0 +1,144 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order and dropping of partial jobs
+ */
+public class PartialRenderSchedulerTest extends TestCase {
+
+    private static final int LEVEL = 1000;
+
+    private PartialRenderScheduler scheduler;
+
+    /**
+     * Keep the only thread busy until released, so next jobs are queued
+     */
+    private CountDownLatch blocker;
+
+    /**
+     * Names of executed and dropped jobs, in order
+     */
+    private List<String> executed;
+    private List<String> dropped;
+
+    @Override
+    protected void setUp() throws Exception {
+        scheduler = new PartialRenderScheduler(1, 10);
+        blocker = new CountDownLatch(1);
+        executed = Collections.synchronizedList(new ArrayList<>());
+        dropped = Collections.synchronizedList(new ArrayList<>());
+
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(new PartialKey(LEVEL, 0, 0, "EPSG:4326"), area(0, 0), () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        blocker.countDown();
+        scheduler.shutdown();
+    }
+
+    private static ReferencedEnvelope area(double x, double y) {
+        return new ReferencedEnvelope(x, x + 1, y, y + 1, DefaultGeographicCRS.WGS84);
+    }
+
+    private void submit(String name, int level, double x, double y, CountDownLatch done) {
+        scheduler.submit(new PartialKey(level, (int) x, (int) y, "EPSG:4326"), area(x, y), () -> {
+            executed.add(name);
+            done.countDown();
+        }, (reason) -> {
+            dropped.add(name);
+            done.countDown();
+        });
+    }
+
+    public void testVisibleJobsFirstClosestFirst() throws Exception {
+
+        // viewport centered on 5,5
+        scheduler.setViewport(new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84),
+                new ReferencedEnvelope(-20, 30, -20, 30, DefaultGeographicCRS.WGS84), LEVEL);
+
+        CountDownLatch done = new CountDownLatch(5);
+        submit("prefetch-1", LEVEL, 15, 15, done);
+        submit("far", LEVEL, 0, 0, done);
+        submit("other-level", LEVEL * 2, 4, 4, done);
+        submit("center", LEVEL, 4.5, 4.5, done);
+        submit("prefetch-2", LEVEL, -15, -15, done);
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // jobs out of viewport keep submission order
+        assertEquals(Arrays.asList("center", "far", "prefetch-1", "other-level", "prefetch-2"), executed);
+        assertTrue(dropped.isEmpty());
+    }
+
+    public void testObsoleteJobsAreDropped() throws Exception {
+
+        scheduler.setViewport(new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84), LEVEL);
+
+        CountDownLatch done = new CountDownLatch(2);
+        submit("kept", LEVEL, 5, 5, done);
+        submit("moved-away", LEVEL, 8, 8, done);
+
+        // viewport moves, second job is out of new prefetch area
+        scheduler.setViewport(new ReferencedEnvelope(0, 7, 0, 7, DefaultGeographicCRS.WGS84), LEVEL);
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(Collections.singletonList("kept"), executed);
+        assertEquals(Collections.singletonList("moved-away"), dropped);
+        assertEquals(1, scheduler.getDroppedJobs());
+    }
+
+    public void testLowestPriorityJobIsDroppedWhenQueueIsFull() throws Exception {
+
+        scheduler.setMaxQueueDepth(2);
+        scheduler.setViewport(new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84),
+                new ReferencedEnvelope(-20, 30, -20, 30, DefaultGeographicCRS.WGS84), LEVEL);
+
+        CountDownLatch done = new CountDownLatch(3);
+        submit("far", LEVEL, 0, 0, done);
+        submit("prefetch", LEVEL, 15, 15, done);
+        submit("center", LEVEL, 4.5, 4.5, done);
+
+        assertEquals(Collections.singletonList("prefetch"), dropped);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("center", "far"), executed);
+    }
+
+    public void testJobsSubmittedAfterShutdownAreDropped() throws Exception {
+
+        scheduler.shutdown();
+
+        CountDownLatch done = new CountDownLatch(1);
+        submit("late", LEVEL, 5, 5, done);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(executed.isEmpty());
+        assertEquals(Collections.singletonList("late"), dropped);
+        assertEquals(1, scheduler.getDroppedJobs());
+    }
+}
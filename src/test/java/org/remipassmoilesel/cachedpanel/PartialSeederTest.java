@@ -0,0 +1,99 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Counting of seeded partials with metatiles, and resume of an interrupted seeding
+ */
+public class PartialSeederTest extends TestCase {
+
+    private static final int ZOOM_LEVEL = 4;
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL);
+
+    private MapContent content;
+    private MemoryPartialStore backend;
+    private RenderedPartialFactory factory;
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new MapContent();
+        backend = new MemoryPartialStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (factory != null) {
+            factory.dispose();
+        }
+        content.dispose();
+    }
+
+    /**
+     * Seed partials of first columns and rows of grid, with metatiles of 2 x 2 partials
+     */
+    private PartialSeeder seed(int cols, int rows) throws InterruptedException {
+
+        if (factory != null) {
+            factory.dispose();
+        }
+        factory = new RenderedPartialFactory(content, backend);
+        factory.setMetatileSize(2, 2);
+
+        ReferencedEnvelope bbox = new ReferencedEnvelope(SIDE / 2, SIDE * (cols - 0.5), SIDE / 2, SIDE * (rows - 0.5),
+                DefaultGeographicCRS.WGS84);
+        PartialSeeder seeder = new PartialSeeder(factory);
+        seeder.seed(bbox, new int[]{ZOOM_LEVEL});
+        return seeder;
+    }
+
+    private int countStored(int cols, int rows) {
+        int count = 0;
+        for (int col = 0; col < cols; col++) {
+            for (int row = 0; row < rows; row++) {
+                ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(col, row, SIDE);
+                if (backend.contains(PartialKey.fromEnvelope(area, factory.getContentFingerprint()))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void testMetatileNeighboursAreRendered() throws Exception {
+
+        // first batch of partials ends in middle of row 5, with metatiles covering rest of row
+        PartialSeeder seeder = seed(6, 7);
+        factory.dispose();
+
+        // neighbours are rendered, not existing
+        assertEquals(42, seeder.getTotal());
+        assertEquals(42, seeder.getRendered());
+        assertEquals(0, seeder.getExisting());
+        assertEquals(0, seeder.getFailed());
+        assertEquals(42, countStored(6, 7));
+
+        // neighbours out of seeded area are rendered but not counted
+        assertEquals(48, countStored(6, 8));
+        factory = null;
+    }
+
+    public void testResume() throws Exception {
+
+        // metatiles of first row cover 4 x 2 partials
+        PartialSeeder first = seed(3, 1);
+        assertEquals(3, first.getRendered());
+
+        PartialSeeder second = seed(4, 4);
+        assertEquals(16, second.getTotal());
+        assertEquals(8, second.getExisting());
+        assertEquals(8, second.getRendered());
+        assertEquals(0, second.getFailed());
+
+        factory.dispose();
+        assertEquals(16, countStored(4, 4));
+        factory = null;
+    }
+}
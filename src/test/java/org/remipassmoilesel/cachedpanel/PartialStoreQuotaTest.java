@@ -0,0 +1,26 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+/**
+ * Budget of stores, and stores that cannot evict partials
+ */
+public class PartialStoreQuotaTest extends TestCase {
+
+    public void testBudgetIsRefusedWithoutEviction() {
+
+        PartialStoreQuota quota = new PartialStoreQuota(new MemoryPartialStore(), new CacheMetrics(), 0, 60000);
+        try {
+            quota.setMaxBytes(1000);
+            fail("Memory store cannot evict partials");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            quota.close();
+        }
+
+        // no limit is accepted
+        quota.setMaxBytes(0);
+        assertEquals(0, quota.getMaxBytes());
+    }
+}
@@ -0,0 +1,201 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Common tests of partial stores. Subclasses open the store to test in a temporary directory.
+ */
+public abstract class PartialStoreTestCase extends TestCase {
+
+    protected static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(4);
+
+    protected Path directory;
+    protected PartialStore store;
+
+    /**
+     * Open a store in specified directory, or the store previously closed in this directory
+     *
+     * @param directory
+     * @return
+     * @throws Exception
+     */
+    protected abstract PartialStore openStore(Path directory) throws Exception;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("partial-store-test");
+        store = openStore(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+
+    protected static PartialKey key(int col, int row) {
+        return PartialKey.fromEnvelope(RenderedPartialFactory.getPartialArea(col, row, SIDE));
+    }
+
+    protected static byte[] image(int seed, int length) {
+        byte[] data = new byte[length];
+        data[0] = PngTileCodec.ID;
+        for (int i = 1; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    protected void put(int col, int row, byte[] image) throws IOException {
+        assertTrue(store.put(key(col, row), RenderedPartialFactory.getPartialArea(col, row, SIDE), image));
+    }
+
+    protected static void assertImage(byte[] expected, ByteBuffer actual) {
+        assertNotNull(actual);
+        byte[] data = new byte[actual.remaining()];
+        actual.duplicate().get(data);
+        assertTrue(Arrays.equals(expected, data));
+    }
+
+    public void testPutGet() throws Exception {
+
+        byte[] img = image(1, 500);
+        put(1, 2, img);
+
+        assertTrue(store.contains(key(1, 2)));
+        assertImage(img, store.get(key(1, 2)));
+
+        assertFalse(store.contains(key(2, 1)));
+        assertNull(store.get(key(2, 1)));
+
+        // partial is stored once
+        assertFalse(store.put(key(1, 2), RenderedPartialFactory.getPartialArea(1, 2, SIDE), image(2, 500)));
+        assertImage(img, store.get(key(1, 2)));
+    }
+
+    public void testPutAll() throws Exception {
+
+        put(0, 0, image(0, 300));
+
+        ArrayList<EncodedPartial> partials = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            partials.add(new EncodedPartial(key(i, 0), RenderedPartialFactory.getPartialArea(i, 0, SIDE), image(i, 300)));
+        }
+
+        // first partial is already stored
+        assertEquals(4, store.putAll(partials));
+        for (int i = 0; i < 5; i++) {
+            assertImage(image(i, 300), store.get(key(i, 0)));
+        }
+    }
+
+    public void testDeleteRange() throws Exception {
+
+        for (int col = -2; col <= 2; col++) {
+            for (int row = -2; row <= 2; row++) {
+                put(col, row, image(col * 5 + row, 200));
+            }
+        }
+
+        PartialKey first = key(-1, -1);
+        PartialKeyRange range = new PartialKeyRange(first.getLevel(), first.getCrsId(), first.getFingerprint(), -1, 1, -1, 0);
+        assertEquals(6, store.delete(range));
+
+        for (int col = -2; col <= 2; col++) {
+            for (int row = -2; row <= 2; row++) {
+                boolean deleted = col >= -1 && col <= 1 && row >= -1 && row <= 0;
+                assertEquals(col + "," + row, deleted == false, store.contains(key(col, row)));
+            }
+        }
+
+        // other fingerprint
+        range = new PartialKeyRange(first.getLevel(), first.getCrsId(), first.getFingerprint() + 1, -2, 2, -2, 2);
+        assertEquals(0, store.delete(range));
+    }
+
+    public void testSharedImages() throws Exception {
+
+        byte[] img = image(1, 2000);
+        put(0, 0, img);
+        put(0, 1, img);
+        put(0, 2, image(2, 2000));
+
+        assertEquals(6000, store.getLogicalBytes());
+        assertEquals(4000, store.getStoredBytes());
+
+        // shared image is kept while a partial uses it
+        PartialKey k = key(0, 0);
+        store.delete(new PartialKeyRange(k.getLevel(), k.getCrsId(), k.getFingerprint(), 0, 0, 0, 0));
+        assertImage(img, store.get(key(0, 1)));
+    }
+
+    public void testUniformCount() throws Exception {
+
+        put(0, 0, BufferedImagePersister.imageToByte(new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB)));
+        put(0, 1, image(1, 500));
+
+        // image of other codec with size of uniform images
+        put(0, 2, image(2, UniformTileCodec.STORED_SIZE));
+
+        assertEquals(3, store.getPartialCount());
+        assertEquals(1, store.getUniformPartialCount());
+    }
+
+    public void testReopen() throws Exception {
+
+        put(3, 3, image(3, 700));
+        PartialKey k = key(3, 3);
+        put(4, 4, image(4, 700));
+        store.delete(new PartialKeyRange(k.getLevel(), k.getCrsId(), k.getFingerprint(), 4, 4, 4, 4));
+        store.close();
+
+        store = openStore(directory);
+        assertImage(image(3, 700), store.get(key(3, 3)));
+        assertFalse(store.contains(key(4, 4)));
+    }
+
+    public void testEvictLeastRecentlyUsed() throws Exception {
+
+        assertTrue(store.isEvictionSupported());
+        for (int i = 0; i < 10; i++) {
+            put(i, 0, image(i, 1000));
+        }
+        Thread.sleep(20);
+
+        // first partials are used again, from store or from a cache in front of it
+        for (int i = 0; i < 3; i++) {
+            store.get(key(i, 0));
+        }
+        store.recordAccess(key(3, 0));
+        store.recordAccess(key(4, 0));
+        store.flushAccessTimes();
+
+        int evicted = store.evictLeastRecentlyUsed(5500);
+        assertEquals(5, evicted);
+        assertTrue(store.getStoredBytes() <= 5500);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Partial " + i, i < 5, store.contains(key(i, 0)));
+        }
+    }
+
+    public void testNothingEvictedUnderBudget() throws Exception {
+        put(0, 0, image(0, 1000));
+        assertEquals(0, store.evictLeastRecentlyUsed(10000));
+        assertTrue(store.contains(key(0, 0)));
+    }
+}
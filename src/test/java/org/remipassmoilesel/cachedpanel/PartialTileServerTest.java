@@ -0,0 +1,125 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * ETag of served tiles, and tiles out of grid bounds
+ */
+public class PartialTileServerTest extends TestCase {
+
+    private static final int ZOOM_LEVEL = 4;
+
+    /**
+     * Stored image, sent without decoding
+     */
+    private static final byte[] PNG = new byte[]{(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5};
+
+    private MapContent content;
+    private MemoryPartialStore backend;
+    private RenderedPartialFactory factory;
+    private PartialTileServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new MapContent();
+        backend = new MemoryPartialStore();
+        factory = new RenderedPartialFactory(content, backend);
+        server = new PartialTileServer(factory, new InetSocketAddress("localhost", 0), 2);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        factory.dispose();
+        content.dispose();
+    }
+
+    /**
+     * Store a PNG image for a partial, so it is served without rendering
+     */
+    private void storePng(int col, int row, byte[] png) {
+        ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(col, row, RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL));
+        byte[] encoded = new byte[png.length + 1];
+        encoded[0] = PngTileCodec.ID;
+        System.arraycopy(png, 0, encoded, 1, png.length);
+        assertTrue(backend.put(PartialKey.fromEnvelope(area, factory.getContentFingerprint()), area, encoded));
+    }
+
+    private HttpURLConnection request(String path, String ifNoneMatch) throws IOException {
+        InetSocketAddress address = server.getAddress();
+        URL url = new URL("http", address.getHostString(), address.getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return connection;
+    }
+
+    private static byte[] readBody(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            byte[] data = new byte[PNG.length + 1];
+            int length = 0;
+            int read;
+            while (length < data.length && (read = in.read(data, length, data.length - length)) != -1) {
+                length += read;
+            }
+            byte[] body = new byte[length];
+            System.arraycopy(data, 0, body, 0, length);
+            return body;
+        }
+    }
+
+    public void testETag() throws Exception {
+
+        storePng(3, 2, PNG);
+        String path = "/" + ZOOM_LEVEL + "/3/2.png";
+
+        HttpURLConnection first = request(path, null);
+        assertEquals(200, first.getResponseCode());
+        assertEquals("image/png", first.getContentType());
+        assertTrue(Arrays.equals(PNG, readBody(first)));
+        String etag = first.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        // same image is not sent again
+        HttpURLConnection cached = request(path, etag);
+        assertEquals(304, cached.getResponseCode());
+        assertEquals(etag, cached.getHeaderField("ETag"));
+
+        HttpURLConnection weak = request(path, "\"other\", W/" + etag);
+        assertEquals(304, weak.getResponseCode());
+
+        HttpURLConnection outdated = request(path, "\"other\"");
+        assertEquals(200, outdated.getResponseCode());
+        readBody(outdated);
+
+        assertEquals(2L, (long) factory.getMetrics().getCounters().get(CacheMetrics.HTTP_NOT_MODIFIED));
+    }
+
+    public void testOutOfWorldTilesAreNotFound() throws Exception {
+
+        double side = RenderedPartialFactory.getSideForZoomLevel(ZOOM_LEVEL);
+        int lastCol = (int) Math.ceil(180 / side) - 1;
+        int lastRow = (int) Math.ceil(90 / side) - 1;
+        assertTrue(PartialTileServer.isInWorld(ZOOM_LEVEL, lastCol, lastRow));
+        assertTrue(PartialTileServer.isInWorld(ZOOM_LEVEL, -lastCol - 1, -lastRow - 1));
+
+        assertEquals(404, request("/" + ZOOM_LEVEL + "/" + (lastCol + 1) + "/0.png", null).getResponseCode());
+        assertEquals(404, request("/" + ZOOM_LEVEL + "/0/" + (-lastRow - 2) + ".png", null).getResponseCode());
+        assertEquals(404, request("/" + (RenderedPartialFactory.MAX_ZOOM_LEVEL + 1) + "/0/0.png", null).getResponseCode());
+        assertEquals(404, request("/tiles/0/0", null).getResponseCode());
+
+        // nothing is rendered for these requests
+        assertEquals(0, backend.getPartialCount());
+    }
+}
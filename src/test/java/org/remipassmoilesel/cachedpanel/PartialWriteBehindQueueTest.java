@@ -0,0 +1,140 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched writes, and discard of partials invalidated while they are encoded or written
+ */
+public class PartialWriteBehindQueueTest extends TestCase {
+
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(4);
+
+    private MemoryPartialStore store;
+    private PartialWriteBehindQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        store = new MemoryPartialStore();
+        queue = new PartialWriteBehindQueue(store, new CacheMetrics(), 2, 100, 10, 50);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        queue.close(5000);
+    }
+
+    private static ReferencedEnvelope area(int col) {
+        return RenderedPartialFactory.getPartialArea(col, 0, SIDE);
+    }
+
+    private static PartialKey key(int col) {
+        return PartialKey.fromEnvelope(area(col));
+    }
+
+    private static BufferedImage image(int seed) {
+        BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 16; x++) {
+            img.setRGB(x, x, 0xff000000 | seed * 1000 + x);
+        }
+        return img;
+    }
+
+    private void submit(int col) {
+        assertTrue(queue.submit(key(col), area(col), image(col)));
+    }
+
+    /**
+     * Wait until image of a partial is encoded and waiting to be written
+     */
+    private void awaitPending(int col) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getPending(key(col)) == null && store.contains(key(col)) == false) {
+            assertTrue("Image not encoded", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    public void testImagesAreWritten() throws Exception {
+
+        for (int i = 0; i < 25; i++) {
+            submit(i);
+        }
+        assertTrue(queue.close(5000));
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue(store.contains(key(i)));
+            assertNull(queue.getPending(key(i)));
+        }
+        assertEquals(25, queue.getWrittenPartials());
+        assertTrue(queue.getBatches() >= 3);
+    }
+
+    public void testPendingImagesAreReadable() throws Exception {
+
+        store.suspendWrites();
+        submit(0);
+        awaitPending(0);
+
+        // image is readable before it is written
+        assertTrue(store.awaitWrite());
+        assertNotNull(queue.getPending(key(0)));
+        assertFalse(store.contains(key(0)));
+
+        store.resumeWrites();
+        assertTrue(queue.close(5000));
+        assertTrue(store.contains(key(0)));
+    }
+
+    public void testImageRenderedBeforeDiscardIsDropped() throws Exception {
+
+        long generation = queue.getGeneration();
+        queue.discard(PartialKeyRange.forKey(key(0)));
+
+        assertTrue(queue.submit(key(0), area(0), image(0), generation));
+        assertTrue(queue.submit(key(1), area(1), image(1), generation));
+        assertTrue(queue.close(5000));
+
+        // only partial of discarded range is dropped
+        assertFalse(store.contains(key(0)));
+        assertTrue(store.contains(key(1)));
+        assertEquals(1, queue.getDiscardedPartials());
+    }
+
+    public void testRunIfNotDiscarded() {
+
+        long generation = queue.getGeneration();
+        queue.discard(PartialKeyRange.forKey(key(0)));
+
+        assertFalse(queue.runIfNotDiscarded(key(0), generation, () -> fail("Partial was discarded")));
+        assertTrue(queue.runIfNotDiscarded(key(1), generation, () -> {
+        }));
+        assertTrue(queue.runIfNotDiscarded(key(0), queue.getGeneration(), () -> {
+        }));
+    }
+
+    public void testDiscardDoesNotWaitForWrite() throws Exception {
+
+        store.suspendWrites();
+        submit(0);
+        assertTrue(store.awaitWrite());
+
+        // write is in progress, discard returns without waiting for it
+        CompletableFuture<Void> discard = CompletableFuture.runAsync(() -> queue.discard(PartialKeyRange.forKey(key(0))));
+        discard.get(2, TimeUnit.SECONDS);
+
+        // outdated image is refused until it is deleted from store
+        assertFalse(queue.runIfNotDiscarded(key(0), queue.getGeneration(), () -> fail("Partial is outdated")));
+
+        store.resumeWrites();
+        assertTrue(queue.close(5000));
+
+        assertFalse(store.contains(key(0)));
+        assertTrue(queue.runIfNotDiscarded(key(0), queue.getGeneration(), () -> {
+        }));
+    }
+}
@@ -0,0 +1,120 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * LRU eviction and pinning of memory cache
+ */
+public class RenderedPartialMemoryCacheTest extends TestCase {
+
+    /**
+     * Weight of a 10 x 10 int image
+     */
+    private static final long IMAGE_BYTES = 400;
+
+    private static PartialKey key(int col) {
+        return new PartialKey(1000, col, 0, "EPSG:4326");
+    }
+
+    private static BufferedImage image() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    public void testWeight() {
+        assertEquals(IMAGE_BYTES, RenderedPartialMemoryCache.weight(image()));
+        assertEquals(300, RenderedPartialMemoryCache.weight(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR)));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+
+        RenderedPartialMemoryCache cache = new RenderedPartialMemoryCache(3 * IMAGE_BYTES);
+        for (int i = 0; i < 3; i++) {
+            cache.put(key(i), image());
+        }
+
+        // first image is used again, second one is the eldest
+        assertNotNull(cache.get(key(0)));
+        cache.put(key(3), image());
+
+        assertTrue(cache.contains(key(0)));
+        assertFalse(cache.contains(key(1)));
+        assertTrue(cache.contains(key(2)));
+        assertTrue(cache.contains(key(3)));
+        assertEquals(3 * IMAGE_BYTES, cache.getCurrentBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testReplaceAndRemove() {
+
+        RenderedPartialMemoryCache cache = new RenderedPartialMemoryCache(10 * IMAGE_BYTES);
+        cache.put(key(0), image());
+        cache.put(key(0), image());
+        assertEquals(1, cache.size());
+        assertEquals(IMAGE_BYTES, cache.getCurrentBytes());
+
+        cache.remove(key(0));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCurrentBytes());
+        assertNull(cache.get(key(0)));
+    }
+
+    public void testPinnedImagesAreKept() {
+
+        RenderedPartialMemoryCache cache = new RenderedPartialMemoryCache(2 * IMAGE_BYTES);
+        cache.setPinned(Arrays.asList(key(0), key(1)));
+        for (int i = 0; i < 4; i++) {
+            cache.put(key(i), image());
+        }
+
+        // pinned images are kept over budget, other ones are evicted
+        assertTrue(cache.isPinned(key(0)));
+        assertTrue(cache.contains(key(0)));
+        assertTrue(cache.contains(key(1)));
+        assertFalse(cache.contains(key(2)));
+        assertFalse(cache.contains(key(3)));
+
+        // released images can be evicted again
+        cache.setPinned(Collections.singletonList(key(1)));
+        cache.put(key(4), image());
+        assertFalse(cache.contains(key(0)));
+        assertTrue(cache.contains(key(1)));
+        assertTrue(cache.contains(key(4)));
+    }
+
+    public void testSetMaxBytes() {
+
+        RenderedPartialMemoryCache cache = new RenderedPartialMemoryCache(4 * IMAGE_BYTES);
+        for (int i = 0; i < 4; i++) {
+            cache.put(key(i), image());
+        }
+
+        cache.setMaxBytes(2 * IMAGE_BYTES);
+        cache.put(key(4), image());
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(key(4)));
+    }
+
+    public void testSharedImageIsWeightedOnce() {
+
+        RenderedPartialMemoryCache cache = new RenderedPartialMemoryCache(2 * IMAGE_BYTES);
+        BufferedImage shared = image();
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(i), shared);
+        }
+        cache.put(key(5), image());
+        assertEquals(6, cache.size());
+        assertEquals(2 * IMAGE_BYTES, cache.getCurrentBytes());
+
+        // shared image is weighted until its last partial is removed
+        for (int i = 0; i < 4; i++) {
+            cache.remove(key(i));
+        }
+        assertEquals(2 * IMAGE_BYTES, cache.getCurrentBytes());
+        cache.remove(key(4));
+        assertEquals(IMAGE_BYTES, cache.getCurrentBytes());
+    }
+}
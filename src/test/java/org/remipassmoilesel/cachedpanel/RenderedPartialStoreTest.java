@@ -0,0 +1,62 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Cache level counted for each lookup of an encoded image
+ */
+public class RenderedPartialStoreTest extends TestCase {
+
+    private static final double SIDE = RenderedPartialFactory.getSideForZoomLevel(4);
+
+    private MemoryPartialStore backend;
+    private CacheMetrics metrics;
+    private RenderedPartialStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        backend = new MemoryPartialStore();
+        metrics = new CacheMetrics();
+        store = new RenderedPartialStore(backend, 1024 * 1024, 1024 * 1024, metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        backend.resumeWrites();
+        store.close();
+    }
+
+    private long count(String counter) {
+        Long value = metrics.getCounters().get(counter);
+        return value != null ? value : 0;
+    }
+
+    public void testPendingImagesAreNotOffHeapHits() throws Exception {
+
+        ReferencedEnvelope area = RenderedPartialFactory.getPartialArea(0, 0, SIDE);
+        PartialKey key = PartialKey.fromEnvelope(area);
+        BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(3, 3, 0xff00ff00);
+
+        backend.suspendWrites();
+        assertTrue(store.getWriteBehind().submit(key, area, img));
+        assertTrue(backend.awaitWrite());
+
+        // image is waiting to be written
+        assertNotNull(store.getEncoded(key));
+        assertEquals(1, count(CacheMetrics.WRITE_BEHIND_HITS));
+        assertEquals(0, count(CacheMetrics.OFF_HEAP_HITS));
+
+        backend.resumeWrites();
+        assertTrue(store.getWriteBehind().close(5000));
+        assertTrue(backend.contains(key));
+
+        // image was cached off heap when it was encoded
+        assertNotNull(store.getEncoded(key));
+        assertEquals(1, count(CacheMetrics.WRITE_BEHIND_HITS));
+        assertEquals(1, count(CacheMetrics.OFF_HEAP_HITS));
+    }
+}
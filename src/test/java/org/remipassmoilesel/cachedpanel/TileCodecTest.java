@@ -0,0 +1,182 @@
+package org.remipassmoilesel.cachedpanel;
+
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Round trips of tile codecs, uniform images and legacy PNG images
+ */
+public class TileCodecTest extends TestCase {
+
+    /**
+     * Return an image with a gradient and transparent pixels
+     */
+    private static BufferedImage createImage(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int alpha = x < w / 4 ? 0 : 255;
+                img.setRGB(x, y, alpha << 24 | (x * 255 / w) << 16 | (y * 255 / h) << 8 | 0x40);
+            }
+        }
+        return img;
+    }
+
+    private static BufferedImage createUniformImage(int w, int h, int argb) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                img.setRGB(x, y, argb);
+            }
+        }
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                // colour of transparent pixels is not significant
+                if ((e >>> 24) == 0 && (a >>> 24) == 0) {
+                    continue;
+                }
+                assertEquals("Pixel " + x + "," + y, e, a);
+            }
+        }
+    }
+
+    private static BufferedImage roundTrip(TileCodec codec, BufferedImage img) throws Exception {
+        byte[] encoded = BufferedImagePersister.imageToByte(img, codec);
+        assertNotNull(encoded);
+        assertEquals(codec.getId(), encoded[0]);
+        assertEquals(codec.getId(), BufferedImagePersister.getCodecId(ByteBuffer.wrap(encoded)));
+        return BufferedImagePersister.bytesToImage(encoded);
+    }
+
+    public void testPng() throws Exception {
+        BufferedImage img = createImage(50, 30);
+        for (int level = 0; level <= 9; level++) {
+            assertSamePixels(img, roundTrip(new PngTileCodec(level), img));
+        }
+    }
+
+    public void testPngOpaqueImage() throws Exception {
+
+        BufferedImage img = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.orange);
+        g.fillOval(5, 5, 30, 20);
+        g.dispose();
+
+        BufferedImage decoded = roundTrip(new PngTileCodec(), img);
+        assertFalse(decoded.getColorModel().hasAlpha());
+        assertSamePixels(img, decoded);
+    }
+
+    public void testPngDeflateLevel() throws Exception {
+
+        BufferedImage img = createImage(128, 128);
+        int stored = new PngTileCodec(0).encode(img).length;
+        int fast = new PngTileCodec(1).encode(img).length;
+        int best = new PngTileCodec(9).encode(img).length;
+
+        // level 0 stores filtered pixels without compression
+        assertTrue(stored > 128 * 128 * 4);
+        assertTrue(fast < stored);
+        assertTrue(best <= fast);
+    }
+
+    public void testDeflate() throws Exception {
+        BufferedImage img = createImage(50, 30);
+        assertSamePixels(img, roundTrip(new DeflateTileCodec(), img));
+    }
+
+    public void testJpeg() throws Exception {
+
+        BufferedImage img = createUniformImage(32, 32, 0xff336699);
+        img.setRGB(0, 0, 0xff000000);
+
+        BufferedImage decoded = roundTrip(new JpegTileCodec(), img);
+        assertEquals(32, decoded.getWidth());
+        assertEquals(32, decoded.getHeight());
+
+        // lossy, colour far from altered pixel is close to original
+        Color c = new Color(decoded.getRGB(20, 20));
+        assertTrue(Math.abs(c.getRed() - 0x33) < 8);
+        assertTrue(Math.abs(c.getGreen() - 0x66) < 8);
+        assertTrue(Math.abs(c.getBlue() - 0x99) < 8);
+    }
+
+    public void testLegacyPng() throws Exception {
+
+        BufferedImage img = createImage(20, 20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        byte[] png = out.toByteArray();
+
+        assertEquals(-1, BufferedImagePersister.getCodecId(ByteBuffer.wrap(png)));
+        assertSamePixels(img, BufferedImagePersister.bytesToImage(png));
+    }
+
+    public void testBufferPositionIsKept() throws Exception {
+
+        BufferedImage img = createImage(16, 16);
+        byte[] encoded = BufferedImagePersister.imageToByte(img, new DeflateTileCodec());
+
+        // data in the middle of a larger buffer, e.g: a slice of a segment
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 10);
+        buffer.position(5);
+        buffer.put(encoded);
+        buffer.position(5);
+        buffer.limit(5 + encoded.length);
+
+        assertSamePixels(img, BufferedImagePersister.bytesToImage(buffer));
+        assertEquals(5, buffer.position());
+    }
+
+    public void testInvalidData() {
+        assertNull(BufferedImagePersister.bytesToImage(new byte[0]));
+        assertNull(BufferedImagePersister.bytesToImage(new byte[]{UniformTileCodec.ID, 0, 0}));
+        assertNull(BufferedImagePersister.bytesToImage(new byte[]{(byte) 120, 1, 2, 3}));
+    }
+
+    public void testUniformSentinel() throws Exception {
+
+        BufferedImage img = createUniformImage(40, 20, 0xff336699);
+        assertTrue(UniformTileCodec.isUniform(img));
+
+        // uniform images are encoded as their colour whatever the codec
+        byte[] encoded = BufferedImagePersister.encode(img, new PngTileCodec());
+        assertEquals(UniformTileCodec.STORED_SIZE, encoded.length);
+        assertEquals(UniformTileCodec.ID, encoded[0]);
+
+        BufferedImage decoded = BufferedImagePersister.bytesToImage(encoded);
+        assertSamePixels(img, decoded);
+
+        // decoded images are shared, and not copied for display
+        assertSame(decoded, BufferedImagePersister.bytesToImage(encoded));
+        assertSame(decoded, CompatibleImages.toCompatible(decoded));
+
+        img.setRGB(39, 19, 0xff336698);
+        assertFalse(UniformTileCodec.isUniform(img));
+        assertEquals(PngTileCodec.ID, BufferedImagePersister.encode(img, new PngTileCodec())[0]);
+    }
+
+    public void testTransparentPixelsAreUniform() throws Exception {
+
+        BufferedImage img = createUniformImage(10, 10, 0x00000000);
+        img.setRGB(5, 5, 0x00ff0000);
+        assertTrue(UniformTileCodec.isUniform(img));
+
+        BufferedImage decoded = BufferedImagePersister.bytesToImage(BufferedImagePersister.imageToByte(img));
+        assertEquals(0, decoded.getRGB(5, 5) >>> 24);
+    }
+}